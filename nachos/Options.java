@@ -11,12 +11,55 @@
 //         Re-execution with the same seed should produce the same results.
 //    -tl <time limit> halt the machine if totalTicks exceeds <time limit>
 //    -z prints the copyright message
+//    -smp runs the multiprocessor scheduling test
+//    -affinitytest <threads> runs the CPU affinity test with that many
+//         threads, the first of them pinned to CPU 0
+//    -ps enables pre-emptive scheduling using per-CPU time-slicing timers
+//    -tickless is like -ps, but stops the timers of CPUs that are idle
+//         or have no other threads waiting for them
+//    -mlfs <quantum> uses multilevel feedback scheduling with the given
+//         level-0 quantum
+//    -mlfslevels <levels> sets the number of multilevel feedback levels
+//         (1 to 64, default 5)
+//    -mlfsboost <interval> moves all threads back to the top multilevel
+//         feedback level every <interval> ticks (0, the default, for never)
+//    -stride uses proportional-share (stride) scheduling by thread weight
+//    -cfs <target latency> <min granularity> uses completely fair scheduling,
+//         in which each ready thread runs within <target latency> ticks,
+//         for at least <min granularity> ticks
+//    -shares runs the proportional-share scheduling test
+//    -latency <threads> runs the scheduling latency test with that many threads
+//    -balance <interval> <imbalance> moves ready threads between CPUs every
+//         <interval> ticks (0 for never) while their loads differ by more
+//         than <imbalance> percent of one thread
+//    -gs co-schedules gangs of threads, such as the threads of a process
+//    -gang <gangs> <threads> runs the gang scheduling test
+//    -nopi stops threads waiting for locks lending their priority to holders
+//    -pi runs the priority inversion test
+//    -rtbound <percent> limits the real-time (EDF) load admitted on each CPU
+//    -rt runs the real-time scheduling test
+//    -spin <kind> uses spin locks of the given kind: tas (test-and-set),
+//         ticket, or mcs (queued)
+//    -spintest <threads> runs the spin lock test with that many threads
+//    -adaptive <spins> makes Locks spin up to <spins> times for a holder
+//         running on another CPU before blocking (0, the default, to block)
+//    -locktest <threads> runs the lock benchmark with that many threads
+//    -rwtest <readers> <writers> runs the reader-writer lock test
+//    -timeouttest <threads> runs the timed wait test
+//    -futextest <threads> runs the futex test
+//    -barriertest <parties> runs the barrier benchmark, up to <parties> parties
+//    -tasktest <tasks> runs the TaskManager benchmark
+//    -forkjointest <n> runs the fork/join benchmark, computing fib(n)
+//    -queuetest <items> runs the RingQueue benchmark
 //
 //  USER_PROGRAM (set USER_PROGRAM=true below before using these options!)
 //    -s causes user programs to be executed in single-step mode
 //    -x <nachos file> runs a user program
 //    -c <consoleIn> <consoleOut> tests the console
 //         if omitted, consoleIn and consoleOut default to stdin and stdout
+//    -swap <pages> adds a swap disk, of which <pages> pages are used to hold
+//         the pages of user programs that do not fit in memory
+//    -frames <pages> limits user programs to <pages> physical pages
 //
 //  FILESYS (set FILESYS=true below before using these options!)
 //    -f causes the physical disk to be formatted
@@ -45,6 +88,7 @@ import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 
+import nachos.kernel.threads.SpinLock;
 import nachos.machine.Disk;
 
 /**
@@ -121,7 +165,10 @@ public class Options {
     /** The number of serial ports on the system. */
     public int NUM_PORTS = 0;
     
-    /** The types of disk devices on the system. */
+    /**
+     * The types of disk devices on the system: the disk holding the file
+     * system, and the swap disk if -swap is given.
+     */
     public Class<?>[] DISK_TYPES = new Class<?>[] { Disk.class };
 
     /** The number of disks on the system. */
@@ -145,6 +192,14 @@ public class Options {
      */
     public boolean CPU_TIMERS = false;
     
+    /**
+     * Should the time-slicing timers run only when they are needed?
+     * In this "tickless" mode, the timer of an idle CPU, or of a CPU with
+     * no other threads waiting for it, is stopped, and sleeping threads are
+     * woken by a separate timer that only runs while there are sleepers.
+     */
+    public boolean TICKLESS = false;
+
     /** Should the time-slicing timers be randomized? */
     public boolean RANDOM_YIELD = false;
     
@@ -165,6 +220,57 @@ public class Options {
     /** Should we run the multiprocessor scheduling test? */
     public boolean SMP_TEST = false;
 
+    /** Number of threads for the CPU affinity test, or 0 for none. */
+    public int AFFINITY_TEST_THREADS = 0;
+
+    /** Should we run the proportional-share scheduling test? */
+    public boolean SHARE_TEST = false;
+
+    /** Number of threads for the scheduling latency test, or 0 for none. */
+    public int LATENCY_TEST_THREADS = 0;
+
+    /** Should we run the real-time scheduling test? */
+    public boolean REAL_TIME_TEST = false;
+
+    /** Number of gangs for the gang scheduling test, or 0 for none. */
+    public int GANG_TEST_GANGS = 0;
+
+    /** Number of threads in each gang for the gang scheduling test. */
+    public int GANG_TEST_THREADS = 0;
+
+    /** Should we run the priority inversion test? */
+    public boolean INVERSION_TEST = false;
+
+    /** Number of threads for the spin lock test, or 0 for none. */
+    public int SPIN_LOCK_TEST_THREADS = 0;
+
+    /** Number of threads for the lock benchmark, or 0 for none. */
+    public int LOCK_TEST_THREADS = 0;
+
+    /** Number of reader threads for the reader-writer lock test, or 0 for none. */
+    public int READ_WRITE_TEST_READERS = 0;
+
+    /** Number of writer threads for the reader-writer lock test. */
+    public int READ_WRITE_TEST_WRITERS = 0;
+
+    /** Number of consumer threads for the timed wait test. */
+    public int TIMEOUT_TEST_THREADS = 0;
+
+    /** Number of threads for the futex test. */
+    public int FUTEX_TEST_THREADS = 0;
+
+    /** Largest number of parties for the barrier benchmark. */
+    public int BARRIER_TEST_PARTIES = 0;
+
+    /** Number of tasks for the TaskManager benchmark. */
+    public int TASK_TEST_TASKS = 0;
+
+    /** Fibonacci number computed by the fork/join benchmark. */
+    public int FORK_JOIN_TEST_N = 0;
+
+    /** Number of items for the queue benchmark. */
+    public int QUEUE_TEST_ITEMS = 0;
+
     /** Should we run the user program test? */
     public boolean PROG_TEST = false;
     
@@ -185,6 +291,97 @@ public class Options {
     
     public int MULTI_LEVEL_FEEDBACK_SCHEDULE_QUANTUM = 100;
     
+    /** Number of levels in the multilevel feedback queue (at most 64). */
+    public int MULTI_LEVEL_FEEDBACK_SCHEDULE_LEVELS = 5;
+    
+    /**
+     * Interval, in ticks, at which all threads are moved back to the top
+     * level of the multilevel feedback queue.  If zero, there are no boosts.
+     */
+    public int MULTI_LEVEL_FEEDBACK_SCHEDULE_BOOST_INTERVAL = 0;
+
+    /**
+     * Should threads be given CPU time in proportion to their weights,
+     * using stride scheduling?  This overrides multilevel feedback scheduling.
+     */
+    public boolean STRIDE_SCHEDULING = false;
+
+    /**
+     * Should threads be scheduled "completely fairly", by least weighted
+     * virtual runtime?  This overrides multilevel feedback scheduling.
+     */
+    public boolean CFS_SCHEDULING = false;
+
+    /**
+     * Period, in ticks, within which every thread that is ready to run on
+     * a CPU should get a turn, under completely fair scheduling.
+     */
+    public int CFS_TARGET_LATENCY = 2000;
+
+    /** Shortest time slice, in ticks, under completely fair scheduling. */
+    public int CFS_MIN_GRANULARITY = 200;
+
+    /**
+     * Interval, in ticks, between passes of the load balancer, which moves
+     * ready threads from busy CPUs to less busy ones.  If zero, threads only
+     * move when an idle CPU steals them.
+     */
+    public int LOAD_BALANCE_INTERVAL = 10000;
+
+    /**
+     * Difference in load, in percent of the load of one thread, above which
+     * the load balancer moves threads from one CPU to another.  Values below
+     * 100 are treated as 100, so that a thread cannot bounce back and forth.
+     */
+    public int LOAD_BALANCE_IMBALANCE = 150;
+
+    /**
+     * Should a thread waiting for a lock lend its multilevel feedback queue
+     * level to the thread holding the lock?
+     */
+    public boolean PRIORITY_INHERITANCE = true;
+
+    /**
+     * Should the members of each gang of threads (for example, the threads
+     * of one user process) be scheduled to run at the same time on
+     * different CPUs?
+     */
+    public boolean GANG_SCHEDULING = false;
+
+    /**
+     * Largest total utilization, in percent, of the real-time threads
+     * admitted on each CPU.  Earliest-deadline-first scheduling meets every
+     * deadline up to 100%, less the time lost to interrupts and switching.
+     */
+    public int REAL_TIME_UTILIZATION_BOUND = 100;
+
+    /**
+     * Kind of spin lock used, unless a lock asks for a particular kind:
+     * "tas" (test-and-set), "ticket", or "mcs" (queued).
+     */
+    public String SPIN_LOCK_KIND = "tas";
+
+    /**
+     * Number of times a thread spins for a Lock whose holder is running on
+     * another CPU, before blocking.  If zero, Locks always block.
+     */
+    public int LOCK_SPIN_LIMIT = 0;
+
+    /**
+     * Number of pages of the swap disk used, to which pages of user
+     * programs are written out when physical memory runs out; at most the
+     * number of sectors of the disk.  If zero, the default, there is no swap
+     * disk, and programs that run out of memory are killed instead.
+     */
+    public int SWAP_PAGES = 0;
+
+    /**
+     * Number of physical page frames given to user programs, if fewer than
+     * the machine has, so that programs start paging sooner.  If zero, all
+     * of them.
+     */
+    public int USER_FRAMES = 0;
+    
     public Options(String[] args) {
 	argList = Arrays.asList(args);
 	parseArgList();
@@ -219,6 +416,38 @@ public class Options {
 				CONSOLE_TEST = true;
 			    }
 			 }),
+		new Spec("-smp",  // run multiprocessor scheduling test
+			 new Class[] { },
+			 null,
+			 new Options.Action() {
+			    public void processOption(String flag, Object[] params) {
+				SMP_TEST = true;
+			    }
+			 }),
+		new Spec("-affinitytest",  // run CPU affinity test
+			 new Class[] {Integer.class},
+			 "Usage: -affinitytest <threads>",
+			 new Options.Action() {
+			    public void processOption(String flag, Object[] params) {
+				AFFINITY_TEST_THREADS = (Integer)params[0];
+			    }
+			 }),
+		new Spec("-shares",  // run proportional-share scheduling test
+			 new Class[] { },
+			 null,
+			 new Options.Action() {
+			    public void processOption(String flag, Object[] params) {
+				SHARE_TEST = true;
+			    }
+			 }),
+		new Spec("-latency",  // run scheduling latency test
+			 new Class[] {Integer.class},
+			 "Usage: -latency <threads>",
+			 new Options.Action() {
+			    public void processOption(String flag, Object[] params) {
+				LATENCY_TEST_THREADS = (Integer)params[0];
+			    }
+			 }),
 		new Spec("-f",  // format the disk before using it
 			 new Class[] { },
 			 null,
@@ -283,6 +512,15 @@ public class Options {
 				CPU_TIMERS = true;
 			    }
 			 }),
+		new Spec("-tickless",  // pre-emptive scheduling, stopping timers when not needed
+			 new Class[] { },
+			 null,
+			 new Options.Action() {
+			    public void processOption(String flag, Object[] params) {
+				CPU_TIMERS = true;
+				TICKLESS = true;
+			    }
+			 }),
 		new Spec("-ncpu",  // set the number of CPUs to use
 			 new Class[] {Integer.class},
 			 "Usage: -ncpu <ncpus>",
@@ -309,6 +547,217 @@ public class Options {
 				MULTI_LEVEL_FEEDBACK_SCHEDULE_QUANTUM = (Integer)params[0];
 			    }
 			}),	 
+		new Spec("-mlfslevels",  // set the number of feedback levels
+			 new Class[] {Integer.class},
+			 "Usage: -mlfslevels <levels>",
+			 new Options.Action() {
+			    public void processOption(String flag, Object[] params) {
+				MULTI_LEVEL_FEEDBACK_SCHEDULE_LEVELS = (Integer)params[0];
+				if(MULTI_LEVEL_FEEDBACK_SCHEDULE_LEVELS < 1
+					|| MULTI_LEVEL_FEEDBACK_SCHEDULE_LEVELS > 64) {
+				    System.out.println("Usage: -mlfslevels <levels>, "
+					    + "with 1 <= <levels> <= 64");
+				    Debug.ASSERT(false);
+				}
+			    }
+			 }),
+		new Spec("-mlfsboost",  // set the priority boost interval
+			 new Class[] {Integer.class},
+			 "Usage: -mlfsboost <interval>",
+			 new Options.Action() {
+			    public void processOption(String flag, Object[] params) {
+				MULTI_LEVEL_FEEDBACK_SCHEDULE_BOOST_INTERVAL = (Integer)params[0];
+			    }
+			 }),
+		new Spec("-stride",  // use proportional-share (stride) scheduling
+			 new Class[] { },
+			 null,
+			 new Options.Action() {
+			    public void processOption(String flag, Object[] params) {
+				STRIDE_SCHEDULING = true;
+			    }
+			 }),
+		new Spec("-cfs",  // use completely fair scheduling
+			 new Class[] { Integer.class, Integer.class },
+			 "Usage: -cfs <target latency> <min granularity>",
+			 new Options.Action() {
+			    public void processOption(String flag, Object[] params) {
+				CFS_SCHEDULING = true;
+				CFS_TARGET_LATENCY = (Integer)params[0];
+				CFS_MIN_GRANULARITY = (Integer)params[1];
+			    }
+			 }),
+		new Spec("-balance",  // set the load balancer parameters
+			 new Class[] { Integer.class, Integer.class },
+			 "Usage: -balance <interval> <imbalance>",
+			 new Options.Action() {
+			    public void processOption(String flag, Object[] params) {
+				LOAD_BALANCE_INTERVAL = (Integer)params[0];
+				LOAD_BALANCE_IMBALANCE = (Integer)params[1];
+			    }
+			 }),
+		new Spec("-gs",  // use gang scheduling
+			 new Class[] { },
+			 null,
+			 new Options.Action() {
+			    public void processOption(String flag, Object[] params) {
+				GANG_SCHEDULING = true;
+			    }
+			 }),
+		new Spec("-gang",  // run gang scheduling test
+			 new Class[] { Integer.class, Integer.class },
+			 "Usage: -gang <gangs> <threads>",
+			 new Options.Action() {
+			    public void processOption(String flag, Object[] params) {
+				GANG_TEST_GANGS = (Integer)params[0];
+				GANG_TEST_THREADS = (Integer)params[1];
+			    }
+			 }),
+		new Spec("-nopi",  // disable priority inheritance
+			 new Class[] { },
+			 null,
+			 new Options.Action() {
+			    public void processOption(String flag, Object[] params) {
+				PRIORITY_INHERITANCE = false;
+			    }
+			 }),
+		new Spec("-pi",  // run priority inversion test
+			 new Class[] { },
+			 null,
+			 new Options.Action() {
+			    public void processOption(String flag, Object[] params) {
+				INVERSION_TEST = true;
+			    }
+			 }),
+		new Spec("-rtbound",  // set the real-time utilization bound
+			 new Class[] {Integer.class},
+			 "Usage: -rtbound <percent>",
+			 new Options.Action() {
+			    public void processOption(String flag, Object[] params) {
+				REAL_TIME_UTILIZATION_BOUND = (Integer)params[0];
+			    }
+			 }),
+		new Spec("-rt",  // run real-time scheduling test
+			 new Class[] { },
+			 null,
+			 new Options.Action() {
+			    public void processOption(String flag, Object[] params) {
+				REAL_TIME_TEST = true;
+			    }
+			 }),
+		new Spec("-spin",  // set the kind of spin lock
+			 new Class[] {String.class},
+			 "Usage: -spin tas|ticket|mcs",
+			 new Options.Action() {
+			    public void processOption(String flag, Object[] params) {
+				SPIN_LOCK_KIND = (String)params[0];
+				if(SpinLock.kindOf(SPIN_LOCK_KIND) < 0) {
+				    System.out.println("Usage: -spin tas|ticket|mcs");
+				    Debug.ASSERT(false);
+				}
+			    }
+			 }),
+		new Spec("-spintest",  // run spin lock test
+			 new Class[] {Integer.class},
+			 "Usage: -spintest <threads>",
+			 new Options.Action() {
+			    public void processOption(String flag, Object[] params) {
+				SPIN_LOCK_TEST_THREADS = (Integer)params[0];
+			    }
+			 }),
+		new Spec("-adaptive",  // set the spin limit of adaptive locks
+			 new Class[] {Integer.class},
+			 "Usage: -adaptive <spins>",
+			 new Options.Action() {
+			    public void processOption(String flag, Object[] params) {
+				LOCK_SPIN_LIMIT = (Integer)params[0];
+			    }
+			 }),
+		new Spec("-swap",  // add a swap disk of the given size
+			 new Class[] {Integer.class},
+			 "Usage: -swap <pages>",
+			 new Options.Action() {
+			    public void processOption(String flag, Object[] params) {
+				SWAP_PAGES = (Integer)params[0];
+				if(SWAP_PAGES > 0) {
+				    DISK_TYPES = new Class<?>[] { Disk.class, Disk.class };
+				    NUM_DISKS = DISK_TYPES.length;
+				}
+			    }
+			 }),
+		new Spec("-frames",  // limit the physical pages for user programs
+			 new Class[] {Integer.class},
+			 "Usage: -frames <pages>",
+			 new Options.Action() {
+			    public void processOption(String flag, Object[] params) {
+				USER_FRAMES = (Integer)params[0];
+			    }
+			 }),
+		new Spec("-locktest",  // run lock benchmark
+			 new Class[] {Integer.class},
+			 "Usage: -locktest <threads>",
+			 new Options.Action() {
+			    public void processOption(String flag, Object[] params) {
+				LOCK_TEST_THREADS = (Integer)params[0];
+			    }
+			 }),
+		new Spec("-rwtest",  // run reader-writer lock test
+			 new Class[] {Integer.class, Integer.class},
+			 "Usage: -rwtest <readers> <writers>",
+			 new Options.Action() {
+			    public void processOption(String flag, Object[] params) {
+				READ_WRITE_TEST_READERS = (Integer)params[0];
+				READ_WRITE_TEST_WRITERS = (Integer)params[1];
+			    }
+			 }),
+		new Spec("-timeouttest",  // run timed wait test
+			 new Class[] {Integer.class},
+			 "Usage: -timeouttest <threads>",
+			 new Options.Action() {
+			    public void processOption(String flag, Object[] params) {
+				TIMEOUT_TEST_THREADS = (Integer)params[0];
+			    }
+			 }),
+		new Spec("-futextest",  // run futex test
+			 new Class[] {Integer.class},
+			 "Usage: -futextest <threads>",
+			 new Options.Action() {
+			    public void processOption(String flag, Object[] params) {
+				FUTEX_TEST_THREADS = (Integer)params[0];
+			    }
+			 }),
+		new Spec("-barriertest",  // run barrier benchmark
+			 new Class[] {Integer.class},
+			 "Usage: -barriertest <parties>",
+			 new Options.Action() {
+			    public void processOption(String flag, Object[] params) {
+				BARRIER_TEST_PARTIES = (Integer)params[0];
+			    }
+			 }),
+		new Spec("-tasktest",  // run TaskManager benchmark
+			 new Class[] {Integer.class},
+			 "Usage: -tasktest <tasks>",
+			 new Options.Action() {
+			    public void processOption(String flag, Object[] params) {
+				TASK_TEST_TASKS = (Integer)params[0];
+			    }
+			 }),
+		new Spec("-forkjointest",  // run fork/join benchmark
+			 new Class[] {Integer.class},
+			 "Usage: -forkjointest <n>",
+			 new Options.Action() {
+			    public void processOption(String flag, Object[] params) {
+				FORK_JOIN_TEST_N = (Integer)params[0];
+			    }
+			 }),
+		new Spec("-queuetest",  // run RingQueue benchmark
+			 new Class[] {Integer.class},
+			 "Usage: -queuetest <items>",
+			 new Options.Action() {
+			    public void processOption(String flag, Object[] params) {
+				QUEUE_TEST_ITEMS = (Integer)params[0];
+			    }
+			 }),
 		new Spec("-df",  // set the base filename for simulated disks
 			 new Class[] {String.class},
 			 "Usage: -df <filename>",
@@ -37,10 +37,25 @@ import nachos.kernel.filesys.FileSystem;
 import nachos.kernel.filesys.OpenFile;
 import nachos.kernel.filesys.test.FileSystemTest;
 import nachos.kernel.threads.Scheduler;
+import nachos.kernel.threads.test.AffinityTest;
+import nachos.kernel.threads.test.BarrierTest;
+import nachos.kernel.threads.test.ForkJoinTest;
+import nachos.kernel.threads.test.GangTest;
+import nachos.kernel.threads.test.InversionTest;
+import nachos.kernel.threads.test.LatencyTest;
+import nachos.kernel.threads.test.LockTest;
+import nachos.kernel.threads.test.QueueTest;
+import nachos.kernel.threads.test.ReadWriteTest;
+import nachos.kernel.threads.test.RealTimeTest;
 import nachos.kernel.threads.test.SMPTest;
+import nachos.kernel.threads.test.ShareTest;
+import nachos.kernel.threads.test.SpinLockTest;
+import nachos.kernel.threads.test.TaskTest;
 import nachos.kernel.threads.test.ThreadTest;
+import nachos.kernel.threads.test.TimeoutTest;
 import nachos.kernel.userprog.ExceptionHandler;
 import nachos.kernel.userprog.PhysicalMemoryManager;
+import nachos.kernel.userprog.test.FutexTest;
 import nachos.kernel.userprog.test.ProgTest;
 import nachos.machine.CPU;
 import nachos.machine.Machine;
@@ -68,6 +83,9 @@ public class Nachos implements Runnable {
     /** Access to the disk. */
     public static DiskDriver diskDriver;
 
+    /** Access to the swap disk, if there is one. */
+    public static DiskDriver swapDriver;
+
     /** Access to the network. */
     public static NetworkDriver networkDriver;
 
@@ -94,6 +112,9 @@ public class Nachos implements Runnable {
 	if(Machine.NUM_DISKS > 0)
 	    diskDriver = new DiskDriver(0);
 
+	if(Machine.NUM_DISKS > 1)
+	    swapDriver = new DiskDriver(1);
+
 	if(Machine.NUM_PORTS > 0)
 	    serialDriver = new SerialDriver();
 
@@ -125,6 +146,37 @@ public class Nachos implements Runnable {
 	}
 	if(options.SMP_TEST)
 	    SMPTest.start();
+	if(options.AFFINITY_TEST_THREADS > 0)
+	    AffinityTest.start(options.AFFINITY_TEST_THREADS);
+	if(options.SHARE_TEST)
+	    ShareTest.start();
+	if(options.LATENCY_TEST_THREADS > 0)
+	    LatencyTest.start(options.LATENCY_TEST_THREADS);
+	if(options.REAL_TIME_TEST)
+	    RealTimeTest.start();
+	if(options.GANG_TEST_GANGS > 0)
+	    GangTest.start(options.GANG_TEST_GANGS, options.GANG_TEST_THREADS);
+	if(options.INVERSION_TEST)
+	    InversionTest.start();
+	if(options.SPIN_LOCK_TEST_THREADS > 0)
+	    SpinLockTest.start(options.SPIN_LOCK_TEST_THREADS);
+	if(options.LOCK_TEST_THREADS > 0)
+	    LockTest.start(options.LOCK_TEST_THREADS);
+	if(options.READ_WRITE_TEST_READERS > 0)
+	    ReadWriteTest.start(options.READ_WRITE_TEST_READERS,
+		    options.READ_WRITE_TEST_WRITERS);
+	if(options.TIMEOUT_TEST_THREADS > 0)
+	    TimeoutTest.start(options.TIMEOUT_TEST_THREADS);
+	if(options.FUTEX_TEST_THREADS > 0)
+	    FutexTest.start(options.FUTEX_TEST_THREADS);
+	if(options.BARRIER_TEST_PARTIES > 0)
+	    BarrierTest.start(options.BARRIER_TEST_PARTIES);
+	if(options.TASK_TEST_TASKS > 0)
+	    TaskTest.start(options.TASK_TEST_TASKS);
+	if(options.FORK_JOIN_TEST_N > 0)
+	    ForkJoinTest.start(options.FORK_JOIN_TEST_N);
+	if(options.QUEUE_TEST_ITEMS > 0)
+	    QueueTest.start(options.QUEUE_TEST_ITEMS);
 	if(options.PROG_TEST)
 	    ProgTest.start();
 	if(options.FILESYS_TEST)
@@ -204,6 +204,16 @@ public class ConsoleDriver {
 	outputLock.release();
     }
 
+    /**
+     * Describe how the input and output locks have been acquired.
+     *
+     * @return a one-line summary of each lock.
+     */
+    public String[] getLockStatistics() {
+	return new String[] { inputLock.getStatistics(),
+		outputLock.getStatistics() };
+    }
+
     /**
      * Interrupt handler for the input (keyboard) half of the console.
      */
@@ -115,6 +115,15 @@ public class DiskDriver {
 	lock.release();
     }
 
+    /**
+     * Describe how the lock that serializes disk requests has been acquired.
+     *
+     * @return a one-line summary.
+     */
+    public String getLockStatistics() {
+	return lock.getStatistics();
+    }
+
     /**
      * DiskDriver interrupt handler class.
      */
@@ -95,6 +95,19 @@ public class NetworkDriver {
     return p;
   }
 
+  /**
+   * Receive a network packet, but give up if none has arrived after
+   * a given number of ticks, so that the caller can retransmit or poll.
+   *
+   * @param ticks The longest time to wait, in ticks.
+   * @return the packet, or null if the time ran out first.
+   */
+  public Packet receive(int ticks) {
+    if(!receiveSemaphore.P(ticks))	// wait for interrupt or timeout
+      return null;
+    return network.receive();
+  }
+
   /**
    * Send a network packet.  Return only after the packet has been
    * sent.
@@ -18,6 +18,7 @@ import nachos.Debug;
 import nachos.kernel.Nachos;
 import nachos.kernel.devices.DiskDriver;
 import nachos.kernel.filesys.test.FileSystemTest;
+import nachos.kernel.threads.ReadWriteLock;
 import nachos.machine.NachosThread;
 
 /**
@@ -128,6 +129,13 @@ class FileSystemReal extends FileSystem implements Runnable {
   /** "Root" directory -- list of file names, represented as a file. */
   private final OpenFile directoryFile;
 
+  /**
+   * Reader-writer lock for the directories and the free map: lookups
+   * hold it for reading, and changes hold it for writing.
+   */
+  private final ReadWriteLock directoryLock =
+      new ReadWriteLock("file system directory lock");
+
   /** Contains Directory name as key and child directories as value*/
   private HashMap<String, ArrayList<String>> directoryTracker = new HashMap<String, ArrayList<String>>();
   
@@ -257,14 +265,24 @@ class FileSystemReal extends FileSystem implements Runnable {
    *	no free entry for file in directory;
    *	no free space for data blocks for the file.
    *
-   * Note that this implementation assumes there is no concurrent access
-   *	to the file system!
+   * Concurrent changes to the file system are serialized by holding
+   *	directoryLock for writing.
    *
    * @param name  The name of file to be created.
    * @param initialSize  The size of file to be created.
    * @return true if the file was successfully created, otherwise false.
    */
   public boolean create(String name, long initialSize) {
+    directoryLock.acquireWrite();
+    boolean result = createUnlocked(name, initialSize);
+    directoryLock.releaseWrite();
+    return result;
+  }
+
+  /**
+   * Body of create(), called with directoryLock held for writing.
+   */
+  private boolean createUnlocked(String name, long initialSize) {
     Directory directory;
     
     FileHeader hdr;
@@ -312,7 +330,17 @@ class FileSystemReal extends FileSystem implements Runnable {
    *
    * @param name The text name of the file to be opened.
    */
-  public OpenFile open(String name) { 
+  public OpenFile open(String name) {
+    directoryLock.acquireRead();
+    OpenFile result = openUnlocked(name);
+    directoryLock.releaseRead();
+    return result;
+  }
+
+  /**
+   * Body of open(), called with directoryLock held for reading.
+   */
+  private OpenFile openUnlocked(String name) {
     Directory directory = new Directory(NumDirEntries, this);
     OpenFile openFile = null;
     int sector;
@@ -362,7 +390,17 @@ class FileSystemReal extends FileSystem implements Runnable {
    *
    * @param name The text name of the file to be removed.
    */
-  public boolean remove(String name) { 
+  public boolean remove(String name) {
+    directoryLock.acquireWrite();
+    boolean result = removeUnlocked(name);
+    directoryLock.releaseWrite();
+    return result;
+  }
+
+  /**
+   * Body of remove(), called with directoryLock held for writing.
+   */
+  private boolean removeUnlocked(String name) {
     Directory directory;
     BitMap freeMap;
     FileHeader fileHdr;
@@ -389,7 +427,17 @@ class FileSystemReal extends FileSystem implements Runnable {
     return true;
   } 
   
-  public boolean removeEntity(String name) { 
+  public boolean removeEntity(String name) {
+    directoryLock.acquireWrite();
+    boolean result = removeEntityUnlocked(name);
+    directoryLock.releaseWrite();
+    return result;
+  }
+
+  /**
+   * Body of removeEntity(), called with directoryLock held for writing.
+   */
+  private boolean removeEntityUnlocked(String name) {
       Directory directory;
       BitMap freeMap;
       FileHeader fileHdr;
@@ -431,6 +479,15 @@ class FileSystemReal extends FileSystem implements Runnable {
    * List all the files in the file system directory (for debugging).
    */
   public void list() {
+    directoryLock.acquireRead();
+    listUnlocked();
+    directoryLock.releaseRead();
+  }
+
+  /**
+   * Body of list(), called with directoryLock held for reading.
+   */
+  private void listUnlocked() {
       /*Directory directory = new Directory(NumDirEntries, this);
 
       directory.fetchFrom(directoryFile);
@@ -561,6 +618,16 @@ class FileSystemReal extends FileSystem implements Runnable {
   }
   
     public boolean mkdir(String name) {
+	directoryLock.acquireWrite();
+	boolean result = mkdirUnlocked(name);
+	directoryLock.releaseWrite();
+	return result;
+    }
+
+    /**
+     * Body of mkdir(), called with directoryLock held for writing.
+     */
+    private boolean mkdirUnlocked(String name) {
 	boolean success = false;
 	String[] dirs = name.split("/");
 	
@@ -664,6 +731,16 @@ class FileSystemReal extends FileSystem implements Runnable {
     }
     
     public boolean mkfile(String name, int size) {
+	directoryLock.acquireWrite();
+	boolean result = mkfileUnlocked(name, size);
+	directoryLock.releaseWrite();
+	return result;
+    }
+
+    /**
+     * Body of mkfile(), called with directoryLock held for writing.
+     */
+    private boolean mkfileUnlocked(String name, int size) {
 	boolean success = false;
 	String[] dirs = name.split("/");
 	
@@ -790,6 +867,16 @@ class FileSystemReal extends FileSystem implements Runnable {
     }
 
     public OpenFile openFile(String name) {
+	directoryLock.acquireRead();
+	OpenFile result = openFileUnlocked(name);
+	directoryLock.releaseRead();
+	return result;
+    }
+
+    /**
+     * Body of openFile(), called with directoryLock held for reading.
+     */
+    private OpenFile openFileUnlocked(String name) {
 	Directory directory = new Directory(NumDirEntries, this);
 	OpenFile openFile = null;
 	int sector;
@@ -12,8 +12,7 @@ import nachos.Debug;
 import nachos.kernel.Nachos;
 import nachos.machine.CPU;
 import nachos.machine.NachosThread;
-import nachos.util.FIFOQueue;
-import nachos.util.Queue;
+import nachos.util.RemovableQueue;
 
 /**
  * This class defines a "condition variable".  A condition
@@ -24,6 +23,9 @@ import nachos.util.Queue;
  *	await() -- release the lock, relinquish the CPU until signaled, 
  *		then re-acquire the lock
  *
+ *	await(ticks) -- the same, but stop waiting if not signaled within
+ *		a given number of ticks
+ *
  *	signal() -- wake up a thread, if there are any waiting on 
  *		the condition
  *
@@ -71,7 +73,7 @@ public class Condition {
     private final Lock conditionLock;
 
     /** Who's waiting on this condition? */
-    private final Queue<NachosThread> waitingThreads;
+    private final RemovableQueue<NachosThread> waitingThreads;
 
     /**
      * Spin lock used to obtain exclusive access to condition state
@@ -88,7 +90,7 @@ public class Condition {
     public Condition(String debugName, Lock lock) {
 	name = debugName;
 	conditionLock = lock;;
-	waitingThreads = new FIFOQueue<NachosThread>();
+	waitingThreads = new RemovableQueue<NachosThread>();
 	spinLock = new SpinLock(name + " spin lock");
     }
 
@@ -133,6 +135,46 @@ public class Condition {
 		NachosThread.currentThread().name);
     }
 
+    /**
+     * Wait on a condition until signalled, or until a given number of
+     * ticks have passed.  The caller must hold the lock associated with
+     * the condition, and holds it again when this returns, whether or not
+     * the condition was signalled.  A thread whose time runs out is taken
+     * out of the queue of waiting threads by a scheduler timeout, so that
+     * a later signal wakes up another thread instead.
+     *
+     * @param ticks The longest time to wait, in ticks.
+     * @return true if the condition was signalled, false if the time ran
+     * out first.
+     */
+    public boolean await(int ticks) {
+	Debug.ASSERT(conditionLock.isHeldByCurrentThread(),
+		"Non-owner tried to manipulate condition variable.");
+	if (ticks <= 0)
+	    return false;
+	Debug.printf('s', "Thread %s waiting on condition variable %s for "
+		+ "%d ticks\n", NachosThread.currentThread().name, name, ticks);
+
+	int oldLevel = CPU.setLevel(CPU.IntOff);	// disable interrupts
+	spinLock.acquire();				// exclude other CPUs
+
+	TimedWait wait =
+	    new TimedWait(waitingThreads.add(NachosThread.currentThread()));
+	TimerWheel.Timeout timeout =
+	    Nachos.scheduler.setTimeout(ticks, wait);
+	conditionLock.release();
+	Nachos.scheduler.sleepThread(spinLock);
+
+	CPU.setLevel(oldLevel);			// and re-enable interrupts.
+	Nachos.scheduler.cancelTimeout(timeout);
+
+	if (wait.expired)
+	    Debug.printf('s', "Thread %s timed out on condition variable %s\n",
+		    NachosThread.currentThread().name, name);
+	conditionLock.acquire();
+	return !wait.expired;
+    }
+
     /**
      * Wake up a thread, if any, that is waiting on the condition.
      */
@@ -175,4 +217,40 @@ public class Condition {
 	spinLock.release();
 	CPU.setLevel(oldLevel);
     }
+
+    /**
+     * A thread waiting in await(ticks).  If its time runs out before it
+     * is signalled, the scheduler runs this from the timer interrupt
+     * handler, with interrupts disabled, to take the thread out of the
+     * queue and make it ready to run again.
+     */
+    private class TimedWait implements Runnable {
+
+	/** The waiting thread's entry in the queue. */
+	private final RemovableQueue.Entry<NachosThread> entry;
+
+	/** Did the time run out before the thread was signalled? */
+	private boolean expired;
+
+	/**
+	 * Initialize a timed wait.
+	 *
+	 * @param entry  The waiting thread's entry in the queue.
+	 */
+	TimedWait(RemovableQueue.Entry<NachosThread> entry) {
+	    this.entry = entry;
+	}
+
+	/**
+	 * Wake up the waiting thread, unless a signal has already done so.
+	 */
+	public void run() {
+	    spinLock.acquire();
+	    if (waitingThreads.remove(entry)) {
+		expired = true;
+		Nachos.scheduler.readyToRun(entry.element);
+	    }
+	    spinLock.release();
+	}
+    }
 }
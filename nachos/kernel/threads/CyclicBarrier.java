@@ -5,7 +5,9 @@ import java.util.List;
 
 import nachos.Debug;
 import nachos.kernel.Nachos;
+import nachos.machine.CPU;
 import nachos.machine.NachosThread;
+import nachos.util.FIFOQueue;
 
 /**
  * A <CODE>CyclicBarrier</CODE> is an object that allows a set of threads to all
@@ -15,39 +17,129 @@ import nachos.machine.NachosThread;
  * >the documentation</A> for the Java API class
  * <CODE>java.util.concurrent.CyclicBarrier</CODE>.
  *
- * The class is provided in skeletal form. It is your job to complete the
- * implementation of this class in conformance with the Javadoc specifications
- * provided for each method. The method signatures specified below must not be
- * changed. However, the implementation will likely require additional private
- * methods as well as (private) instance variables. Also, it is essential to
- * provide proper synchronization for any data that can be accessed
- * concurrently. You may use ONLY semaphores for this purpose. You may NOT
- * disable interrupts or use locks or spinlocks.
+ * Arrivals are combined in a tree, so that no single lock is taken by every
+ * party.  Each leaf of the tree counts the arrivals of up to FAN_IN parties,
+ * and each node above it counts the completions of up to FAN_IN nodes
+ * below.  A thread arrives at a leaf chosen from its identity, moving on to
+ * another leaf if that one is full.  The last thread to arrive at a node
+ * goes on to arrive at its parent, and the others wait at the node.  The
+ * last thread to arrive at the root trips the barrier, runs the barrier
+ * action, and then releases the nodes it completed on its way up, from the
+ * top down.  Each thread released in turn releases the nodes it completed,
+ * so that the work of waking the parties is also spread over the tree.
  *
- * NOTE: The skeleton below reflects some simplifications over the version of
- * this class in the Java API.
+ * Every trip of the barrier starts a new generation.  A reset() breaks the
+ * current generation, so that the threads waiting in it throw
+ * BrokenBarrierException, and the barrier can be used again at once.
+ * Threads that arrive while reset() is running may find their generation
+ * broken too: a thread whose generation has been broken, or that finds a
+ * node already counting a later generation, throws at once rather than
+ * disturb the later arrivals.  If a reset() races with a trip, only one of
+ * them starts the next generation, under a spin lock of the barrier; if the
+ * reset() wins, the tripped generation is broken for all its parties.
  */
 public class CyclicBarrier {
 
-    // Number of parties
-    private int mParties = 0;
+    /** Number of parties, or of nodes, whose arrivals each node combines. */
+    private static final int FAN_IN = 4;
 
-    private int mNoOfWaitingParties = 0;
-    // Barrier action to be executed when barrier is tripped
-    private Runnable mBarrierAction = null;
+    /** Number of parties. */
+    private final int parties;
 
-    private boolean mIsBroken = false;
+    /** Barrier action to be executed when barrier is tripped, or null. */
+    private final Runnable barrierAction;
 
-    private Semaphore mSemaphoreForWaitingParties = null;
-    private Semaphore mSemaphoreForExecution = null;
-    private Semaphore mSemaphoreForReset = null;
-    
-    List<String> mThreads = new ArrayList<String>();
+    /** The leaves of the tree, where the parties arrive. */
+    private final Node[] leaves;
+
+    /** All the nodes of the tree, leaves first and root last. */
+    private final List<Node> nodes = new ArrayList<Node>();
+
+    /** The current generation. */
+    private volatile Generation generation = new Generation(0);
+
+    /**
+     * Spin lock under which generation is replaced, so that a trip and a
+     * reset() that race each other start only one new generation.
+     */
+    private final SpinLock generationLock =
+	    new SpinLock("barrier generation lock");
+
+    /** Did reset() break a generation since the barrier last tripped? */
+    private volatile boolean broken;
 
     /** Class of exceptions thrown in case of a broken barrier. */
+    @SuppressWarnings("serial")
     public static class BrokenBarrierException extends Exception {
     }
 
+    /**
+     * One use of the barrier, from one trip to the next.
+     */
+    private static class Generation {
+
+	/** The number of this generation, counting from 0. */
+	final int number;
+
+	/** Set when reset() breaks this generation. */
+	boolean broken;
+
+	/** Arrival index computed for the thread that tripped the barrier. */
+	int lastIndex;
+
+	/**
+	 * Initialize a generation.
+	 *
+	 * @param number  The number of the generation.
+	 */
+	Generation(int number) {
+	    this.number = number;
+	}
+    }
+
+    /**
+     * A node of the combining tree.
+     */
+    private static class Node {
+
+	/** The parent of this node, or null for the root. */
+	Node parent;
+
+	/** Number of arrivals that complete this node. */
+	final int expected;
+
+	/** For a leaf, the arrival slot of its first party. */
+	final int offset;
+
+	/** The generation whose arrivals are being counted. */
+	int generation;
+
+	/** Number of arrivals so far in that generation. */
+	int arrived;
+
+	/** The latest generation whose threads waiting here were released. */
+	int released = -1;
+
+	/** Threads waiting here to be released. */
+	final FIFOQueue<NachosThread> waiting = new FIFOQueue<NachosThread>();
+
+	/** Spin lock protecting the node. */
+	final SpinLock spinLock;
+
+	/**
+	 * Initialize a node.
+	 *
+	 * @param expected  Number of arrivals that complete the node.
+	 * @param offset  For a leaf, the arrival slot of its first party.
+	 * @param name  Name for the spin lock.
+	 */
+	Node(int expected, int offset, String name) {
+	    this.expected = expected;
+	    this.offset = offset;
+	    spinLock = new SpinLock(name);
+	}
+    }
+
     /**
      * Creates a new CyclicBarrier that will trip when the given number of
      * parties (threads) are waiting upon it, and does not perform a predefined
@@ -57,13 +149,7 @@ public class CyclicBarrier {
      *            The number of parties.
      */
     public CyclicBarrier(int parties) {
-	if (parties <= 0)
-	    throw new IllegalArgumentException();
-	this.mParties = parties;
-	mNoOfWaitingParties = parties;
-	mSemaphoreForWaitingParties = new Semaphore("Waiting_Parties", 1);
-	mSemaphoreForExecution = new Semaphore("Executing_Parties", 0);
-	mSemaphoreForReset = new Semaphore("Reset_Barrier", 1);
+	this(parties, null);
     }
 
     /**
@@ -79,12 +165,29 @@ public class CyclicBarrier {
      *            performed by the last thread entering the barrier.
      */
     public CyclicBarrier(int parties, Runnable barrierAction) {
-	this.mParties = parties;
-	mNoOfWaitingParties = parties;
-	this.mBarrierAction = barrierAction;
-	mSemaphoreForWaitingParties = new Semaphore("Waiting_Parties", 1);
-	mSemaphoreForExecution = new Semaphore("Executing_Parties", 0);
-	mSemaphoreForReset = new Semaphore("Reset_Barrier", 1);
+	if (parties <= 0)
+	    throw new IllegalArgumentException();
+	this.parties = parties;
+	this.barrierAction = barrierAction;
+
+	List<Node> level = new ArrayList<Node>();
+	for (int offset = 0; offset < parties; offset += FAN_IN)
+	    level.add(new Node(Math.min(FAN_IN, parties - offset), offset,
+		    "barrier leaf " + offset / FAN_IN));
+	leaves = level.toArray(new Node[level.size()]);
+	nodes.addAll(level);
+	while (level.size() > 1) {
+	    List<Node> above = new ArrayList<Node>();
+	    for (int i = 0; i < level.size(); i += FAN_IN) {
+		int children = Math.min(FAN_IN, level.size() - i);
+		Node node = new Node(children, 0, "barrier node");
+		for (int j = i; j < i + children; j++)
+		    level.get(j).parent = node;
+		above.add(node);
+	    }
+	    nodes.addAll(above);
+	    level = above;
+	}
     }
 
     /**
@@ -92,77 +195,179 @@ public class CyclicBarrier {
      * current thread is not the last to arrive then it blocks until either the
      * last thread arrives or some other thread invokes reset() on this barrier.
      *
-     * @return The arrival index of the current thread, where index getParties()
-     *         - 1 indicates the first to arrive and zero indicates the last to
-     *         arrive.
+     * @return The arrival index of the current thread, a different number
+     *         between 0 and getParties() - 1 for each party, where zero
+     *         indicates the last to arrive.  The other indices follow the
+     *         order of arrival at each leaf of the tree, not overall.
      * @throws BrokenBarrierException
      *             in case this barrier is broken.
      * @throws InterruptedException
      */
     public int await() throws BrokenBarrierException, InterruptedException {
-	// Check is barrier is tripped
-	if (mIsBroken)
-	    throw new BrokenBarrierException();
-	
-	// Access is given only to one thread at a time, Semaphore with 1 permit
-	mSemaphoreForWaitingParties.P();
-
-	// If max no of parties arrived, break the barrier and run the barrier command if not null
-	if (mNoOfWaitingParties == 1) {
-	    for(int i = 0; i < mParties-1; i++) {
-		mSemaphoreForExecution.V();
+	NachosThread currentThread = NachosThread.currentThread();
+	Generation gen = generation;
+	List<Node> completed = new ArrayList<Node>();
+
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+
+	// Arrive at the first leaf, starting from our own, that has room.
+	int start = (System.identityHashCode(currentThread) & 0x7fffffff)
+		% leaves.length;
+	Node node = null;
+	for (int i = 0; i < leaves.length; i++) {
+	    node = leaves[(start + i) % leaves.length];
+	    node.spinLock.acquire();
+	    if (node.generation != gen.number || node.arrived < node.expected)
+		break;
+	    node.spinLock.release();
+	    node = null;
+	}
+	Debug.ASSERT(node != null, "More than " + parties
+		+ " parties at a barrier");
+
+	// Climb while we are the last to arrive, then wait to be released.
+	int index = -1;
+	boolean tripped = false;
+	while (true) {
+	    if (gen.broken || node.generation > gen.number) {
+		// A reset() has started a later generation, which may already
+		// be counting arrivals here; ours is over.
+		node.spinLock.release();
+		CPU.setLevel(oldLevel);
+		for (int i = completed.size() - 1; i >= 0; i--)
+		    release(completed.get(i), gen.number);
+		throw new BrokenBarrierException();
+	    }
+	    if (node.generation < gen.number) {
+		node.generation = gen.number;	// first arrival of generation
+		node.arrived = 0;
+	    }
+	    if (index < 0)
+		index = parties - 1 - (node.offset + node.arrived);
+	    node.arrived++;
+	    if (node.arrived < node.expected) {
+		while (node.released < gen.number && !gen.broken) {
+		    node.waiting.offer(currentThread);
+		    Nachos.scheduler.sleepThread(node.spinLock);
+		    node.spinLock.acquire();
+		}
+		node.spinLock.release();
+		break;
 	    }
-	    mIsBroken = true;
-	    if (null != mBarrierAction)
-		mBarrierAction.run();
-	} else {
-	    --mNoOfWaitingParties;
+	    node.spinLock.release();
+	    completed.add(node);
+	    if (node.parent == null) {
+		tripped = true;
+		break;
+	    }
+	    node = node.parent;
+	    node.spinLock.acquire();
+	}
+	CPU.setLevel(oldLevel);
+
+	if (tripped) {
+	    Debug.println('s', "Barrier tripped by " + currentThread.name);
+	    if (barrierAction != null)
+		barrierAction.run();
+	    gen.lastIndex = index;
+	    index = 0;
+	    if (nextGeneration(gen))
+		broken = false;
+	    else
+		gen.broken = true;	// a reset() got in first
+	} else if (index == 0) {
+	    index = gen.lastIndex;
 	}
 
-	// Release the Semaphore with 1 permit
-	mSemaphoreForWaitingParties.V();
-	if(!mIsBroken)
-	    // Semaphore with 0 permit. Makes threads wait at the barrier
-	    mSemaphoreForExecution.P();
-	return mNoOfWaitingParties;
+	// Release the nodes we completed, from the top down.
+	for (int i = completed.size() - 1; i >= 0; i--)
+	    release(completed.get(i), gen.number);
+	if (gen.broken)
+	    throw new BrokenBarrierException();
+	return index;
+    }
+
+    /**
+     * Start the generation after a given one, unless another thread has
+     * already started it.
+     *
+     * @param gen  The generation that is over.
+     * @return true if the next generation was started by this call.
+     */
+    private boolean nextGeneration(Generation gen) {
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	generationLock.acquire();
+	boolean current = generation == gen;
+	if (current)
+	    generation = new Generation(gen.number + 1);
+	generationLock.release();
+	CPU.setLevel(oldLevel);
+	return current;
+    }
+
+    /**
+     * Release the threads waiting at a node in a generation.
+     *
+     * @param node  The node.
+     * @param number  The number of the generation.
+     */
+    private static void release(Node node, int number) {
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	node.spinLock.acquire();
+	if (node.released < number)
+	    node.released = number;
+	NachosThread thread;
+	while ((thread = node.waiting.poll()) != null)
+	    Nachos.scheduler.readyToRun(thread);
+	node.spinLock.release();
+	CPU.setLevel(oldLevel);
     }
 
     /**
      * Returns the number of parties currently waiting at the barrier.
-     * 
+     *
      * @return the number of parties currently waiting at the barrier.
      */
     public int getNumberWaiting() {
-	return mParties - mNoOfWaitingParties;
+	int waiting = 0;
+	for (Node node : nodes)
+	    waiting += node.waiting.size();
+	return waiting;
     }
 
     /**
      * Returns the number of parties required to trip this barrier.
-     * 
+     *
      * @return the number of parties required to trip this barrier.
      */
     public int getParties() {
-	return mParties;
+	return parties;
     }
 
     /**
      * Queries if this barrier is in a broken state.
-     * 
+     *
      * @return true if this barrier was reset while one or more threads were
-     *         blocked in await(), false otherwise.
+     *         blocked in await(), and has not tripped since, false otherwise.
      */
     public boolean isBroken() {
-	return mIsBroken;
+	return broken;
     }
 
     /**
-     * Resets the barrier to its initial state.
+     * Resets the barrier to its initial state.  Any threads waiting at the
+     * barrier throw BrokenBarrierException.
      */
     public void reset() {
-	mSemaphoreForReset.P();
-	mIsBroken = false;
-	mNoOfWaitingParties = mParties;
-	mSemaphoreForReset.V();
+	Generation gen;
+	do {
+	    gen = generation;
+	} while (!nextGeneration(gen));
+	gen.broken = true;
+	if (getNumberWaiting() > 0)
+	    broken = true;
+	for (Node node : nodes)
+	    release(node, gen.number);
     }
 
     /**
@@ -180,7 +385,7 @@ public class CyclicBarrier {
 
     /**
      * Run a demonstration of the CyclicBarrier facility.
-     * 
+     *
      * @param args
      *            Arguments from the "command line" that can be used to modify
      *            features of the demonstration such as the number of parties,
@@ -197,15 +402,9 @@ public class CyclicBarrier {
      *            code.
      */
     public static void demo(String[] args) {
-	// Very simple example of the intended use of the CyclicBarrier
-	// facility: you should replace this code with something much
-	// more interesting.
-	int noOfParties = 5;
-	int totalWork = 5;
-	noOfParties = Integer.valueOf(args[0]);
-	totalWork = Integer.valueOf(args[1]);
-	final int t = totalWork;
-	final CyclicBarrier barrier = new CyclicBarrier(5);
+	int noOfParties = Integer.valueOf(args[0]);
+	final int t = Integer.valueOf(args[1]);
+	final CyclicBarrier barrier = new CyclicBarrier(noOfParties);
 	Debug.println('1', "Demo starting");
 	for(int i = 0; i < noOfParties; i++) {
 	    NachosThread thread =
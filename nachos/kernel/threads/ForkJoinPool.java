@@ -0,0 +1,404 @@
+package nachos.kernel.threads;
+
+import nachos.Debug;
+import nachos.kernel.Nachos;
+import nachos.machine.CPU;
+import nachos.machine.NachosThread;
+import nachos.util.FIFOQueue;
+import nachos.util.RingQueue;
+
+/**
+ * This class runs ForkJoinTasks on a pool of worker threads, one for each
+ * CPU, for divide-and-conquer work in the kernel.  It is modeled after the
+ * Java API class <CODE>java.util.concurrent.ForkJoinPool</CODE>.
+ *
+ * Each worker has a deque of tasks.  A task forked by a worker is pushed
+ * on the bottom of its own deque, and the worker pops tasks from the
+ * bottom too, so that it works depth-first on the most recently split
+ * work.  A worker whose deque is empty steals from the top of another
+ * worker's deque, which holds the oldest, and so usually the largest,
+ * pieces of work.  Tasks from threads outside the pool go into a shared
+ * submission queue, a lock-free RingQueue.  A worker that finds no work
+ * anywhere sleeps until a task is forked or submitted.
+ *
+ * Each deque has its own spin lock, so that the owner and a thief only
+ * contend when they meet; the pool spin lock is only taken by workers
+ * going to sleep or being woken up.
+ */
+public class ForkJoinPool {
+
+    /** Initial number of slots in a worker's deque. */
+    private static final int INITIAL_DEQUE_SIZE = 32;
+
+    /** Number of submitted tasks that may be waiting for a worker. */
+    private static final int SUBMISSION_CAPACITY = 64;
+
+    /** Printable name useful for debugging. */
+    public final String name;
+
+    /** The worker threads. */
+    private final Worker[] workers;
+
+    /** Tasks submitted by threads outside the pool. */
+    private final RingQueue<ForkJoinTask<?>> submissions =
+	new RingQueue<ForkJoinTask<?>>(SUBMISSION_CAPACITY);
+
+    /** Worker threads sleeping for lack of work. */
+    private final FIFOQueue<Worker> idleWorkers = new FIFOQueue<Worker>();
+
+    /** Number of sleeping worker threads, read without the lock. */
+    private volatile int idleCount;
+
+    /** Has shutdown() been called? */
+    private volatile boolean shutdown;
+
+    /**
+     * Spin lock protecting the sleeping workers in a multiprocessor
+     * setting.
+     */
+    private final SpinLock spinLock;
+
+    /**
+     * Initialize a pool with one worker thread for each CPU.
+     *
+     * @param debugName An arbitrary name, useful for debugging.
+     */
+    public ForkJoinPool(String debugName) {
+	this(debugName, Nachos.options.NUM_CPUS);
+    }
+
+    /**
+     * Initialize a pool with a given number of worker threads.
+     *
+     * @param debugName An arbitrary name, useful for debugging.
+     * @param parallelism The number of worker threads.
+     */
+    public ForkJoinPool(String debugName, int parallelism) {
+	if (parallelism <= 0)
+	    throw new IllegalArgumentException();
+	name = debugName;
+	spinLock = new SpinLock(name + " spin lock");
+	workers = new Worker[parallelism];
+	for (int i = 0; i < parallelism; i++)
+	    workers[i] = new Worker(this, i);
+	for (int i = 0; i < parallelism; i++)
+	    Nachos.scheduler.readyToRun(workers[i]);
+    }
+
+    /**
+     * Submit a task from a thread outside the pool, wait for it to finish
+     * and return its result.
+     *
+     * @param task The task.
+     * @return the result of the task.
+     */
+    public <V> V invoke(ForkJoinTask<V> task) {
+	execute(task);
+	return task.join();
+    }
+
+    /**
+     * Submit a task from a thread outside the pool.  Its result can be
+     * waited for with join().  If too many submitted tasks are already
+     * waiting, the caller yields until a worker takes one.
+     *
+     * @param task The task.
+     */
+    public void execute(ForkJoinTask<?> task) {
+	if (shutdown)
+	    throw new IllegalStateException(name + " has been shut down");
+	while (!submissions.offer(task))
+	    Nachos.scheduler.yieldThread();
+	signalWork();
+    }
+
+    /**
+     * Stop the worker threads, once they have run out of work.
+     */
+    public void shutdown() {
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	spinLock.acquire();
+	shutdown = true;
+	while (idleCount > 0)
+	    wakeWorker();
+	spinLock.release();
+	CPU.setLevel(oldLevel);
+    }
+
+    /**
+     * Get the number of worker threads.
+     *
+     * @return the number of worker threads.
+     */
+    public int getParallelism() {
+	return workers.length;
+    }
+
+    /**
+     * Get the number of tasks stolen by workers from each other's deques.
+     *
+     * @return the total number of steals.
+     */
+    public long getStealCount() {
+	long steals = 0;
+	for (int i = 0; i < workers.length; i++)
+	    steals += workers[i].steals;
+	return steals;
+    }
+
+    /**
+     * Find a task for a worker whose own deque is empty: steal one from
+     * another worker, trying each in turn starting with the next one, or
+     * else take a submitted one.
+     *
+     * @param thief The worker looking for work.
+     * @return a task, or null if there is none.
+     */
+    private ForkJoinTask<?> scan(Worker thief) {
+	for (int i = 1; i < workers.length; i++) {
+	    Worker victim = workers[(thief.index + i) % workers.length];
+	    if (!victim.isEmpty()) {
+		ForkJoinTask<?> task = victim.steal();
+		if (task != null) {
+		    thief.steals++;
+		    return task;
+		}
+	    }
+	}
+	return submissions.poll();
+    }
+
+    /**
+     * Is there any work waiting in the pool?
+     *
+     * @return true if some deque or the submission queue is not empty.
+     */
+    private boolean hasWork() {
+	if (!submissions.isEmpty())
+	    return true;
+	for (int i = 0; i < workers.length; i++) {
+	    if (!workers[i].isEmpty())
+		return true;
+	}
+	return false;
+    }
+
+    /**
+     * Put a worker that has found no work to sleep, unless work has
+     * turned up meanwhile.  The worker counts itself as idle before
+     * looking again, so that a thread that pushes a task afterwards is
+     * sure to see it and wake it up.
+     *
+     * @param worker The calling worker.
+     * @return false if the pool has been shut down and the worker
+     * should stop.
+     */
+    private boolean idle(Worker worker) {
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	spinLock.acquire();
+	if (shutdown) {
+	    spinLock.release();
+	    CPU.setLevel(oldLevel);
+	    return false;
+	}
+	idleWorkers.offer(worker);
+	idleCount++;
+	if (hasWork()) {
+	    idleWorkers.remove(worker);
+	    idleCount--;
+	    spinLock.release();
+	} else {
+	    Debug.println('t', "Worker " + worker.name + " is idle");
+	    Nachos.scheduler.sleepThread(spinLock);
+	}
+	CPU.setLevel(oldLevel);
+	return true;
+    }
+
+    /**
+     * Wake up one sleeping worker, if there is one, because work has been
+     * added.  Called with the spin lock held.
+     */
+    private void wakeWorker() {
+	Worker worker = idleWorkers.poll();
+	if (worker != null) {
+	    idleCount--;
+	    Nachos.scheduler.readyToRun(worker);
+	}
+    }
+
+    /**
+     * Wake up a sleeping worker, if any, after a task has been pushed on
+     * a deque or submitted.
+     */
+    private void signalWork() {
+	if (idleCount > 0) {
+	    int oldLevel = CPU.setLevel(CPU.IntOff);
+	    spinLock.acquire();
+	    wakeWorker();
+	    spinLock.release();
+	    CPU.setLevel(oldLevel);
+	}
+    }
+
+    /**
+     * A worker thread of a ForkJoinPool, with its deque of tasks.  The
+     * deque is a circular array, indexed by ever-increasing top and bottom
+     * counters, that doubles in size when it is full.
+     */
+    static class Worker extends NachosThread {
+
+	/** The pool this worker belongs to. */
+	private final ForkJoinPool pool;
+
+	/** The index of this worker in the pool. */
+	private final int index;
+
+	/** The slots of the deque. */
+	private ForkJoinTask<?>[] deque = new ForkJoinTask<?>[INITIAL_DEQUE_SIZE];
+
+	/** Counter of the oldest task in the deque, where thieves steal. */
+	private volatile int top;
+
+	/** Counter of the slot after the newest task, where the owner works. */
+	private volatile int bottom;
+
+	/** Number of tasks this worker has stolen. */
+	private long steals;
+
+	/** Spin lock protecting the deque. */
+	private final SpinLock dequeLock;
+
+	/**
+	 * Initialize a worker thread.
+	 *
+	 * @param pool The pool the worker belongs to.
+	 * @param index The index of the worker in the pool.
+	 */
+	Worker(final ForkJoinPool pool, int index) {
+	    super(pool.name + " worker " + index);
+	    this.pool = pool;
+	    this.index = index;
+	    dequeLock = new SpinLock(name + " deque lock");
+	    setRunnable(new Runnable() {
+		public void run() {
+		    work();
+		    Nachos.scheduler.finishThread();
+		}
+	    });
+	}
+
+	/**
+	 * Body of the worker: run tasks from its own deque, or stolen or
+	 * submitted ones, until the pool is shut down.
+	 */
+	private void work() {
+	    do {
+		ForkJoinTask<?> task;
+		while ((task = pop()) != null || (task = pool.scan(this)) != null)
+		    task.run();
+	    } while (pool.idle(this));
+	}
+
+	/**
+	 * Run queued tasks until a task being joined has finished.  If no
+	 * task can be found, sleep until it has.
+	 *
+	 * @param joined The task being joined.
+	 */
+	void helpUntilDone(ForkJoinTask<?> joined) {
+	    while (!joined.isDone()) {
+		ForkJoinTask<?> task = pop();
+		if (task == null)
+		    task = pool.scan(this);
+		if (task == null) {
+		    joined.awaitDone();
+		    return;
+		}
+		task.run();
+	    }
+	}
+
+	/**
+	 * Is the deque empty?  Read without the lock, so the answer may be
+	 * out of date.
+	 *
+	 * @return true if the deque seems empty.
+	 */
+	boolean isEmpty() {
+	    return top == bottom;
+	}
+
+	/**
+	 * Push a task on the bottom of the deque, and wake up a sleeping
+	 * worker to steal it.
+	 *
+	 * @param task The task.
+	 */
+	void push(ForkJoinTask<?> task) {
+	    int oldLevel = CPU.setLevel(CPU.IntOff);
+	    dequeLock.acquire();
+	    if (bottom - top == deque.length)
+		grow();
+	    deque[bottom & (deque.length - 1)] = task;
+	    bottom++;
+	    dequeLock.release();
+	    CPU.setLevel(oldLevel);
+	    pool.signalWork();
+	}
+
+	/**
+	 * Take the newest task from the bottom of the deque.
+	 *
+	 * @return the task, or null if the deque is empty.
+	 */
+	private ForkJoinTask<?> pop() {
+	    if (isEmpty())
+		return null;
+	    int oldLevel = CPU.setLevel(CPU.IntOff);
+	    dequeLock.acquire();
+	    ForkJoinTask<?> task = null;
+	    if (top != bottom) {
+		bottom--;
+		int slot = bottom & (deque.length - 1);
+		task = deque[slot];
+		deque[slot] = null;
+	    }
+	    dequeLock.release();
+	    CPU.setLevel(oldLevel);
+	    return task;
+	}
+
+	/**
+	 * Take the oldest task from the top of the deque, on behalf of
+	 * another worker.
+	 *
+	 * @return the task, or null if the deque is empty.
+	 */
+	private ForkJoinTask<?> steal() {
+	    int oldLevel = CPU.setLevel(CPU.IntOff);
+	    dequeLock.acquire();
+	    ForkJoinTask<?> task = null;
+	    if (top != bottom) {
+		int slot = top & (deque.length - 1);
+		task = deque[slot];
+		deque[slot] = null;
+		top++;
+	    }
+	    dequeLock.release();
+	    CPU.setLevel(oldLevel);
+	    return task;
+	}
+
+	/**
+	 * Double the size of the deque, which is full.  Called with the
+	 * deque lock held.
+	 */
+	private void grow() {
+	    ForkJoinTask<?>[] larger = new ForkJoinTask<?>[deque.length * 2];
+	    for (int i = top; i != bottom; i++)
+		larger[i & (larger.length - 1)] = deque[i & (deque.length - 1)];
+	    deque = larger;
+	}
+    }
+}
@@ -0,0 +1,169 @@
+package nachos.kernel.threads;
+
+import nachos.kernel.Nachos;
+import nachos.machine.CPU;
+import nachos.machine.NachosThread;
+import nachos.util.FIFOQueue;
+import nachos.util.Queue;
+
+/**
+ * This class defines a task that can be run by a ForkJoinPool, modeled
+ * after the Java API class <CODE>java.util.concurrent.ForkJoinTask</CODE>.
+ * It must be subclassed to override compute(), which typically splits
+ * the work into subtasks, forks all but one of them, computes the last
+ * itself and then joins the others:
+ *
+ *	fork() -- push the task on the deque of the calling worker thread,
+ *		from which it may be stolen by another worker.
+ *
+ *	join() -- wait for the task to finish and return its result.  A
+ *		worker thread that joins a task that is not done runs other
+ *		queued tasks meanwhile, and only sleeps if there are none.
+ *
+ *	invoke() -- run the task in the calling thread.
+ *
+ * The result is published by a volatile flag, so join() of a task that
+ * is already done takes no lock.  A thread that has to sleep in join()
+ * announces itself first, and only then does the thread that finishes
+ * the task take the lock to wake it up.
+ *
+ * If compute() throws a RuntimeException, the task is done all the same:
+ * the exception is recorded, the worker that ran the task goes on to the
+ * next one, and join() and invoke() throw the exception again.
+ *
+ * @param <V> The type of the result.
+ */
+public abstract class ForkJoinTask<V> {
+
+    /** Spin lock protecting the waiters of all tasks. */
+    private static final SpinLock joinLock =
+	new SpinLock("ForkJoinTask join lock");
+
+    /** The result, once the task is done. */
+    private V result;
+
+    /** The exception thrown by compute(), or null if it returned. */
+    private RuntimeException exception;
+
+    /** Has the task finished? */
+    private volatile boolean done;
+
+    /** Has a thread gone to sleep, or is about to, waiting for this task? */
+    private volatile boolean hasWaiters;
+
+    /** Threads sleeping in join(), created when the first one arrives. */
+    private Queue<NachosThread> waiters;
+
+    /**
+     * The computation performed by this task.
+     *
+     * @return the result.
+     */
+    protected abstract V compute();
+
+    /**
+     * Arrange for this task to be run by the pool of the calling worker
+     * thread, which pushes it on its own deque.
+     *
+     * @return this task.
+     * @throws IllegalStateException if the calling thread is not a worker
+     * thread of a ForkJoinPool.
+     */
+    public final ForkJoinTask<V> fork() {
+	NachosThread thread = NachosThread.currentThread();
+	if (!(thread instanceof ForkJoinPool.Worker))
+	    throw new IllegalStateException("fork() outside a ForkJoinPool");
+	((ForkJoinPool.Worker)thread).push(this);
+	return this;
+    }
+
+    /**
+     * Wait for this task to finish, and return its result.  A worker
+     * thread runs other queued tasks while it waits.
+     *
+     * @return the result.
+     * @throws RuntimeException the exception thrown by compute(), if any.
+     */
+    public final V join() {
+	if (!done) {
+	    NachosThread thread = NachosThread.currentThread();
+	    if (thread instanceof ForkJoinPool.Worker)
+		((ForkJoinPool.Worker)thread).helpUntilDone(this);
+	    else
+		awaitDone();
+	}
+	return getResult();
+    }
+
+    /**
+     * Run this task in the calling thread, and return its result.
+     *
+     * @return the result.
+     * @throws RuntimeException the exception thrown by compute(), if any.
+     */
+    public final V invoke() {
+	run();
+	return getResult();
+    }
+
+    /**
+     * Return the result of this task once it is done, or throw the
+     * exception that its computation threw.
+     *
+     * @return the result.
+     */
+    private V getResult() {
+	if (exception != null)
+	    throw exception;
+	return result;
+    }
+
+    /**
+     * Test whether this task has finished.
+     *
+     * @return true if the task has finished.
+     */
+    public final boolean isDone() {
+	return done;
+    }
+
+    /**
+     * Run the computation, record the result, or the exception it threw,
+     * and wake up any threads waiting for it.
+     */
+    final void run() {
+	try {
+	    result = compute();
+	} catch (RuntimeException e) {
+	    exception = e;
+	}
+	done = true;
+	if (hasWaiters) {
+	    int oldLevel = CPU.setLevel(CPU.IntOff);
+	    joinLock.acquire();
+	    NachosThread thread;
+	    while ((thread = waiters.poll()) != null)
+		Nachos.scheduler.readyToRun(thread);
+	    joinLock.release();
+	    CPU.setLevel(oldLevel);
+	}
+    }
+
+    /**
+     * Sleep until this task has finished.
+     */
+    final void awaitDone() {
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	joinLock.acquire();
+	if (waiters == null)
+	    waiters = new FIFOQueue<NachosThread>();
+	hasWaiters = true;
+	while (!done) {
+	    waiters.offer(NachosThread.currentThread());
+	    Nachos.scheduler.sleepThread(joinLock);
+	    joinLock.acquire();
+	}
+	joinLock.release();
+	CPU.setLevel(oldLevel);
+    }
+}
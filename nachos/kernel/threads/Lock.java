@@ -8,6 +8,12 @@
 
 package nachos.kernel.threads;
 
+import java.util.ArrayList;
+import java.util.List;
+
+import nachos.kernel.Nachos;
+import nachos.machine.CPU;
+import nachos.machine.Machine;
 import nachos.machine.NachosThread;
 import nachos.Debug;
 
@@ -23,6 +29,18 @@ import nachos.Debug;
  * In addition, by convention, only the thread that acquired the lock
  * may release it.  As with semaphores, you can't read the lock value
  * (because the value might change immediately after you read it).  
+ *
+ * A thread waiting for a lock lends its scheduling priority to the thread
+ * that holds it, and through that thread to the holder of any lock it is in
+ * turn waiting for, so that a low-priority holder cannot be kept from
+ * releasing the lock by threads of intermediate priority.
+ *
+ * On a multiprocessor, a lock can be "adaptive": a thread that finds the
+ * lock held by a thread that is running on another CPU spins for a while,
+ * in the expectation that the holder will soon release it, rather than
+ * paying for a context switch.  If the holder is not running (for example,
+ * because it is waiting for a disk), or the lock stays busy for too long,
+ * the thread blocks as usual.
  * 
  * NOTE: An implementation of locks and condition variables was not part of
  * the original C++ version of Nachos -- it was part of the student assignments.
@@ -40,18 +58,60 @@ public class Lock {
     /** semaphore used for implementation of lock. */
     private Semaphore sem;
 
-    /** Which thread currently holds this lock? */
-    private volatile NachosThread owner;
+    /**
+     * Which thread currently holds this lock?  Only changed by the scheduler,
+     * with its inheritance lock held.
+     */
+    volatile NachosThread owner;
+
+    /**
+     * Threads waiting to acquire this lock.  Only changed by the scheduler,
+     * with its inheritance lock held; adaptive spinning just checks whether
+     * it is empty.
+     */
+    final List<NachosThread> waiters = new ArrayList<NachosThread>();
+
+    /**
+     * Number of times to spin for the lock while its holder is running on
+     * another CPU, before blocking.  If zero, the lock is not adaptive.
+     */
+    private final int spinLimit;
+
+    /** Number of times an adaptive lock has been acquired while free. */
+    private int freeAcquisitions;
+
+    /** Number of times an adaptive lock has been acquired by spinning. */
+    private int spinAcquisitions;
 
     /**
-     * Initialize a lock.
+     * Number of times the lock has been acquired through the semaphore,
+     * possibly after blocking.
+     */
+    private int semaphoreAcquisitions;
+
+    /**
+     * Initialize a lock, which is adaptive if Nachos.options.LOCK_SPIN_LIMIT
+     * is non-zero.
      *
      *	@param debugName An arbitrary name, useful for debugging.
      */
     public Lock(String debugName) {
+	this(debugName, Nachos.options.LOCK_SPIN_LIMIT);
+    }
+
+    /**
+     * Initialize a lock with a given spin limit.
+     *
+     *	@param debugName An arbitrary name, useful for debugging.
+     *	@param spinLimit Number of times to spin for the lock while its
+     *	holder is running on another CPU, before blocking, or zero to
+     *	always block.
+     */
+    public Lock(String debugName, int spinLimit) {
 	name = debugName;
 	sem = new Semaphore("Semaphore for lock \"" + debugName + "\"", 1);
 	owner = null;
+	this.spinLimit = Machine.NUM_CPUS > 1 ? spinLimit : 0;
     }
 
     /**
@@ -62,13 +122,55 @@ public class Lock {
 	Debug.printf('s', "Acquiring lock %s for thread %s\n",
 		name, NachosThread.currentThread().name);
 
-	sem.P();
-	owner = NachosThread.currentThread();
+	int spins = spinLimit > 0 ? spinForLock() : -1;
+	if(spins >= 0) {
+	    Nachos.scheduler.lockAcquired(this);
+	    if(spins == 0)
+		freeAcquisitions++;
+	    else
+		spinAcquisitions++;
+	} else {
+	    Nachos.scheduler.waitForLock(this);
+	    sem.P();
+	    Nachos.scheduler.lockAcquired(this);
+	    semaphoreAcquisitions++;
+	}
 
 	Debug.printf('s', "Acquired lock %s for thread %s\n",
 		name, NachosThread.currentThread().name);
     }
 
+    /**
+     * Spin, with interrupts enabled, until the lock is free and we manage
+     * to take it, the holder stops running on another CPU, or we reach the
+     * spin limit.  If other threads are already blocked waiting for the
+     * lock, we do not spin, so as not to jump the queue.
+     *
+     * The waiters are looked at without the scheduler's inheritance lock.
+     * This race is benign: a stale answer only makes us spin once more, or
+     * block when we could have spun, and the lock itself is still only
+     * taken through the semaphore.
+     *
+     * @return the number of times we spun before taking the lock, or -1
+     * if we should block for it.
+     */
+    private int spinForLock() {
+	for(int spins = 0; spins <= spinLimit; spins++) {
+	    if(!waiters.isEmpty())
+		return -1;
+	    NachosThread holder = owner;
+	    if(holder == null) {
+		if(sem.tryP())
+		    return spins;
+	    } else if(!Nachos.scheduler.isRunningElsewhere(holder)) {
+		return -1;
+	    }
+	    int oldLevel = CPU.setLevel(CPU.IntOff);	// let time pass
+	    CPU.setLevel(oldLevel);
+	}
+	return -1;
+    }
+
     /**
      * Release the lock that was previously acquired, waking up a
      * waiting thread if necessary.
@@ -81,7 +183,7 @@ public class Lock {
 	Debug.printf('s', "Thread %s dropping lock %s\n",
 		NachosThread.currentThread().name, name);
 
-	owner = null;
+	Nachos.scheduler.lockReleased(this);
 	sem.V();
 
 	Debug.printf('s', "Thread %s dropped lock %s\n",
@@ -97,4 +199,46 @@ public class Lock {
 	return (owner != null && owner == NachosThread.currentThread());
     }
 
+    /**
+     * Get the number of times this adaptive lock has been acquired at the
+     * first attempt, because it was free.
+     *
+     * @return the number of uncontended acquisitions.
+     */
+    public int getFreeAcquisitions() {
+	return freeAcquisitions;
+    }
+
+    /**
+     * Get the number of times this adaptive lock has been acquired after
+     * spinning for a holder running on another CPU.
+     *
+     * @return the number of acquisitions that spinning saved from blocking.
+     */
+    public int getSpinAcquisitions() {
+	return spinAcquisitions;
+    }
+
+    /**
+     * Get the number of times this lock has been acquired through its
+     * semaphore, blocking if it was busy.  For a lock that is not adaptive,
+     * this is every acquisition.
+     *
+     * @return the number of acquisitions through the semaphore.
+     */
+    public int getSemaphoreAcquisitions() {
+	return semaphoreAcquisitions;
+    }
+
+    /**
+     * Describe this lock and how it has been acquired.
+     *
+     * @return a one-line summary.
+     */
+    public String getStatistics() {
+	return name + ": " + freeAcquisitions + " acquired free, "
+		+ spinAcquisitions + " by spinning, " + semaphoreAcquisitions
+		+ " through the semaphore";
+    }
+
 }
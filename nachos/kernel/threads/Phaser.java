@@ -0,0 +1,289 @@
+package nachos.kernel.threads;
+
+import nachos.Debug;
+import nachos.kernel.Nachos;
+import nachos.machine.CPU;
+import nachos.machine.NachosThread;
+import nachos.util.FIFOQueue;
+import nachos.util.Queue;
+
+/**
+ * This class defines a "phaser", a reusable barrier whose number of
+ * parties can change from one phase to the next, modeled after the Java
+ * API class <CODE>java.util.concurrent.Phaser</CODE>.
+ *
+ *	register() -- add a party, which must then arrive in the current
+ *		phase (or deregister) before it can advance.
+ *
+ *	arrive() -- arrive at the current phase without waiting for the
+ *		other parties.
+ *
+ *	arriveAndAwaitAdvance() -- arrive, and wait until all the registered
+ *		parties have arrived.
+ *
+ *	arriveAndDeregister() -- arrive, and stop being a party.
+ *
+ *	awaitAdvance(phase) -- wait until the given phase is over.
+ *
+ * When the last registered party arrives, the phase number is incremented
+ * and the threads waiting for it are woken up.  Before that, onAdvance()
+ * is called, and if it returns true the phaser terminates: from then on
+ * nothing waits, and getPhase() returns a negative number.  By default,
+ * the phaser terminates when the last party deregisters.
+ *
+ * Like Condition, it keeps its own state under a spin lock with interrupts
+ * disabled, and blocks waiting threads with Scheduler.sleepThread().
+ */
+public class Phaser {
+
+    /** Printable name useful for debugging. */
+    public final String name;
+
+    /** The current phase number. */
+    private int phase;
+
+    /** Has the phaser terminated? */
+    private boolean terminated;
+
+    /** Number of registered parties. */
+    private int registered;
+
+    /** Number of registered parties that have arrived in this phase. */
+    private int arrived;
+
+    /** Threads waiting for the current phase to end. */
+    private final Queue<NachosThread> waiting;
+
+    /**
+     * Spin lock used to obtain exclusive access to the phaser state
+     * in a multiprocessor setting.
+     */
+    private final SpinLock spinLock;
+
+    /**
+     * Initialize a phaser.
+     *
+     *	@param debugName An arbitrary name, useful for debugging.
+     *	@param parties The number of parties registered initially.
+     */
+    public Phaser(String debugName, int parties) {
+	if (parties < 0)
+	    throw new IllegalArgumentException();
+	name = debugName;
+	registered = parties;
+	waiting = new FIFOQueue<NachosThread>();
+	spinLock = new SpinLock(name + " spin lock");
+    }
+
+    /**
+     * Add a new party.  If the current phase is about to advance, the
+     * new party takes part in it.
+     *
+     * @return the current phase number, or a negative number if the
+     * phaser has terminated.
+     */
+    public int register() {
+	return bulkRegister(1);
+    }
+
+    /**
+     * Add a number of new parties.
+     *
+     * @param parties The number of parties to add.
+     * @return the current phase number, or a negative number if the
+     * phaser has terminated.
+     */
+    public int bulkRegister(int parties) {
+	if (parties < 0)
+	    throw new IllegalArgumentException();
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	spinLock.acquire();
+	if (!terminated)
+	    registered += parties;
+	int result = currentPhase();
+	spinLock.release();
+	CPU.setLevel(oldLevel);
+	return result;
+    }
+
+    /**
+     * Arrive at the current phase, without waiting for the other parties.
+     *
+     * @return the number of the phase arrived at, or a negative number if
+     * the phaser has terminated.
+     */
+    public int arrive() {
+	return doArrive(false, false);
+    }
+
+    /**
+     * Arrive at the current phase and stop being a party, without waiting
+     * for the other parties.
+     *
+     * @return the number of the phase arrived at, or a negative number if
+     * the phaser has terminated.
+     */
+    public int arriveAndDeregister() {
+	return doArrive(true, false);
+    }
+
+    /**
+     * Arrive at the current phase, and wait for the other parties to
+     * arrive.
+     *
+     * @return the number of the next phase, or a negative number if the
+     * phaser has terminated.
+     */
+    public int arriveAndAwaitAdvance() {
+	return doArrive(false, true);
+    }
+
+    /**
+     * Wait until a phase is over.  Returns at once if the current phase
+     * is a different one, or if the phaser has terminated.
+     *
+     * @param phase The number of the phase, as returned by arrive().
+     * @return the number of the next phase, or a negative number if the
+     * phaser has terminated.
+     */
+    public int awaitAdvance(int phase) {
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	spinLock.acquire();
+	awaitPhase(phase);
+	int result = currentPhase();
+	spinLock.release();
+	CPU.setLevel(oldLevel);
+	return result;
+    }
+
+    /**
+     * Arrive at the current phase, advancing it if we are the last to
+     * arrive, and possibly wait for it to end.
+     *
+     * @param deregister true to stop being a party.
+     * @param wait true to wait for the phase to end.
+     * @return the number of the phase arrived at if not waiting, otherwise
+     * the number of the next phase, or a negative number if the phaser
+     * has terminated.
+     */
+    private int doArrive(boolean deregister, boolean wait) {
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	spinLock.acquire();
+
+	if (terminated) {
+	    spinLock.release();
+	    CPU.setLevel(oldLevel);
+	    return currentPhase();
+	}
+	Debug.ASSERT(arrived < registered,
+		"More parties arrived at " + name + " than are registered");
+	int result = phase;
+	if (deregister)
+	    registered--;
+	else
+	    arrived++;
+	if (arrived == registered)
+	    advance();
+	else if (wait)
+	    awaitPhase(result);
+	if (wait)
+	    result = currentPhase();
+
+	spinLock.release();
+	CPU.setLevel(oldLevel);
+	return result;
+    }
+
+    /**
+     * End the current phase, and wake up the threads waiting for it.
+     * Called with the spin lock held.
+     */
+    private void advance() {
+	Debug.printf('s', "Phaser %s: phase %d over, %d parties\n",
+		name, phase, registered);
+	terminated = onAdvance(phase, registered);
+	phase = (phase + 1) & Integer.MAX_VALUE;
+	arrived = 0;
+	NachosThread thread;
+	while ((thread = waiting.poll()) != null)
+	    Nachos.scheduler.readyToRun(thread);
+    }
+
+    /**
+     * Wait until a phase is over.  Called with interrupts disabled and
+     * the spin lock held, which is held again on return.
+     *
+     * @param phase The number of the phase.
+     */
+    private void awaitPhase(int phase) {
+	while (this.phase == phase && !terminated) {
+	    waiting.offer(NachosThread.currentThread());
+	    Nachos.scheduler.sleepThread(spinLock);
+	    spinLock.acquire();
+	}
+    }
+
+    /**
+     * Get the current phase number, as returned to callers.  Called with
+     * the spin lock held.
+     *
+     * @return the current phase number, or a negative number if the
+     * phaser has terminated.
+     */
+    private int currentPhase() {
+	return terminated ? phase | Integer.MIN_VALUE : phase;
+    }
+
+    /**
+     * Called when a phase ends, before the waiting threads are woken up,
+     * to decide whether the phaser should terminate.  Subclasses may
+     * override it to perform an action between phases; it is called with
+     * interrupts disabled, so it must not block.
+     *
+     * @param phase The number of the phase that is ending.
+     * @param registeredParties The number of registered parties.
+     * @return true if the phaser should terminate.  By default, when no
+     * parties remain registered.
+     */
+    protected boolean onAdvance(int phase, int registeredParties) {
+	return registeredParties == 0;
+    }
+
+    /**
+     * Get the current phase number.
+     *
+     * @return the current phase number, or a negative number if the
+     * phaser has terminated.
+     */
+    public int getPhase() {
+	return currentPhase();
+    }
+
+    /**
+     * Get the number of registered parties.
+     *
+     * @return the number of registered parties.
+     */
+    public int getRegisteredParties() {
+	return registered;
+    }
+
+    /**
+     * Get the number of registered parties that have arrived at the
+     * current phase.
+     *
+     * @return the number of parties that have arrived.
+     */
+    public int getArrivedParties() {
+	return arrived;
+    }
+
+    /**
+     * Test whether the phaser has terminated.
+     *
+     * @return true if the phaser has terminated.
+     */
+    public boolean isTerminated() {
+	return terminated;
+    }
+}
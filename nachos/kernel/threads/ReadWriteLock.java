@@ -0,0 +1,166 @@
+package nachos.kernel.threads;
+
+import nachos.Debug;
+import nachos.kernel.Nachos;
+import nachos.machine.CPU;
+import nachos.machine.NachosThread;
+import nachos.util.FIFOQueue;
+import nachos.util.Queue;
+
+/**
+ * This class defines a "reader-writer lock", for data that is read much
+ * more often than it is changed.  Any number of readers may hold the lock
+ * at once, or else a single writer.
+ *
+ *	acquireRead -- wait until no writer holds or is waiting for the
+ *		lock, then join the readers.
+ *
+ *	releaseRead -- leave the readers, waking up a waiting writer if
+ *		we were the last one.
+ *
+ *	acquireWrite -- wait until no reader or other writer holds the
+ *		lock, then take it.
+ *
+ *	releaseWrite -- release the lock, handing it to the next waiting
+ *		writer if there is one, otherwise to all the waiting readers.
+ *
+ * The lock prefers writers: once a writer is waiting, new readers wait
+ * behind it, so that a steady stream of readers cannot keep a writer out
+ * forever.  The lock is not reentrant, so a thread holding it for reading
+ * must not try to acquire it again, for reading or for writing.
+ *
+ * Like Condition, it keeps its own state under a spin lock with interrupts
+ * disabled, and blocks waiting threads with Scheduler.sleepThread().
+ */
+public class ReadWriteLock {
+
+    /** Printable name useful for debugging. */
+    public final String name;
+
+    /** Number of threads holding the lock for reading. */
+    private int readers;
+
+    /** The thread holding the lock for writing, or null if none. */
+    private NachosThread writer;
+
+    /** Number of writers waiting for the lock. */
+    private int waitingWriters;
+
+    /** Readers blocked waiting for the lock. */
+    private final Queue<NachosThread> readQueue;
+
+    /** Writers blocked waiting for the lock. */
+    private final Queue<NachosThread> writeQueue;
+
+    /**
+     * Spin lock used to obtain exclusive access to the lock state
+     * in a multiprocessor setting.
+     */
+    private final SpinLock spinLock;
+
+    /**
+     * Initialize a reader-writer lock.
+     *
+     *	@param debugName An arbitrary name, useful for debugging.
+     */
+    public ReadWriteLock(String debugName) {
+	name = debugName;
+	readQueue = new FIFOQueue<NachosThread>();
+	writeQueue = new FIFOQueue<NachosThread>();
+	spinLock = new SpinLock(name + " spin lock");
+    }
+
+    /**
+     * Wait until no writer holds or is waiting for the lock, then hold it
+     * for reading.
+     */
+    public void acquireRead() {
+	int oldLevel = CPU.setLevel(CPU.IntOff);	// disable interrupts
+	spinLock.acquire();				// exclude other CPUs
+
+	while (writer != null || waitingWriters > 0) {
+	    Debug.printf('s', "Thread %s waiting to read %s\n",
+		    NachosThread.currentThread().name, name);
+	    readQueue.offer(NachosThread.currentThread());
+	    Nachos.scheduler.sleepThread(spinLock);
+	    spinLock.acquire();				// restore exclusion
+	}
+	readers++;
+
+	spinLock.release();				// release exclusion
+	CPU.setLevel(oldLevel);				// restore interrupts
+    }
+
+    /**
+     * Stop holding the lock for reading.  The last reader out wakes up a
+     * waiting writer, if there is one.
+     */
+    public void releaseRead() {
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	spinLock.acquire();
+
+	Debug.ASSERT(readers > 0, "Releasing " + name + " without reading it");
+	if (--readers == 0) {
+	    NachosThread thread = writeQueue.poll();
+	    if (thread != null)
+		Nachos.scheduler.readyToRun(thread);
+	}
+
+	spinLock.release();
+	CPU.setLevel(oldLevel);
+    }
+
+    /**
+     * Wait until no reader or other writer holds the lock, then hold it
+     * for writing.
+     */
+    public void acquireWrite() {
+	int oldLevel = CPU.setLevel(CPU.IntOff);	// disable interrupts
+	spinLock.acquire();				// exclude other CPUs
+
+	waitingWriters++;
+	while (writer != null || readers > 0) {
+	    Debug.printf('s', "Thread %s waiting to write %s\n",
+		    NachosThread.currentThread().name, name);
+	    writeQueue.offer(NachosThread.currentThread());
+	    Nachos.scheduler.sleepThread(spinLock);
+	    spinLock.acquire();				// restore exclusion
+	}
+	waitingWriters--;
+	writer = NachosThread.currentThread();
+
+	spinLock.release();				// release exclusion
+	CPU.setLevel(oldLevel);				// restore interrupts
+    }
+
+    /**
+     * Stop holding the lock for writing.  The next waiting writer, if
+     * there is one, is woken up; otherwise all the waiting readers are.
+     */
+    public void releaseWrite() {
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	spinLock.acquire();
+
+	Debug.ASSERT(writer == NachosThread.currentThread(),
+		"A thread that doesn't hold " + name + " tried to release it");
+	writer = null;
+	NachosThread thread = writeQueue.poll();
+	if (thread != null) {
+	    Nachos.scheduler.readyToRun(thread);
+	} else {
+	    while ((thread = readQueue.poll()) != null)
+		Nachos.scheduler.readyToRun(thread);
+	}
+
+	spinLock.release();
+	CPU.setLevel(oldLevel);
+    }
+
+    /**
+     * A predicate that determines whether or not the lock is held for
+     * writing by the current thread.  Used for sanity checks.
+     */
+    public boolean isWriteHeldByCurrentThread() {
+	return writer != null && writer == NachosThread.currentThread();
+    }
+}
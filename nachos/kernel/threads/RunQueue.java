@@ -0,0 +1,473 @@
+// RunQueue.java
+//
+// Copyright (c) 2003 State University of New York at Stony Brook.
+// All rights reserved.  See the COPYRIGHT file for copyright notice and
+// limitation of liability and disclaimer of warranty provisions.
+
+package nachos.kernel.threads;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeSet;
+
+import nachos.Debug;
+import nachos.machine.CPU;
+import nachos.machine.NachosThread;
+import nachos.machine.Releasable;
+import nachos.util.FIFOQueue;
+
+/**
+ * A queue of threads that are ready to run on one particular CPU.
+ * Each CPU owns one of these, together with the spin lock that protects it,
+ * so that CPUs scheduling from their own queues do not contend with each
+ * other.  A CPU that runs out of work may "steal" a thread from the queue
+ * of another CPU, by acquiring that queue's lock.
+ *
+ * Threads are kept at one of a fixed number of levels, and are removed
+ * from the lowest-numbered non-empty level first.  Within a level, the
+ * order is first-in, first-out.  A bitmap records which levels are
+ * non-empty, so that finding the next thread is a single find-first-set
+ * operation, regardless of the number of levels.
+ *
+ * Alternatively, a queue may be "keyed", in which case the threads are kept
+ * in a balanced tree ordered by a key in their scheduling state (for example,
+ * a stride scheduling pass value), and the thread with the smallest key is
+ * removed first.  Threads with equal keys are removed first-in, first-out.
+ *
+ * In either case, real-time threads that have budget left are kept apart,
+ * ordered by absolute deadline, and are always removed before any others.
+ * After them come threads placed here to run alongside the other members of
+ * their gang, first-in, first-out.
+ *
+ * Each thread may be restricted to a set of CPUs by its hard affinity mask.
+ * A thread that is not allowed to run on the CPU that is taking threads from
+ * a queue is passed over, so that it stays in the queue for some other CPU.
+ *
+ * All methods except size() assume that interrupts are disabled and that
+ * the lock for this queue is held by the caller.
+ */
+class RunQueue {
+
+    /** Maximum number of levels, limited by the width of the bitmap. */
+    static final int MAX_LEVELS = Long.SIZE;
+
+    /** The CPU that owns this queue. */
+    final CPU cpu;
+
+    /** Spin lock for mutually exclusive access to this queue. */
+    final SpinLock lock;
+
+    /**
+     * Releases both the lock on this queue and the scheduler's idle-CPU
+     * lock, for use when the owning CPU goes idle.
+     */
+    final Releasable idleRelease;
+
+    /**
+     * The thread currently running on the CPU, or null if the CPU is idle.
+     * Interrupt handlers do not run in the context of the interrupted thread,
+     * so this is how the timer interrupt handler finds the thread to charge.
+     */
+    volatile NachosThread running;
+
+    /**
+     * Is the time-slice timer of the owning CPU running?  Only used in
+     * tickless mode, in which the timer is stopped when it is not needed.
+     * Only changed with the lock on this queue held.
+     */
+    boolean ticking;
+
+    /**
+     * Number of times a thread that last ran on another CPU has been
+     * dispatched on this CPU.  Only changed on behalf of the owning CPU,
+     * either by the CPU itself or while it is idle.
+     */
+    int migrations;
+
+    /**
+     * Number of threads the load balancer has moved to this queue from
+     * other queues.  Only changed with the scheduler's balance lock held.
+     */
+    int balanced;
+
+    /**
+     * Recent load of the owning CPU, as a decaying average of the number of
+     * threads waiting plus the fraction of the time the CPU was busy, in
+     * units of 1/Scheduler.LOAD_SCALE of a thread.  Only used with the
+     * scheduler's balance lock held.
+     */
+    int load;
+
+    /** Busy ticks of the owning CPU at the last load-balancing pass. */
+    long lastBusyTicks;
+
+    /**
+     * Total density of the real-time threads admitted to the owning CPU, in
+     * parts per million.  Only changed with the scheduler's real-time lock
+     * held.
+     */
+    int realTimeLoad;
+
+    /**
+     * Threads found in this queue that are not allowed to run on the owning
+     * CPU, waiting to be moved to another queue.  Only used by the owning CPU.
+     */
+    final List<SchedulingInfo> strays = new ArrayList<SchedulingInfo>();
+
+    /**
+     * The smallest key that a thread added to a keyed queue may have: the
+     * largest key of any thread removed from the queue so far.  Threads that
+     * have not run for a while are brought up to this, so that they cannot
+     * monopolize the CPU to catch up.
+     */
+    long minKey;
+
+    /** Orders scheduling state by key, then by order of arrival. */
+    private static final Comparator<SchedulingInfo> KEY_ORDER =
+	    new Comparator<SchedulingInfo>() {
+	public int compare(SchedulingInfo a, SchedulingInfo b) {
+	    if(a.key != b.key)
+		return a.key < b.key ? -1 : 1;
+	    return a.seq < b.seq ? -1 : a.seq == b.seq ? 0 : 1;
+	}
+    };
+
+    /** Orders scheduling state by deadline, then by order of arrival. */
+    private static final Comparator<SchedulingInfo> DEADLINE_ORDER =
+	    new Comparator<SchedulingInfo>() {
+	public int compare(SchedulingInfo a, SchedulingInfo b) {
+	    if(a.deadline != b.deadline)
+		return a.deadline < b.deadline ? -1 : 1;
+	    return a.seq < b.seq ? -1 : a.seq == b.seq ? 0 : 1;
+	}
+    };
+
+    /** The ready real-time threads, earliest deadline first. */
+    private final TreeSet<SchedulingInfo> realTime =
+	    new TreeSet<SchedulingInfo>(DEADLINE_ORDER);
+
+    /** Number of threads in realTime, readable without the lock. */
+    private volatile int realTimeSize;
+
+    /** Threads placed here to be co-scheduled with their gangs. */
+    private final FIFOQueue<SchedulingInfo> coscheduled =
+	    new FIFOQueue<SchedulingInfo>();
+
+    /** Number of threads in coscheduled, readable without the lock. */
+    private volatile int coscheduledSize;
+
+    /** The scheduling state of the ready threads, one FIFO per level. */
+    private final FIFOQueue<SchedulingInfo>[] levels;
+
+    /** The ready threads ordered by key, or null if the queue is not keyed. */
+    private final TreeSet<SchedulingInfo> ordered;
+
+    /** Arrival number for the next thread added to a keyed queue. */
+    private long nextSeq;
+
+    /** Bit i is set if and only if levels[i] is non-empty. */
+    private long readyLevels;
+
+    /**
+     * Number of threads currently in this queue.  This is volatile so that
+     * other CPUs can look for a queue to steal from without taking its lock.
+     */
+    private volatile int size;
+
+    /**
+     * Initialize an empty run queue for a specified CPU.
+     *
+     * @param cpu  The CPU that owns the queue.
+     * @param numLevels  The number of levels, at most MAX_LEVELS.
+     * @param keyed  If true, threads are ordered by key rather than by
+     * level, and numLevels is ignored.
+     * @param idleLock  The scheduler lock that protects the idle CPU list.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    RunQueue(CPU cpu, int numLevels, boolean keyed, final SpinLock idleLock) {
+	Debug.ASSERT(numLevels > 0 && numLevels <= MAX_LEVELS,
+		"Bad number of run queue levels: " + numLevels);
+	this.cpu = cpu;
+	lock = new SpinLock(cpu.name + " run queue");
+	levels = new FIFOQueue[numLevels];
+	for(int i = 0; i < numLevels; i++)
+	    levels[i] = new FIFOQueue<SchedulingInfo>();
+	ordered = keyed ? new TreeSet<SchedulingInfo>(KEY_ORDER) : null;
+	idleRelease = new Releasable() {
+	    public void release() {
+		lock.release();
+		idleLock.release();
+	    }
+	};
+    }
+
+    /**
+     * Add a thread at the end of the specified level or, if the queue is
+     * keyed, in order of its key.  A real-time thread with budget left is
+     * added in order of its deadline instead, and a thread that is being
+     * co-scheduled with its gang is added ahead of all other threads except
+     * real-time ones.  The key and deadline must not change while the thread
+     * is in the queue.
+     *
+     * @param info  The scheduling state of the thread to add.
+     * @param level  The level at which to add the thread.
+     */
+    void offer(SchedulingInfo info, int level) {
+	Debug.ASSERT(CPU.getLevel() == CPU.IntOff && lock.isLocked());
+	if(info.hasBudget()) {
+	    info.seq = nextSeq++;
+	    realTime.add(info);
+	    realTimeSize++;
+	} else if(info.coscheduled) {
+	    coscheduled.offer(info);
+	    coscheduledSize++;
+	} else if(ordered != null) {
+	    info.seq = nextSeq++;
+	    ordered.add(info);
+	} else {
+	    levels[level].offer(info);
+	    readyLevels |= 1L << level;
+	}
+	size++;
+    }
+
+    /**
+     * Remove and return the first thread at the lowest non-empty level that
+     * is allowed to run on a specified CPU.  Threads that are not allowed to
+     * run there are skipped, unless a list is supplied for them, in which
+     * case any such threads found at the front of a level are removed and
+     * added to the list, so that the caller can move them elsewhere.
+     *
+     * @param unit  The unit number of the CPU that is to run the thread.
+     * @param evicted  If non-null, a list to which threads that are not
+     * allowed to run on the CPU are moved as they are found.
+     * @return the scheduling state of the thread removed, or null if the
+     * queue has no thread that may run on the CPU.
+     */
+    SchedulingInfo poll(int unit, List<SchedulingInfo> evicted) {
+	Debug.ASSERT(CPU.getLevel() == CPU.IntOff && lock.isLocked());
+	if(realTimeSize > 0) {
+	    SchedulingInfo result = pollOrdered(realTime, unit, evicted);
+	    realTimeSize = realTime.size();
+	    if(result != null)
+		return result;
+	}
+	if(coscheduledSize > 0) {
+	    SchedulingInfo result = pollCoscheduled(unit, evicted);
+	    coscheduledSize = coscheduled.size();
+	    if(result != null)
+		return result;
+	}
+	if(ordered != null)
+	    return pollOrdered(ordered, unit, evicted);
+	long rest = readyLevels;
+	while(rest != 0) {
+	    int level = Long.numberOfTrailingZeros(rest);
+	    rest &= ~(1L << level);
+	    FIFOQueue<SchedulingInfo> queue = levels[level];
+	    SchedulingInfo result = null;
+	    if(evicted != null) {
+		while(!queue.isEmpty() && !queue.peek().allows(unit)) {
+		    evicted.add(queue.poll());
+		    size--;
+		}
+		result = queue.poll();
+	    } else {
+		Iterator<SchedulingInfo> it = queue.iterator();
+		while(it.hasNext()) {
+		    SchedulingInfo info = it.next();
+		    if(info.allows(unit)) {
+			it.remove();
+			result = info;
+			break;
+		    }
+		}
+	    }
+	    if(queue.isEmpty())
+		readyLevels &= ~(1L << level);
+	    if(result != null) {
+		size--;
+		return result;
+	    }
+	}
+	return null;
+    }
+
+    /**
+     * Remove and return the first thread in an ordered set that is allowed to
+     * run on a specified CPU.  The other parameters are as for poll().
+     *
+     * @param set  Either the set of real-time threads or the keyed threads.
+     * @param unit  The unit number of the CPU that is to run the thread.
+     * @param evicted  If non-null, a list to which threads that are not
+     * allowed to run on the CPU are moved as they are found.
+     * @return the scheduling state of the thread removed, or null.
+     */
+    private SchedulingInfo pollOrdered(TreeSet<SchedulingInfo> set, int unit,
+	    List<SchedulingInfo> evicted) {
+	Iterator<SchedulingInfo> it = set.iterator();
+	while(it.hasNext()) {
+	    SchedulingInfo info = it.next();
+	    if(info.allows(unit)) {
+		it.remove();
+		size--;
+		if(set == ordered && info.key > minKey)
+		    minKey = info.key;
+		return info;
+	    }
+	    if(evicted != null) {
+		it.remove();
+		size--;
+		evicted.add(info);
+	    }
+	}
+	return null;
+    }
+
+    /**
+     * Remove and return the first thread being co-scheduled with its gang
+     * that is allowed to run on a specified CPU.  The parameters are as for
+     * poll().  A thread that is removed, for whatever reason, is no longer
+     * being co-scheduled.
+     *
+     * @param unit  The unit number of the CPU that is to run the thread.
+     * @param evicted  If non-null, a list to which threads that are not
+     * allowed to run on the CPU are moved as they are found.
+     * @return the scheduling state of the thread removed, or null.
+     */
+    private SchedulingInfo pollCoscheduled(int unit,
+	    List<SchedulingInfo> evicted) {
+	Iterator<SchedulingInfo> it = coscheduled.iterator();
+	while(it.hasNext()) {
+	    SchedulingInfo info = it.next();
+	    if(info.allows(unit) || evicted != null) {
+		it.remove();
+		size--;
+		info.coscheduled = false;
+		if(info.allows(unit))
+		    return info;
+		evicted.add(info);
+	    }
+	}
+	return null;
+    }
+
+    /**
+     * Determine whether a particular thread is in this queue.
+     *
+     * @param info  The scheduling state of the thread.
+     * @return true if the thread is in the queue.
+     */
+    boolean contains(SchedulingInfo info) {
+	Debug.ASSERT(CPU.getLevel() == CPU.IntOff && lock.isLocked());
+	if(info.hasBudget())
+	    return realTime.contains(info);
+	if(info.coscheduled)
+	    return coscheduled.contains(info);
+	if(ordered != null)
+	    return ordered.contains(info);
+	for(FIFOQueue<SchedulingInfo> level : levels) {
+	    if(level.contains(info))
+		return true;
+	}
+	return false;
+    }
+
+    /**
+     * Remove a particular thread from this queue, if it is there.
+     *
+     * @param info  The scheduling state of the thread to remove.
+     * @return true if the thread was removed, false if it was not in the
+     * queue.
+     */
+    boolean remove(SchedulingInfo info) {
+	Debug.ASSERT(CPU.getLevel() == CPU.IntOff && lock.isLocked());
+	boolean removed;
+	if(info.hasBudget()) {
+	    removed = realTime.remove(info);
+	    realTimeSize = realTime.size();
+	} else if(info.coscheduled) {
+	    removed = coscheduled.remove(info);
+	    coscheduledSize = coscheduled.size();
+	    if(removed)
+		info.coscheduled = false;
+	} else if(ordered != null) {
+	    removed = ordered.remove(info);
+	} else {
+	    removed = false;
+	    long rest = readyLevels;
+	    while(rest != 0 && !removed) {
+		int level = Long.numberOfTrailingZeros(rest);
+		rest &= ~(1L << level);
+		removed = levels[level].remove(info);
+		if(levels[level].isEmpty())
+		    readyLevels &= ~(1L << level);
+	    }
+	}
+	if(removed)
+	    size--;
+	return removed;
+    }
+
+    /**
+     * Move every thread in this queue to level 0, keeping the threads
+     * from each level in order behind those from the levels above it.
+     */
+    void boost() {
+	Debug.ASSERT(CPU.getLevel() == CPU.IntOff && lock.isLocked());
+	long rest = readyLevels & ~1L;
+	while(rest != 0) {
+	    int level = Long.numberOfTrailingZeros(rest);
+	    SchedulingInfo info;
+	    while((info = levels[level].poll()) != null)
+		levels[0].offer(info);
+	    rest &= ~(1L << level);
+	}
+	readyLevels = size > realTimeSize + coscheduledSize ? 1L : 0L;
+    }
+
+    /**
+     * Determine whether any real-time thread with budget left is waiting in
+     * this queue.  The result is only a snapshot, unless the caller holds the
+     * lock.
+     *
+     * @return true if there is a waiting real-time thread.
+     */
+    boolean hasRealTime() {
+	return realTimeSize > 0;
+    }
+
+    /**
+     * Determine whether any thread being co-scheduled with its gang is
+     * waiting in this queue.  The result is only a snapshot, unless the
+     * caller holds the lock.
+     *
+     * @return true if there is a waiting co-scheduled thread.
+     */
+    boolean hasCoscheduled() {
+	return coscheduledSize > 0;
+    }
+
+    /**
+     * Get the earliest deadline of any real-time thread waiting in this queue.
+     *
+     * @return the earliest deadline, or Long.MAX_VALUE if there is none.
+     */
+    long earliestDeadline() {
+	Debug.ASSERT(CPU.getLevel() == CPU.IntOff && lock.isLocked());
+	return realTime.isEmpty() ? Long.MAX_VALUE : realTime.first().deadline;
+    }
+
+    /**
+     * Get the number of threads in this queue.  The result is only a
+     * snapshot, unless the caller holds the lock.
+     *
+     * @return the number of threads in this queue.
+     */
+    int size() {
+	return size;
+    }
+
+}
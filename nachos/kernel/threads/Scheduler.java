@@ -15,7 +15,10 @@
 package nachos.kernel.threads;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import nachos.Debug;
 import nachos.kernel.Nachos;
@@ -23,9 +26,9 @@ import nachos.machine.CPU;
 import nachos.machine.InterruptHandler;
 import nachos.machine.Machine;
 import nachos.machine.NachosThread;
+import nachos.machine.Simulation;
 import nachos.machine.Timer;
 import nachos.util.FIFOQueue;
-import nachos.util.Queue;
 
 /**
  * The scheduler is responsible for maintaining a list of threads that are ready
@@ -41,10 +44,30 @@ import nachos.util.Queue;
  * prevent concurrent access to the scheduler state by other CPUs. If there is
  * just one CPU, then (1) would be enough.
  * 
- * The scheduling policy implemented here is very simple: threads that are ready
- * to run are maintained in a FIFO queue and are dispatched in order onto the
- * first available CPU. Scheduling may be preemptive or non-preemptive,
+ * The scheduling policy implemented here is very simple: each CPU has its own
+ * FIFO queue of threads that are ready to run, protected by its own spin lock,
+ * and a thread that becomes ready again goes back on the queue of the CPU on
+ * which it last ran.  A CPU whose queue is empty steals a thread from the
+ * longest queue of another CPU before it goes idle, so threads keep running
+ * on the same CPU unless there is a reason to move them (soft affinity).
+ * Every so often, a load balancer also moves ready threads from the most
+ * heavily loaded CPUs to the most lightly loaded ones.  Optionally (-gs),
+ * threads may be grouped into gangs, such as the threads of one user
+ * process, and when one member of a gang runs, the others that are ready
+ * are brought onto other CPUs to run at the same time.
+ * Each thread may also be restricted to a set of CPUs by a hard affinity
+ * mask.  Optionally (-stride), threads are given CPU time in proportion to
+ * their weights by stride scheduling, or (-cfs) by "completely fair"
+ * scheduling of the thread with the least weighted virtual runtime, with a
+ * time slice that shrinks as more threads compete; or (-mlfs), the
+ * run queues are multilevel feedback queues, in which each thread has its own
+ * level and quantum. Scheduling may be preemptive or non-preemptive,
  * depending on whether timers are initialized for time-slicing.
+ *
+ * Above all of these, periodic real-time threads are scheduled earliest
+ * deadline first.  Each real-time thread is admitted to one CPU, provided
+ * that the CPU's real-time utilization stays within a bound, and while it
+ * has budget left in its period it runs ahead of every other thread there.
  * 
  * @author Thomas Anderson (UC Berkeley), original C++ version
  * @author Peter Druschel (Rice University), Java translation
@@ -57,51 +80,217 @@ public class Scheduler {
     
     /** Tick interval */
     private static final int TICK_INTERVAL = 100;
+
+    /** Share weight given to threads unless set otherwise. */
+    public static final int DEFAULT_WEIGHT = 100;
+
+    /**
+     * Stride scheduling constant: a thread of weight w advances its pass by
+     * STRIDE1 / w for each tick it runs.
+     */
+    private static final long STRIDE1 = 1L << 20;
+
+    /** Largest share weight a thread may have. */
+    public static final int MAX_WEIGHT = (int) STRIDE1;
+
+    /**
+     * Virtual runtimes are kept in units of 2^-VRUNTIME_SHIFT ticks, so that
+     * heavy threads still accumulate virtual runtime a tick at a time.
+     */
+    private static final int VRUNTIME_SHIFT = 10;
+
+    /** Load of one thread that keeps a CPU busy, for load balancing. */
+    static final int LOAD_SCALE = 1024;
+
+    /** Real-time utilization of a whole CPU, in parts per million. */
+    private static final int FULL_LOAD = 1000000;
     
-    /** Queue of threads that are ready to run, but not running. */
-    private final Queue<NachosThread> readyList;
-
-    private final Queue<NachosThread> readyList1;
-    private final Queue<NachosThread> readyList2;
-    private final Queue<NachosThread> readyList3;
-    private final Queue<NachosThread> readyList4;
-    private final Queue<NachosThread> readyList5;
-
-    private static final int QUEUE1_IN_PROCESS = 1;
-    private static final int QUEUE2_IN_PROCESS = 2;
-    private static final int QUEUE3_IN_PROCESS = 3;
-    private static final int QUEUE4_IN_PROCESS = 4;
-    private static final int QUEUE5_IN_PROCESS = 5;
-    private static int whichQueueInProcess = QUEUE1_IN_PROCESS;
-    
-    private static final int QUEUE1_QUANTUM = Nachos.options.MULTI_LEVEL_FEEDBACK_SCHEDULE_QUANTUM;
-    private static final int QUEUE2_QUANTUM = 2 * QUEUE1_QUANTUM;
-    private static final int QUEUE3_QUANTUM = 2 * QUEUE2_QUANTUM;
-    private static final int QUEUE4_QUANTUM = 2 * QUEUE3_QUANTUM;
-    private static final int QUEUE5_QUANTUM = 2 * QUEUE4_QUANTUM;
-    
+    /** Per-CPU queues of threads that are ready to run, but not running. */
+    private final RunQueue[] runQueues;
+
+    /**
+     * Scheduling state of each thread known to the scheduler.  Among other
+     * things, this records the run queue of the CPU on which each thread last
+     * ran.  A thread that is made ready again goes back on that queue, which
+     * also guarantees that it cannot be dispatched elsewhere before that CPU
+     * has switched away from it.
+     */
+    private final Map<NachosThread, SchedulingInfo> threadInfo =
+	    new ConcurrentHashMap<NachosThread, SchedulingInfo>();
+
+    /**
+     * Are we using stride scheduling?  If so, the run queues are ordered by
+     * pass, and the multilevel feedback queue options are ignored.
+     */
+    private final boolean stride = Nachos.options.STRIDE_SCHEDULING;
+
+    /**
+     * Are we using completely fair scheduling?  If so, the run queues are
+     * ordered by virtual runtime.
+     */
+    private final boolean fair = Nachos.options.CFS_SCHEDULING && !stride;
+
+    /**
+     * Period, in ticks, within which every runnable thread on a CPU should
+     * get to run, under completely fair scheduling.
+     */
+    private final int targetLatency = Nachos.options.CFS_TARGET_LATENCY;
+
+    /** Shortest time slice, in ticks, under completely fair scheduling. */
+    private final int minGranularity = Nachos.options.CFS_MIN_GRANULARITY;
+
+    /** Are we using the multilevel feedback queue policy? */
+    private final boolean multiLevel =
+	    Nachos.options.MULTI_LEVEL_FEEDBACK_SCHEDULE_TEST && !stride && !fair;
+
+    /** Number of multilevel feedback queue levels. */
+    private final int numLevels =
+	    multiLevel ? Nachos.options.MULTI_LEVEL_FEEDBACK_SCHEDULE_LEVELS : 1;
+
+    /** Quantum, in ticks, of a thread at level 0; doubled at each level. */
+    private final int baseQuantum =
+	    Nachos.options.MULTI_LEVEL_FEEDBACK_SCHEDULE_QUANTUM;
+
+    /** Interval, in ticks, between priority boosts, or 0 for none. */
+    private final int boostInterval =
+	    Nachos.options.MULTI_LEVEL_FEEDBACK_SCHEDULE_BOOST_INTERVAL;
+
+    /** Number of priority boosts performed so far. */
+    private volatile int boostEpoch;
+
+    /** Time of the most recent priority boost. */
+    private volatile int lastBoostTime;
+
+    /**
+     * Spin lock under which a CPU checks that a priority boost is due and
+     * performs it, so that two tickless CPUs do not both boost.
+     */
+    private final SpinLock boostLock = new SpinLock("priority boost lock");
+
+    /**
+     * Are the time-slice timers only run when needed?  If so, the timer of a
+     * CPU runs only while some thread is waiting in that CPU's run queue.
+     */
+    private final boolean tickless = Nachos.options.TICKLESS;
+
+    /**
+     * Largest total real-time utilization admitted on each CPU, in parts per
+     * million.
+     */
+    private final int realTimeBound =
+	    Nachos.options.REAL_TIME_UTILIZATION_BOUND * (FULL_LOAD / 100);
+
+    /** Interval, in ticks, between load-balancing passes, or 0 for none. */
+    private final int balanceInterval =
+	    Machine.NUM_CPUS > 1 ? Nachos.options.LOAD_BALANCE_INTERVAL : 0;
+
+    /**
+     * Difference in load between two CPUs, in units of 1/LOAD_SCALE of a
+     * thread, above which the load balancer moves threads between them.
+     * It is at least one thread, since moving a thread changes the
+     * difference by two.
+     */
+    private final int balanceThreshold =
+	    Math.max(Nachos.options.LOAD_BALANCE_IMBALANCE, 100)
+		    * LOAD_SCALE / 100;
+
+    /** Time of the most recent load-balancing pass. */
+    private volatile int lastBalanceTime;
+
+    /** Spin lock that allows only one load-balancing pass at a time. */
+    private final SpinLock balanceLock = new SpinLock("load balance lock");
+
+    /** Are gangs of threads co-scheduled? */
+    private final boolean gangScheduling =
+	    Nachos.options.GANG_SCHEDULING && Machine.NUM_CPUS > 1;
+
+    /** Members of each gang, by the object that identifies the gang. */
+    private final Map<Object, List<SchedulingInfo>> gangs =
+	    new ConcurrentHashMap<Object, List<SchedulingInfo>>();
+
+    /** Number of threads that have been moved to run with their gangs. */
+    private volatile int coscheduleCount;
+
+    /** Spin lock for the membership of gangs and for co-scheduling them. */
+    private final SpinLock gangLock = new SpinLock("gang lock");
+
+    /** Do threads waiting for a Lock lend their priority to its holder? */
+    private final boolean inheritance =
+	    Nachos.options.PRIORITY_INHERITANCE && multiLevel;
+
+    /** Longest chain of lock holders through which priority is lent. */
+    private static final int MAX_CHAIN = 16;
+
+    /**
+     * Spin lock for the owners and waiters of Locks, and the priorities
+     * lent through them.
+     */
+    private final SpinLock inheritanceLock =
+	    new SpinLock("priority inheritance lock");
+
+    /** Number of priority inversions that have ended. */
+    private volatile int inversionCount;
+
+    /** Longest time, in ticks, for which a priority has been lent. */
+    private volatile int maxInversionTicks;
+
+    /** Spin lock for admitting threads to the real-time class. */
+    private final SpinLock realTimeLock = new SpinLock("real-time lock");
+
     /** Queue of CPUs that are idle. */
-    private final Queue<CPU> cpuList;
+    private final FIFOQueue<CPU> cpuList;
 
     /** Terminated thread awaiting reclamation of its stack. */
     private volatile NachosThread threadToBeDestroyed;
 
-    /** Spin lock for mutually exclusive access to scheduler state. */
+    /**
+     * Spin lock for mutually exclusive access to the idle CPU list and the
+     * thread awaiting destruction.  The run queues have their own locks.
+     */
     private final SpinLock mutex = new SpinLock("scheduler mutex");
 
-    static HashMap<NachosThread, Integer> mSleepingThreads = new HashMap<NachosThread, Integer>();
+    /**
+     * Number of CPUs that are idle or about to go idle.  This is only
+     * changed with the scheduler mutex held, but it is read without it.
+     */
+    private volatile int idleCount;
 
-    static Semaphore mSemaphoreForSleep = new Semaphore("Sleeping_Parties", 0);
+    /**
+     * Dispatches threads on idle CPUs, if there are any.  This is run from
+     * the timer wheel when a thread has been left on the run queue of a CPU
+     * on which it is not allowed to run, and that CPU has gone idle.
+     */
+    private final Runnable idleKick = new Runnable() {
+	public void run() {
+	    int oldLevel = CPU.setLevel(CPU.IntOff);
+	    if (idleCount > 0) {
+		mutex.acquire();
+		dispatchIdleCPUs();
+		mutex.release();
+	    }
+	    CPU.setLevel(oldLevel);
+	}
+    };
 
-    SpinLock sleepLock = new SpinLock("sleep_lock");
+    /**
+     * Timeouts of sleeping threads and timed waits, advanced on every
+     * timer interrupt.
+     */
+    private final TimerWheel timerWheel;
 
-    static ArrayList<NachosThread> mThreads = new ArrayList<NachosThread>();
-    
-    static HashMap<NachosThread, CPU> mThreadCPUMap = new HashMap<NachosThread, CPU>();
+    /**
+     * Timer that drives the timer wheel when CPU timers are not in use or
+     * are tickless, or null if the CPU timers drive it.  It only runs while
+     * there are pending timeouts.
+     */
+    private final Timer wheelTimer;
+
+    /** Is wheelTimer currently running? */
+    private boolean wheelTimerRunning;
 
-    static ArrayList<Integer> mTicks = new ArrayList<Integer>();
+    /** Spin lock for starting and stopping wheelTimer. */
+    private final SpinLock wheelTimerLock = new SpinLock("wheel timer lock");
 
-    static CPU[] cpus;
     static int[] cpuQuantums;
     /**
      * Initialize the scheduler. Set the list of ready but not running threads
@@ -111,39 +300,44 @@ public class Scheduler {
      *            The first NachosThread to run.
      */
     public Scheduler(NachosThread firstThread) {
-	readyList = new FIFOQueue<NachosThread>();
-	
-	readyList1 = new FIFOQueue<NachosThread>();
-	readyList2 = new FIFOQueue<NachosThread>();
-	readyList3 = new FIFOQueue<NachosThread>();
-	readyList4 = new FIFOQueue<NachosThread>();
-	readyList5 = new FIFOQueue<NachosThread>();
-	
 	cpuList = new FIFOQueue<CPU>();
 
 	Debug.println('t', "Initializing scheduler");
 
-	// Add all the CPUs to the idle CPU list, and start their time-slice
-	// timers,
-	// if we are using them.
-	cpus = new CPU[Machine.NUM_CPUS];
+	timerWheel = new TimerWheel("timer wheel", TICK_INTERVAL,
+		Simulation.currentTime());
+	if (Nachos.options.CPU_TIMERS && !tickless) {
+	    wheelTimer = null;
+	} else {
+	    wheelTimer = Machine.getTimer(0);
+	    wheelTimer.setHandler(new WheelTimerInterruptHandler());
+	}
+
+	// Add all the CPUs to the idle CPU list, give each one its own run
+	// queue, and start their time-slice timers, if we are using them.
+	// Tickless timers are started when threads start waiting.
 	cpuQuantums = new int[Machine.NUM_CPUS];
+	runQueues = new RunQueue[Machine.NUM_CPUS];
 	for (int i = 0; i < Machine.NUM_CPUS; i++) {
 	    CPU cpu = Machine.getCPU(i);
 	    cpuList.offer(cpu);
-	    cpus[i] = cpu;
+	    idleCount++;
 	    cpuQuantums[i] = 0;
+	    runQueues[i] = new RunQueue(cpu, numLevels, stride || fair, mutex);
 	    if (Nachos.options.CPU_TIMERS) {
 		Timer timer = cpu.timer;
 		timer.setHandler(new TimerInterruptHandler(timer));
 		if (Nachos.options.RANDOM_YIELD)
 		    timer.setRandom(true);
-		timer.start();
+		if (!tickless)
+		    timer.start();
 	    }
 	}
 
 	// Dispatch firstThread on the first CPU.
 	CPU firstCPU = cpuList.poll();
+	idleCount--;
+	dispatched(firstThread, runQueues[firstCPU.unit]);
 	firstCPU.dispatch(firstThread);
     };
 
@@ -155,6 +349,8 @@ public class Scheduler {
 	    CPU cpu = Machine.getCPU(i);
 	    cpu.timer.stop();
 	}
+	if (wheelTimer != null)
+	    wheelTimer.stop();
     }
 
     /**
@@ -163,6 +359,12 @@ public class Scheduler {
      * dispatched onto CPUs until either all CPUs are in use or there are no
      * more threads are ready to run.
      * 
+     * The thread is placed on the run queue of the CPU on which it last ran,
+     * or on the run queue of the current CPU if it has never run.  Only that
+     * queue is locked, so CPUs making threads ready on their own queues do
+     * not contend with each other.  The idle CPU list is only locked if there
+     * appear to be idle CPUs.
+     * 
      * It is assumed that multiple concurrent calls of this method will not be
      * made with the same thread as parameter, as that could result in the
      * thread being added more than once to the ready queue, in addition to
@@ -173,113 +375,1172 @@ public class Scheduler {
      */
     public void readyToRun(NachosThread thread) {
 	int oldLevel = CPU.setLevel(CPU.IntOff);
-	mutex.acquire();
-	makeReady(thread, true);
-	dispatchIdleCPUs();
-	mutex.release();
+	SchedulingInfo info = getInfo(thread);
+	RunQueue queue = info.runQueue;
+	if (queue == null)
+	    queue = info.runQueue = runQueues[CPU.currentCPU().unit];
+	queue.lock.acquire();
+	makeReady(thread, queue);
+	queue.lock.release();
+	if (info.gang != null)
+	    coschedule(info.gang);
+
+	// A CPU going idle increments idleCount before it looks at the run
+	// queues for the last time, so either it will see this thread or
+	// we will see it.
+	if (idleCount > 0) {
+	    mutex.acquire();
+	    dispatchIdleCPUs();
+	    mutex.release();
+	}
 	CPU.setLevel(oldLevel);
     }
 
     /**
-     * Mark a thread as ready, but not running, and put it on the ready list for
+     * Mark a thread as ready, but not running, and put it on a run queue for
      * later scheduling onto a CPU. No attempt is made to dispatch threads on
      * idle CPUs.
      * 
      * This internal version of readyToRun assumes that interrupts are disabled
-     * and that the scheduler mutex is held. It is assumed that multiple
+     * and that the lock on the run queue is held. It is assumed that multiple
      * concurrent calls of this method will not be made with the same thread as
      * parameter. Under that assumption, it is not necessary to lock the thread
      * object itself before changing its status to READY, because any other
      * changes to the thread status are either made by the thread itself (which
      * is currently not running), or in the process of dispatching the thread,
-     * which is done with the scheduler mutex held.
+     * which is done with the lock on the run queue held.
      *
      * @param thread
      *            The thread to be put on the ready list.
+     * @param queue
+     *            The run queue on which to put the thread.
      */
-    private void makeReady(NachosThread thread, boolean isNewThread) {
-	Debug.ASSERT(CPU.getLevel() == CPU.IntOff && mutex.isLocked());
+    private void makeReady(NachosThread thread, RunQueue queue) {
+	Debug.ASSERT(CPU.getLevel() == CPU.IntOff && queue.lock.isLocked());
 
-	Debug.println('t', "Putting thread on ready list: " + thread.name);
+	Debug.println('t', "Putting thread on ready list of " + queue.cpu.name
+		+ ": " + thread.name);
 
 	thread.setStatus(NachosThread.READY);
-	if(!Nachos.options.MULTI_LEVEL_FEEDBACK_SCHEDULE_TEST) {
-	    readyList.offer(thread);
-	} else {
-	    if(isNewThread || whichQueueInProcess == QUEUE1_IN_PROCESS) {
-		readyList1.offer(thread);
-	    } else if (whichQueueInProcess == QUEUE2_IN_PROCESS) {
-		readyList2.offer(thread);
-	    } else if (whichQueueInProcess == QUEUE3_IN_PROCESS) {
-		readyList3.offer(thread);
-	    } else if (whichQueueInProcess == QUEUE4_IN_PROCESS) {
-		readyList4.offer(thread);
-	    } else if (whichQueueInProcess == QUEUE5_IN_PROCESS) {
-		readyList5.offer(thread);
-	    }  
+	SchedulingInfo info = getInfo(thread);
+	if (stride && info.key < queue.minKey)
+	    info.key = queue.minKey;
+	if (fair) {
+	    // A thread that has been asleep is placed a little ahead of the
+	    // threads that have been running, but not so far ahead that it
+	    // can shut them out while it catches up.
+	    long floor = queue.minKey
+		    - ((long) targetLatency << VRUNTIME_SHIFT) / 2;
+	    if (info.key < floor)
+		info.key = floor;
+	}
+	queue.offer(info, multiLevel ? effectiveLevel(info) : 0);
+	if (queue.running != null)
+	    startTick(queue);
+    }
+
+    /**
+     * In tickless mode, start the time-slice timer of the CPU that owns a
+     * run queue, if it is not already running.  The timer keeps running
+     * until the CPU goes idle or a timer interrupt finds no thread waiting.
+     * Assumes that interrupts are disabled and that the lock on the run queue
+     * is held.
+     *
+     * @param queue
+     *            The run queue whose CPU needs time slicing.
+     */
+    private void startTick(RunQueue queue) {
+	Debug.ASSERT(CPU.getLevel() == CPU.IntOff && queue.lock.isLocked());
+	if (tickless && !queue.ticking) {
+	    queue.cpu.timer.start();
+	    queue.ticking = true;
+	}
+    }
+
+    /**
+     * In tickless mode, stop the time-slice timer of the CPU that owns a
+     * run queue.  Assumes that interrupts are disabled and that the lock on
+     * the run queue is held.
+     *
+     * @param queue
+     *            The run queue whose CPU no longer needs time slicing.
+     */
+    private void stopTick(RunQueue queue) {
+	Debug.ASSERT(CPU.getLevel() == CPU.IntOff && queue.lock.isLocked());
+	if (tickless && queue.ticking) {
+	    queue.cpu.timer.stop();
+	    queue.ticking = false;
+	}
+    }
+
+    /**
+     * Get the scheduling state of a thread, creating it if the thread is
+     * new to the scheduler.  A new thread starts at level 0 with a full
+     * quantum.
+     *
+     * @param thread
+     *            The thread whose state is wanted.
+     * @return the scheduling state of the thread.
+     */
+    private SchedulingInfo getInfo(NachosThread thread) {
+	SchedulingInfo info = threadInfo.get(thread);
+	if (info == null) {
+	    info = new SchedulingInfo(thread);
+	    info.quantumLeft = stride ? MAX_QUANTUM : quantumForLevel(0);
+	    info.boostEpoch = boostEpoch;
+	    threadInfo.put(thread, info);
+	}
+	return info;
+    }
+
+    /**
+     * Get the multilevel feedback queue level of a thread, first moving it
+     * back to level 0 if there has been a priority boost since its level
+     * was set.
+     *
+     * @param info
+     *            The scheduling state of the thread.
+     * @return the current level of the thread.
+     */
+    private int currentLevel(SchedulingInfo info) {
+	int epoch = boostEpoch;
+	if (info.boostEpoch != epoch) {
+	    info.boostEpoch = epoch;
+	    info.level = 0;
+	    info.quantumLeft = quantumForLevel(0);
 	}
+	return info.level;
+    }
+
+    /**
+     * Get the level at which a thread is scheduled under the multilevel
+     * feedback queue policy: its own level, or a better one lent to it by a
+     * thread waiting for a lock it holds.
+     *
+     * @param info
+     *            The scheduling state of the thread.
+     * @return the level at which the thread is to be queued.
+     */
+    private int effectiveLevel(SchedulingInfo info) {
+	return Math.min(currentLevel(info), info.donatedLevel);
+    }
+
+    /**
+     * Get the quantum of a thread at a given level.
+     *
+     * @param level
+     *            The multilevel feedback queue level.
+     * @return the quantum, in ticks, of a thread at that level.
+     */
+    private int quantumForLevel(int level) {
+	return baseQuantum << Math.min(level, 20);
     }
 
     /**
      * If there are idle CPUs and threads ready to run, dispatch threads on CPUs
      * until either all CPUs are in use or no more threads are ready to run.
+     * Each idle CPU is first given a thread from its own run queue, so that
+     * threads go back to the CPU on which they last ran if it is idle.  Only
+     * then may idle CPUs steal threads from the longest other run queues.
      * Assumes that interrupts have been disabled and that the scheduler mutex
      * is held.
      */
     private void dispatchIdleCPUs() {
 	Debug.ASSERT(CPU.getLevel() == CPU.IntOff && mutex.isLocked());
-	while (!readyList.isEmpty() && !cpuList.isEmpty()) {
-	    NachosThread thread = null;
-	    if(!Nachos.options.MULTI_LEVEL_FEEDBACK_SCHEDULE_TEST) {
-		thread = readyList.poll();
-	    } else {
-		if (!readyList1.isEmpty()) {
-		    thread = readyList1.poll();
-		} else if (!readyList2.isEmpty()) {
-		    thread = readyList2.poll();
-		} else if (!readyList3.isEmpty()) {
-		    thread = readyList3.poll();
-		} else if (!readyList4.isEmpty()) {
-		    thread = readyList4.poll();
-		} else if (!readyList5.isEmpty()) {
-		    thread = readyList5.poll();
+	for (int pass = 0; pass < 2 && !cpuList.isEmpty(); pass++) {
+	    // Affinity masks may leave a thread runnable on some idle CPUs
+	    // but not others, so every idle CPU has to be given a chance.
+	    Iterator<CPU> idleCPUs = cpuList.iterator();
+	    while (idleCPUs.hasNext()) {
+		CPU cpu = idleCPUs.next();
+		RunQueue queue = runQueues[cpu.unit];
+		NachosThread thread = pass == 0 ? pollLocal(queue, false)
+			: pollOrSteal(queue, false);
+		if (thread == null)
+		    continue;
+		idleCPUs.remove();
+		idleCount--;
+		Debug.println('t', "Dispatching " + thread.name + " on "
+			+ cpu.name);
+		dispatched(thread, queue);
+		if (tickless && queue.size() > 0) {
+		    queue.lock.acquire();
+		    startTick(queue);
+		    queue.lock.release();
 		}
+		cpu.dispatch(thread);
+		// The current CPU is not relinquished here -- immediate return.
 	    }
-	    CPU cpu = cpuList.poll();
-	    Debug.println('t', "Dispatching " + thread.name + " on " + cpu.name);
-	    cpu.dispatch(thread);
-	    // The current CPU is not relinquished here -- immediate return.
 	}
     }
 
     /**
-     * Return the next thread to be scheduled onto a CPU. If there are no ready
-     * threads, return null. Side effect: thread is removed from the ready list.
+     * Record that a thread is about to be dispatched on the CPU that owns a
+     * run queue, counting a migration if the thread last ran on another CPU.
      * Assumes that interrupts have been disabled.
      *
+     * @param thread
+     *            The thread that is about to run.
+     * @param queue
+     *            The run queue of the CPU on which it is to run.
+     */
+    private void dispatched(NachosThread thread, RunQueue queue) {
+	SchedulingInfo info = getInfo(thread);
+	RunQueue last = info.lastDispatched;
+	if (last != null && last != queue) {
+	    queue.migrations++;
+	    Debug.println('t', "Migrating " + thread.name + " from "
+		    + last.cpu.name + " to " + queue.cpu.name);
+	}
+	info.lastDispatched = queue;
+	info.dispatchTicks = busyTicks(queue.cpu);
+	info.sliceStart = info.cpuTicks;
+	queue.running = thread;
+    }
+
+    /**
+     * Record the CPU time used by a thread since it was last dispatched.
+     * Assumes that interrupts have been disabled and that the thread is
+     * running on the current CPU.
+     *
+     * @param info
+     *            The scheduling state of the thread.
+     */
+    private void charge(SchedulingInfo info) {
+	long now = busyTicks(CPU.currentCPU());
+	long delta = now - info.dispatchTicks;
+	info.cpuTicks += delta;
+	info.dispatchTicks = now;
+	if (info.period > 0)
+	    info.budgetLeft -= delta;
+	if (fair)
+	    info.key += (delta << VRUNTIME_SHIFT) * DEFAULT_WEIGHT / info.weight;
+    }
+
+    /**
+     * Get the number of ticks a CPU has spent running user or system code
+     * (that is, neither idle nor handling interrupts), from the simulation
+     * statistics.
+     *
+     * @param cpu
+     *            The CPU.
+     * @return the number of busy ticks of that CPU so far.
+     */
+    private static long busyTicks(CPU cpu) {
+	return (long) Simulation.stats.userTicks[cpu.unit]
+		+ Simulation.stats.systemTicks[cpu.unit];
+    }
+
+    /**
+     * Return the next thread to be scheduled onto a CPU, taken from the
+     * run queue of that CPU or, if that is empty, stolen from another CPU.
+     * Only threads allowed to run on the CPU by their affinity masks are
+     * considered. If there are no ready threads, return null. Side effect:
+     * thread is removed from its run queue. Assumes that interrupts have been
+     * disabled, and that the lock on the local queue is not held by the caller.
+     *
+     * @param local
+     *            The run queue of the CPU that wants a thread.
+     * @param evict
+     *            If true, threads found at the front of the local queue that
+     *            are not allowed to run on its CPU are moved to run queues of
+     *            CPUs on which they are allowed to run.  This requires that
+     *            the current CPU owns the local queue and that the scheduler
+     *            mutex is not held.
+     * @return the thread to be scheduled onto a CPU.
+     */
+    private NachosThread pollOrSteal(RunQueue local, boolean evict) {
+	NachosThread result = pollLocal(local, evict);
+	if (result == null)
+	    result = steal(local);
+	return result;
+    }
+
+    /**
+     * Return the next thread to be scheduled onto a CPU, taken from the run
+     * queue of that CPU, or null if that queue has no thread that may run
+     * on the CPU.  The parameters are as for pollOrSteal().
+     *
+     * @param local
+     *            The run queue of the CPU that wants a thread.
+     * @param evict
+     *            Whether to move threads not allowed on the CPU elsewhere.
+     * @return the thread to be scheduled onto a CPU.
+     */
+    private NachosThread pollLocal(RunQueue local, boolean evict) {
+	Debug.ASSERT(CPU.getLevel() == CPU.IntOff);
+	SchedulingInfo result = null;
+	if (local.size() > 0) {
+	    local.lock.acquire();
+	    result = local.poll(local.cpu.unit, evict ? local.strays : null);
+	    local.lock.release();
+	    if (evict && !local.strays.isEmpty()) {
+		for (SchedulingInfo stray : local.strays) {
+		    // The stray is not running, because we have had the lock on
+		    // the queue it was in, so it is safe to move it.
+		    stray.runQueue = allowedQueue(stray);
+		    readyToRun(stray.thread);
+		}
+		local.strays.clear();
+	    }
+	}
+	return result != null ? result.thread : null;
+    }
+
+    /**
+     * Steal a thread from the longest run queue other than a specified one.
+     * Queue lengths are examined without locking, so only one lock, that of
+     * the chosen victim, is acquired at a time. Only threads that are allowed
+     * to run on the thief's CPU are taken. Assumes that interrupts have been
+     * disabled.
+     *
+     * @param thief
+     *            The run queue of the CPU that wants a thread.
+     * @return the stolen thread, or null if no other queue had a thread.
+     */
+    private NachosThread steal(RunQueue thief) {
+	int unit = thief.cpu.unit;
+	long tried = 0;
+	while (true) {
+	    RunQueue victim = null;
+	    for (RunQueue queue : runQueues) {
+		if (queue != thief && queue.size() > 0
+			&& (tried & (1L << queue.cpu.unit)) == 0
+			&& (victim == null || queue.size() > victim.size()))
+		    victim = queue;
+	    }
+	    if (victim == null)
+		return null;
+	    victim.lock.acquire();
+	    SchedulingInfo result = victim.poll(unit, null);
+	    victim.lock.release();
+	    if (result != null) {
+		Debug.println('t', thief.cpu.name + " stole " + result.thread.name
+			+ " from " + victim.cpu.name);
+		return result.thread;
+	    }
+	    tried |= 1L << victim.cpu.unit;
+	}
+    }
+
+    /**
+     * Choose the run queue on which to put a thread whose affinity mask does
+     * not allow the CPU on which it last ran: that of the allowed CPU with
+     * the fewest threads waiting.
+     *
+     * @param info
+     *            The scheduling state of the thread.
+     * @return the chosen run queue.
+     */
+    private RunQueue allowedQueue(SchedulingInfo info) {
+	RunQueue result = null;
+	for (RunQueue queue : runQueues) {
+	    if (info.allows(queue.cpu.unit)
+		    && (result == null || queue.size() < result.size()))
+		result = queue;
+	}
+	return result != null ? result : runQueues[0];
+    }
+
+    /**
+     * Return the next thread to be scheduled onto the current CPU. If there
+     * are no ready threads, return null. Side effect: thread is removed from
+     * the ready list. Assumes that interrupts have been disabled.
+     *
      * @return the thread to be scheduled onto a CPU.
      */
     private NachosThread findNextToRun() {
 	Debug.ASSERT(CPU.getLevel() == CPU.IntOff);
-	mutex.acquire();
-	NachosThread result = null;
-	if(!Nachos.options.MULTI_LEVEL_FEEDBACK_SCHEDULE_TEST) {
-	    result = readyList.poll();
-	} else {
-	    if (!readyList1.isEmpty()) {
-		result = readyList1.poll();
-	    } else if (!readyList2.isEmpty()) {
-		result = readyList2.poll();
-	    } else if (!readyList3.isEmpty()) {
-		result = readyList3.poll();
-	    } else if (!readyList4.isEmpty()) {
-		result = readyList4.poll();
-	    } else if (!readyList5.isEmpty()) {
-		result = readyList5.poll();
+	return pollOrSteal(runQueues[CPU.currentCPU().unit], true);
+    }
+
+    /**
+     * Get the number of threads waiting in the run queue of a CPU.  The result
+     * is a snapshot that may already be out of date when it is returned.
+     *
+     * @param unit
+     *            The unit number of the CPU.
+     * @return the number of ready threads queued for that CPU.
+     */
+    public int getRunQueueLength(int unit) {
+	return runQueues[unit].size();
+    }
+
+    /**
+     * Get the number of threads waiting in the run queue of each CPU.
+     *
+     * @return an array, indexed by CPU unit number, of run queue lengths.
+     */
+    public int[] getRunQueueLengths() {
+	int[] lengths = new int[runQueues.length];
+	for (int i = 0; i < runQueues.length; i++)
+	    lengths[i] = runQueues[i].size();
+	return lengths;
+    }
+
+    /**
+     * Get the number of times a thread that last ran on another CPU has been
+     * dispatched on a CPU.
+     *
+     * @param unit
+     *            The unit number of the CPU.
+     * @return the number of migrations onto that CPU.
+     */
+    public int getMigrationCount(int unit) {
+	return runQueues[unit].migrations;
+    }
+
+    /**
+     * Get the number of migrations onto each CPU.
+     *
+     * @return an array, indexed by CPU unit number, of migration counts.
+     */
+    public int[] getMigrationCounts() {
+	int[] counts = new int[runQueues.length];
+	for (int i = 0; i < runQueues.length; i++)
+	    counts[i] = runQueues[i].migrations;
+	return counts;
+    }
+
+    /**
+     * Get the number of threads the load balancer has moved onto each CPU.
+     *
+     * @return an array, indexed by CPU unit number, of balancing counts.
+     */
+    public int[] getBalanceCounts() {
+	int[] counts = new int[runQueues.length];
+	for (int i = 0; i < runQueues.length; i++)
+	    counts[i] = runQueues[i].balanced;
+	return counts;
+    }
+
+    /**
+     * Describe how contended the scheduler mutex and the run queue locks
+     * have been.
+     *
+     * @return an array of statistics lines, the mutex first, followed by
+     * the run queue locks in order of CPU unit number.
+     */
+    public String[] getLockStatistics() {
+	String[] lines = new String[runQueues.length + 1];
+	lines[0] = mutex.getStatistics();
+	for (int i = 0; i < runQueues.length; i++)
+	    lines[i + 1] = runQueues[i].lock.getStatistics();
+	return lines;
+    }
+
+    /**
+     * If it is time for a load-balancing pass, and no other CPU is doing
+     * one, update the recent load of every CPU, then repeatedly move a
+     * ready thread from the most heavily loaded CPU to the most lightly
+     * loaded one, until their loads are within the threshold.  The load of
+     * a CPU combines the length of its run queue with its utilization since
+     * the last pass, taken from the simulation statistics, so a CPU that is
+     * busy running one thread counts for more than one that is idle.  The
+     * thread taken is the one that would have run next there, which has
+     * waited longest and so is least likely still to be in the cache.
+     * Called from the timer interrupt handler; assumes that interrupts are
+     * disabled and that no scheduler locks are held.
+     */
+    private void balanceLoad() {
+	int now = Simulation.currentTime();
+	if (balanceInterval == 0 || now - lastBalanceTime < balanceInterval)
+	    return;
+	balanceLock.acquire();
+	int elapsed = now - lastBalanceTime;
+	if (elapsed < balanceInterval) {
+	    balanceLock.release();
+	    return;
+	}
+	lastBalanceTime = now;
+	for (RunQueue queue : runQueues) {
+	    long busy = busyTicks(queue.cpu);
+	    int utilization = (int) Math.min((busy - queue.lastBusyTicks)
+		    * LOAD_SCALE / elapsed, LOAD_SCALE);
+	    queue.lastBusyTicks = busy;
+	    queue.load = (queue.load + queue.size() * LOAD_SCALE + utilization)
+		    / 2;
+	}
+	// Queues that turn out to have nothing the idlest CPU may run.
+	long stuck = 0;
+	while (true) {
+	    RunQueue busiest = null;
+	    RunQueue idlest = null;
+	    for (RunQueue queue : runQueues) {
+		if (queue.size() > 0 && (stuck & (1L << queue.cpu.unit)) == 0
+			&& (busiest == null || queue.load > busiest.load))
+		    busiest = queue;
+		if (idlest == null || queue.load < idlest.load)
+		    idlest = queue;
 	    }
+	    if (busiest == null || busiest.load - idlest.load <= balanceThreshold)
+		break;
+	    if (moveThread(busiest, idlest)) {
+		busiest.load -= LOAD_SCALE;
+		idlest.load += LOAD_SCALE;
+	    } else
+		stuck |= 1L << busiest.cpu.unit;
 	}
-	mutex.release();
-	return result;
+	balanceLock.release();
+    }
+
+    /**
+     * Move the next ready thread that is allowed to run on the CPU of one
+     * run queue from another run queue to it.  Under stride or completely
+     * fair scheduling, the thread keeps its position relative to the other
+     * threads of its old queue.  Assumes that interrupts are disabled and
+     * that the balance lock is held.
+     *
+     * @param from
+     *            The run queue from which to take a thread.
+     * @param to
+     *            The run queue to which to move it.
+     * @return true if a thread was moved, false if there was none to move.
+     */
+    private boolean moveThread(RunQueue from, RunQueue to) {
+	from.lock.acquire();
+	SchedulingInfo info = from.poll(to.cpu.unit, null);
+	long fromMinKey = from.minKey;
+	from.lock.release();
+	if (info == null)
+	    return false;
+	// The thread is now in no run queue, so it is safe to change its key.
+	if (stride || fair)
+	    info.key += to.minKey - fromMinKey;
+	info.runQueue = to;
+	to.balanced++;
+	Debug.println('t', "Balancing load: moving " + info.thread.name
+		+ " from " + from.cpu.name + " to " + to.cpu.name);
+	readyToRun(info.thread);
+	return true;
+    }
+
+    /**
+     * Record that the current thread is about to wait for a lock, and lend
+     * its priority to the holder of the lock, and on along the chain of
+     * holders of the locks they in turn are waiting for.  Called by Lock.
+     *
+     * @param lock
+     *            The lock the current thread wants.
+     */
+    void waitForLock(Lock lock) {
+	NachosThread currentThread = NachosThread.currentThread();
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	inheritanceLock.acquire();
+	SchedulingInfo info = getInfo(currentThread);
+	info.waitingFor = lock;
+	lock.waiters.add(currentThread);
+	if (inheritance) {
+	    int level = effectiveLevel(info);
+	    for (int depth = 0; lock != null && depth < MAX_CHAIN; depth++) {
+		NachosThread holder = lock.owner;
+		if (holder == null)
+		    break;
+		SchedulingInfo holderInfo = getInfo(holder);
+		if (effectiveLevel(holderInfo) <= level)
+		    break;
+		Debug.println('t', holder.name + " inherits level " + level
+			+ " from " + currentThread.name + " through " + lock.name);
+		if (holderInfo.donatedLevel == SchedulingInfo.NO_DONATION)
+		    holderInfo.donatedSince = Simulation.currentTime();
+		requeue(holderInfo, level);
+		lock = holderInfo.waitingFor;
+	    }
+	}
+	inheritanceLock.release();
+	CPU.setLevel(oldLevel);
+    }
+
+    /**
+     * Determine whether a thread is running on a CPU other than the current
+     * one, so that it is worth spinning for a lock it holds, rather than
+     * blocking.  The answer may be out of date as soon as it is returned.
+     * Called by Lock.
+     *
+     * @param thread
+     *            The thread to check.
+     * @return true if the thread is running on another CPU.
+     */
+    boolean isRunningElsewhere(NachosThread thread) {
+	SchedulingInfo info = threadInfo.get(thread);
+	if (info == null)
+	    return false;
+	RunQueue last = info.lastDispatched;
+	return last != null && last.running == thread
+		&& last.cpu != CPU.currentCPU();
+    }
+
+    /**
+     * Record that the current thread has acquired a lock.  Threads still
+     * waiting for the lock now lend their priority to it.  Called by Lock.
+     *
+     * @param lock
+     *            The lock the current thread has acquired.
+     */
+    void lockAcquired(Lock lock) {
+	NachosThread currentThread = NachosThread.currentThread();
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	inheritanceLock.acquire();
+	SchedulingInfo info = getInfo(currentThread);
+	info.waitingFor = null;
+	lock.waiters.remove(currentThread);
+	lock.owner = currentThread;
+	info.heldLocks.add(lock);
+	updateDonation(info);
+	inheritanceLock.release();
+	CPU.setLevel(oldLevel);
+    }
+
+    /**
+     * Record that the current thread is releasing a lock, and take back the
+     * priority lent to it by threads waiting for that lock.  Called by Lock.
+     *
+     * @param lock
+     *            The lock the current thread is releasing.
+     */
+    void lockReleased(Lock lock) {
+	NachosThread currentThread = NachosThread.currentThread();
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	inheritanceLock.acquire();
+	SchedulingInfo info = getInfo(currentThread);
+	lock.owner = null;
+	info.heldLocks.remove(lock);
+	updateDonation(info);
+	inheritanceLock.release();
+	CPU.setLevel(oldLevel);
+    }
+
+    /**
+     * Set the priority lent to the current thread to the best priority of
+     * the threads waiting for the locks it holds.  If it no longer has any
+     * priority lent to it, a priority inversion has ended, and its length is
+     * traced.  Assumes that interrupts are disabled and that the inheritance
+     * lock is held.
+     *
+     * @param info
+     *            The scheduling state of the current thread.
+     */
+    private void updateDonation(SchedulingInfo info) {
+	if (!inheritance)
+	    return;
+	int level = SchedulingInfo.NO_DONATION;
+	for (Lock held : info.heldLocks) {
+	    for (NachosThread waiter : held.waiters)
+		level = Math.min(level, effectiveLevel(getInfo(waiter)));
+	}
+	if (level >= currentLevel(info))
+	    level = SchedulingInfo.NO_DONATION;
+	if (level == info.donatedLevel)
+	    return;
+	int now = Simulation.currentTime();
+	if (level == SchedulingInfo.NO_DONATION) {
+	    int ticks = now - info.donatedSince;
+	    inversionCount++;
+	    if (ticks > maxInversionTicks)
+		maxInversionTicks = ticks;
+	    Debug.println('t', "Priority inversion of " + info.thread.name
+		    + " lasted " + ticks + " ticks");
+	} else if (info.donatedLevel == SchedulingInfo.NO_DONATION)
+	    info.donatedSince = now;
+	info.donatedLevel = level;
+    }
+
+    /**
+     * Lend a priority to a thread that holds a lock, moving it to the
+     * corresponding level of its run queue if it is waiting there.  Assumes
+     * that interrupts are disabled and that the inheritance lock is held.
+     *
+     * @param info
+     *            The scheduling state of the thread.
+     * @param level
+     *            The level lent to it.
+     */
+    private void requeue(SchedulingInfo info, int level) {
+	RunQueue queue = info.runQueue;
+	if (queue == null) {
+	    info.donatedLevel = level;
+	    return;
+	}
+	queue.lock.acquire();
+	boolean queued = queue.remove(info);
+	info.donatedLevel = level;
+	if (queued)
+	    queue.offer(info, effectiveLevel(info));
+	queue.lock.release();
+    }
+
+    /**
+     * Get the number of priority inversions that have ended, that is, the
+     * number of times a thread that had priority lent to it through a lock
+     * has given it back.
+     *
+     * @return the number of priority inversions.
+     */
+    public int getInversionCount() {
+	return inversionCount;
+    }
+
+    /**
+     * Get the longest time for which a thread has had priority lent to it
+     * through a lock.
+     *
+     * @return the length, in ticks, of the longest priority inversion.
+     */
+    public int getMaxInversionTicks() {
+	return maxInversionTicks;
+    }
+
+    /**
+     * Make a thread a member of a gang, whose members are co-scheduled if
+     * gang scheduling is enabled: whenever one member is running, any others
+     * that are waiting to run are moved to other CPUs, so that they run
+     * together and do not waste their time slices waiting for each other.
+     * The threads of a user process form a gang keyed by its address space.
+     * This must be called before the thread is first made ready to run, or
+     * by the thread itself.
+     *
+     * @param thread
+     *            The thread.
+     * @param key
+     *            Any object identifying the gang, or null to leave the
+     *            current gang.
+     */
+    public void setGang(NachosThread thread, Object key) {
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	SchedulingInfo info = getInfo(thread);
+	if (info.gang != null)
+	    leaveGang(info);
+	if (key != null) {
+	    gangLock.acquire();
+	    List<SchedulingInfo> gang = gangs.get(key);
+	    if (gang == null) {
+		gang = new ArrayList<SchedulingInfo>();
+		gangs.put(key, gang);
+	    }
+	    gang.add(info);
+	    info.gang = gang;
+	    info.gangKey = key;
+	    gangLock.release();
+	    Debug.println('t', thread.name + " joined a gang of " + gang.size());
+	}
+	CPU.setLevel(oldLevel);
+    }
+
+    /**
+     * Get the object identifying the gang of a thread.
+     *
+     * @param thread
+     *            The thread.
+     * @return the key of the thread's gang, or null if it has none.
+     */
+    public Object getGang(NachosThread thread) {
+	SchedulingInfo info = threadInfo.get(thread);
+	return info != null ? info.gangKey : null;
+    }
+
+    /**
+     * Remove a thread from its gang, forgetting the gang once it is empty.
+     * Assumes that interrupts are disabled.
+     *
+     * @param info
+     *            The scheduling state of the thread.
+     */
+    private void leaveGang(SchedulingInfo info) {
+	Debug.ASSERT(CPU.getLevel() == CPU.IntOff);
+	gangLock.acquire();
+	List<SchedulingInfo> gang = info.gang;
+	gang.remove(info);
+	info.gang = null;
+	info.gangKey = null;
+	if (gang.isEmpty())
+	    gangs.values().remove(gang);
+	gangLock.release();
+    }
+
+    /**
+     * Get the number of threads that have been moved to another CPU, or to
+     * the front of a run queue, to run at the same time as their gangs.
+     *
+     * @return the number of co-scheduling moves so far.
+     */
+    public int getCoscheduleCount() {
+	return coscheduleCount;
+    }
+
+    /**
+     * If some member of a gang is running, bring the members that are
+     * waiting in run queues onto other CPUs, so that the whole gang runs
+     * at once.  Each waiting member is given a CPU of its own that is not
+     * already running a member of the gang: an idle CPU if possible, and
+     * otherwise one running a thread of no gang or another gang, which is
+     * preempted at its next timer interrupt.  Real-time threads are never
+     * preempted for this.  If there are not enough such CPUs for all the
+     * waiting members, nothing is moved and the gang is scheduled like any
+     * other threads.  Assumes that interrupts are disabled and that no
+     * scheduler locks are held.
+     *
+     * @param gang
+     *            The members of the gang.
+     */
+    private void coschedule(List<SchedulingInfo> gang) {
+	Debug.ASSERT(CPU.getLevel() == CPU.IntOff);
+	if (!gangScheduling)
+	    return;
+	gangLock.acquire();
+	// CPUs running members of the gang, and members that may be waiting.
+	long running = 0;
+	List<SchedulingInfo> waiting = new ArrayList<SchedulingInfo>();
+	for (SchedulingInfo member : gang) {
+	    RunQueue last = member.lastDispatched;
+	    if (last != null && last.running == member.thread)
+		running |= 1L << last.cpu.unit;
+	    else if (member.runQueue != null && !member.hasBudget())
+		waiting.add(member);
+	}
+	if (running == 0 || waiting.isEmpty()) {
+	    gangLock.release();
+	    return;
+	}
+	for (Iterator<SchedulingInfo> it = waiting.iterator(); it.hasNext();) {
+	    SchedulingInfo member = it.next();
+	    RunQueue queue = member.runQueue;
+	    queue.lock.acquire();
+	    boolean queued = queue.contains(member);
+	    queue.lock.release();
+	    if (!queued)
+		it.remove();
+	}
+
+	// Give each waiting member a CPU, idle ones first.  Busy CPUs can only
+	// be taken if they have timers to preempt their threads.
+	RunQueue[] targets = new RunQueue[waiting.size()];
+	long taken = running;
+	int passes = Nachos.options.CPU_TIMERS ? 2 : 1;
+	for (int pass = 0; pass < passes; pass++) {
+	    for (int i = 0; i < targets.length; i++) {
+		if (targets[i] != null)
+		    continue;
+		SchedulingInfo member = waiting.get(i);
+		for (RunQueue queue : runQueues) {
+		    int unit = queue.cpu.unit;
+		    if ((taken & (1L << unit)) != 0 || !member.allows(unit))
+			continue;
+		    NachosThread other = queue.running;
+		    if (pass == 0 ? other == null : other != null
+			    && isPreemptible(other, gang)) {
+			targets[i] = queue;
+			taken |= 1L << unit;
+			break;
+		    }
+		}
+	    }
+	}
+	for (RunQueue target : targets) {
+	    if (target == null) {
+		gangLock.release();
+		Debug.println('t', "Not enough CPUs to co-schedule a gang of "
+			+ gang.size());
+		return;
+	    }
+	}
+
+	for (int i = 0; i < targets.length; i++) {
+	    SchedulingInfo member = waiting.get(i);
+	    RunQueue from = member.runQueue;
+	    from.lock.acquire();
+	    boolean removed = from.remove(member);
+	    from.lock.release();
+	    if (!removed)
+		continue;
+	    // The member is now in no run queue, so it is safe to move it.
+	    member.coscheduled = true;
+	    member.runQueue = targets[i];
+	    targets[i].lock.acquire();
+	    makeReady(member.thread, targets[i]);
+	    targets[i].lock.release();
+	    coscheduleCount++;
+	    Debug.println('t', "Co-scheduling " + member.thread.name + " on "
+		    + targets[i].cpu.name);
+	}
+	gangLock.release();
+
+	if (idleCount > 0) {
+	    mutex.acquire();
+	    dispatchIdleCPUs();
+	    mutex.release();
+	}
+    }
+
+    /**
+     * Determine whether a running thread may be preempted to make way for
+     * the members of a gang: it must be neither real-time nor a member of
+     * the same gang.  Assumes that the gang lock is held.
+     *
+     * @param thread
+     *            The running thread.
+     * @param gang
+     *            The members of the gang.
+     * @return true if the thread may be preempted.
+     */
+    private boolean isPreemptible(NachosThread thread,
+	    List<SchedulingInfo> gang) {
+	SchedulingInfo info = threadInfo.get(thread);
+	return info != null && !info.hasBudget() && info.gang != gang;
+    }
+
+    /**
+     * Restrict a thread to run only on a specified set of CPUs.  If the thread
+     * is the current thread and the current CPU is not in the set, the thread
+     * moves to an allowed CPU before this method returns.  Otherwise, the new
+     * mask takes effect the next time the thread is scheduled.
+     *
+     * @param thread
+     *            The thread to restrict.
+     * @param mask
+     *            Bit i is set if the thread may run on the CPU with unit
+     *            number i.
+     * @return true if the mask was set, false if it names no existing CPU.
+     */
+    public boolean setAffinity(NachosThread thread, long mask) {
+	long existing = Machine.NUM_CPUS >= Long.SIZE
+		? SchedulingInfo.ALL_CPUS : (1L << Machine.NUM_CPUS) - 1;
+	if ((mask & existing) == 0)
+	    return false;
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	SchedulingInfo info = getInfo(thread);
+	info.affinity = mask;
+	Debug.println('t', "Affinity of " + thread.name + " set to 0x"
+		+ Long.toHexString(mask));
+	if (thread == NachosThread.currentThread()
+		&& !info.allows(CPU.currentCPU().unit))
+	    yieldCPU(NachosThread.RUNNING, null);
+	CPU.setLevel(oldLevel);
+	return true;
+    }
+
+    /**
+     * Get the hard affinity mask of a thread.
+     *
+     * @param thread
+     *            The thread.
+     * @return the mask, in which bit i is set if the thread may run on the
+     *         CPU with unit number i.
+     */
+    public long getAffinity(NachosThread thread) {
+	SchedulingInfo info = threadInfo.get(thread);
+	return info != null ? info.affinity : SchedulingInfo.ALL_CPUS;
+    }
+
+    /**
+     * Set the share weight of a thread.  Under stride or completely fair
+     * scheduling, threads competing for a CPU receive CPU time in proportion
+     * to their weights.
+     *
+     * @param thread
+     *            The thread.
+     * @param weight
+     *            The new weight, from 1 to MAX_WEIGHT.
+     * @return true if the weight was set, false if it was out of range.
+     */
+    public boolean setWeight(NachosThread thread, int weight) {
+	if (weight < 1 || weight > MAX_WEIGHT)
+	    return false;
+	getInfo(thread).weight = weight;
+	Debug.println('t', "Weight of " + thread.name + " set to " + weight);
+	return true;
+    }
+
+    /**
+     * Get the share weight of a thread.
+     *
+     * @param thread
+     *            The thread.
+     * @return the weight of the thread.
+     */
+    public int getWeight(NachosThread thread) {
+	SchedulingInfo info = threadInfo.get(thread);
+	return info != null ? info.weight : DEFAULT_WEIGHT;
+    }
+
+    /**
+     * Get the CPU time used so far by a thread, measured as the busy (user
+     * and system) ticks of the CPUs while they were running it.  For the
+     * current thread, this includes the time since it was last dispatched.
+     *
+     * @param thread
+     *            The thread.
+     * @return the number of ticks the thread has run.
+     */
+    public long getCPUTicks(NachosThread thread) {
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	long ticks = 0;
+	SchedulingInfo info = threadInfo.get(thread);
+	if (info != null) {
+	    if (thread == NachosThread.currentThread())
+		charge(info);
+	    ticks = info.cpuTicks;
+	}
+	CPU.setLevel(oldLevel);
+	return ticks;
+    }
+
+    /**
+     * Make the current thread a periodic real-time thread, or return it to
+     * the ordinary scheduling classes.  In each period, a real-time thread
+     * is released with a budget of CPU time and an absolute deadline, and
+     * while it has budget left it is scheduled ahead of all other threads,
+     * in order of deadline.  The thread is admitted to the CPU with the least
+     * real-time load among those its affinity mask allows, and is then
+     * restricted to that CPU, provided that its density (budget divided by
+     * the lesser of its period and deadline) does not take the total on that
+     * CPU over the utilization bound.  The first period starts now; the
+     * thread should call waitForNextPeriod() at the end of each job.
+     *
+     * @param period
+     *            The period, in ticks, or 0 to leave the real-time class.
+     * @param budget
+     *            The CPU time, in ticks, that the thread needs per period.
+     * @param deadline
+     *            The deadline, in ticks after each release, from budget up
+     *            to period.
+     * @return true if the thread was admitted (or left the real-time
+     *         class), false if the parameters are invalid or no allowed CPU
+     *         has enough spare real-time capacity, in which case the thread
+     *         is no longer real-time.
+     */
+    public boolean setRealTime(int period, int budget, int deadline) {
+	NachosThread thread = NachosThread.currentThread();
+	SchedulingInfo info = getInfo(thread);
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	releaseRealTime(info);
+	CPU.setLevel(oldLevel);
+	if (period == 0) {
+	    Debug.println('t', thread.name + " left the real-time class");
+	    return true;
+	}
+	if (budget <= 0 || budget > deadline || deadline > period)
+	    return false;
+	int density = (int) ((long) budget * FULL_LOAD / deadline);
+
+	oldLevel = CPU.setLevel(CPU.IntOff);
+	realTimeLock.acquire();
+	RunQueue chosen = null;
+	for (RunQueue queue : runQueues) {
+	    if (info.allows(queue.cpu.unit)
+		    && queue.realTimeLoad + density <= realTimeBound
+		    && (chosen == null
+			    || queue.realTimeLoad < chosen.realTimeLoad))
+		chosen = queue;
+	}
+	if (chosen != null) {
+	    chosen.realTimeLoad += density;
+	    info.realTimeQueue = chosen;
+	    info.density = density;
+	}
+	realTimeLock.release();
+	if (chosen == null) {
+	    CPU.setLevel(oldLevel);
+	    Debug.println('t', "Real-time admission of " + thread.name
+		    + " rejected: no CPU has " + density + " ppm to spare");
+	    return false;
+	}
+	charge(info);
+	info.period = period;
+	info.budget = budget;
+	info.relativeDeadline = deadline;
+	info.release = Simulation.currentTime();
+	info.deadline = info.release + deadline;
+	info.budgetLeft = budget;
+	info.savedAffinity = info.affinity;
+	Debug.println('t', thread.name + " admitted as real-time on "
+		+ chosen.cpu.name + ": period " + period + ", budget " + budget
+		+ ", deadline " + deadline);
+	setAffinity(thread, 1L << chosen.cpu.unit);
+	CPU.setLevel(oldLevel);
+	return true;
+    }
+
+    /**
+     * Remove a thread from the real-time class, if it is in it, releasing
+     * its share of the real-time load of its CPU and restoring its affinity
+     * mask.  Assumes that interrupts are disabled, and that the thread is
+     * either the current thread or finished.
+     *
+     * @param info
+     *            The scheduling state of the thread.
+     */
+    private void releaseRealTime(SchedulingInfo info) {
+	Debug.ASSERT(CPU.getLevel() == CPU.IntOff);
+	if (info.realTimeQueue == null)
+	    return;
+	realTimeLock.acquire();
+	info.realTimeQueue.realTimeLoad -= info.density;
+	info.realTimeQueue = null;
+	realTimeLock.release();
+	info.period = 0;
+	info.budgetLeft = 0;
+	info.affinity = info.savedAffinity;
+    }
+
+    /**
+     * End the current job of the current real-time thread, and block until
+     * the start of its next period, when it is released with a fresh budget
+     * and deadline.  If the job has overrun its deadline, the miss is counted
+     * and, if the thread has fallen more than a period behind, the periods
+     * it has missed altogether are skipped.
+     *
+     * @return true if the job that just ended met its deadline, false if it
+     *         missed it or the current thread is not real-time.
+     */
+    public boolean waitForNextPeriod() {
+	NachosThread thread = NachosThread.currentThread();
+	SchedulingInfo info = getInfo(thread);
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	if (info.period == 0) {
+	    CPU.setLevel(oldLevel);
+	    return false;
+	}
+	int now = Simulation.currentTime();
+	boolean met = now <= info.deadline;
+	if (!met) {
+	    info.missedDeadlines++;
+	    Debug.println('t', "Real-time thread " + thread.name
+		    + " missed its deadline " + info.deadline + " at " + now);
+	}
+	info.release += info.period;
+	if (info.release < now)
+	    info.release = now;
+	// The thread is running, so it is in no run queue and its deadline may
+	// change.  It wakes up in the real-time class, with a new budget.
+	charge(info);
+	info.deadline = info.release + info.relativeDeadline;
+	info.budgetLeft = info.budget;
+	int delay = (int) (info.release - now);
+	CPU.setLevel(oldLevel);
+	if (delay > 0) {
+	    final Semaphore wakeup =
+		    new Semaphore(thread.name + " next period", 0);
+	    setTimeout(delay, new Runnable() {
+		public void run() {
+		    wakeup.V();
+		}
+	    });
+	    wakeup.P();
+	}
+	return met;
+    }
+
+    /**
+     * Get the number of deadlines a real-time thread has missed.
+     *
+     * @param thread
+     *            The thread.
+     * @return the number of jobs of the thread that ended after their
+     *         deadlines.
+     */
+    public int getMissedDeadlines(NachosThread thread) {
+	SchedulingInfo info = threadInfo.get(thread);
+	return info != null ? info.missedDeadlines : 0;
     }
 
     /**
@@ -290,6 +1551,10 @@ public class Scheduler {
      * the ready list for rescheduling, or it will block, leaving the scheduler
      * for an indefinite period until something has again made it ready to run.
      * 
+     * The run queue of the current CPU stays locked until the switch away
+     * from the current thread is complete, so that a thread made ready by
+     * another CPU cannot be dispatched while it is still being switched out.
+     * 
      * This method must be called with interrupts disabled. When it eventually
      * returns, the same will again be true.
      *
@@ -309,13 +1574,15 @@ public class Scheduler {
     private void yieldCPU(int status, SpinLock toRelease) {
 	Debug.ASSERT(CPU.getLevel() == CPU.IntOff);
 	CPU currentCPU = CPU.currentCPU();
+	RunQueue local = runQueues[currentCPU.unit];
 	NachosThread currentThread = NachosThread.currentThread();
 	NachosThread nextThread = findNextToRun();
 
 	// If the current thread wants to keep running and there is no other
-	// thread to run,
-	// do nothing.
-	if (status == NachosThread.RUNNING && nextThread == null) {
+	// thread to run, do nothing, unless its affinity mask no longer
+	// allows it to run on this CPU.
+	if (status == NachosThread.RUNNING && nextThread == null
+		&& getInfo(currentThread).allows(currentCPU.unit)) {
 	    Debug.println('t', "No other thread to run -- "
 		    + currentThread.name + " continuing");
 	    return;
@@ -325,10 +1592,31 @@ public class Scheduler {
 
 	// The current thread will be suspending -- save its context.
 	currentThread.saveState();
+	if (status != NachosThread.FINISHED) {
+	    SchedulingInfo info = getInfo(currentThread);
+	    info.runQueue = local;
+	    charge(info);
+	}
 
-	mutex.acquire();
-	if (toRelease != null)
-	    toRelease.release();
+	if (nextThread == null) {
+	    // Announce that this CPU is about to go idle, then take one last
+	    // look for work while holding the idle CPU list lock.
+	    mutex.acquire();
+	    idleCount++;
+	    local.lock.acquire();
+	    if (toRelease != null)
+		toRelease.release();
+	    SchedulingInfo next = local.poll(currentCPU.unit, null);
+	    nextThread = next != null ? next.thread : steal(local);
+	    if (nextThread != null) {
+		idleCount--;
+		mutex.release();
+	    }
+	} else {
+	    local.lock.acquire();
+	    if (toRelease != null)
+		toRelease.release();
+	}
 	if (nextThread != null) {
 	    // Switch the CPU from currentThread to nextThread.
 
@@ -338,14 +1626,15 @@ public class Scheduler {
 	    if (status == NachosThread.RUNNING) {
 		// The current thread wants to keep running -- put it back in
 		// the ready list.
-		makeReady(currentThread, false);
+		makeReady(currentThread, local);
 	    } else {
 		// Set the new status of the thread before relinquishing the
 		// CPU.
 		if (status != NachosThread.FINISHED)
 		    currentThread.setStatus(status);
 	    }
-	    CPU.switchTo(nextThread, mutex);
+	    dispatched(nextThread, local);
+	    CPU.switchTo(nextThread, local.lock);
 	} else {
 	    // There is nothing for this CPU to do -- send it to the idle list.
 
@@ -353,9 +1642,17 @@ public class Scheduler {
 		    + currentThread.name + " to idle");
 
 	    cpuList.offer(currentCPU);
-	    if (status != NachosThread.FINISHED)
+	    if (status == NachosThread.RUNNING) {
+		// The current thread may not run here any more.  Leave it on
+		// this queue, from which another CPU can steal it once we have
+		// switched away, and make sure that some idle CPU looks.
+		makeReady(currentThread, local);
+		setTimeout(0, idleKick);
+	    } else if (status != NachosThread.FINISHED)
 		currentThread.setStatus(status);
-	    CPU.idle(mutex);
+	    local.running = null;
+	    stopTick(local);
+	    CPU.idle(local.idleRelease);
 	}
 	// Control returns here when currentThread has been rescheduled,
 	// perhaps on a different CPU.
@@ -363,6 +1660,9 @@ public class Scheduler {
 	currentThread.restoreState();
 
 	Debug.println('t', "Now in thread: " + currentThread.name);
+	List<SchedulingInfo> gang = getInfo(currentThread).gang;
+	if (gang != null)
+	    coschedule(gang);
     }
 
     /**
@@ -451,27 +1751,151 @@ public class Scheduler {
 	threadToBeDestroyed = currentThread;
 	mutex.release();
 
-	// not reached
-
-	if(Nachos.options.MULTI_LEVEL_FEEDBACK_SCHEDULE_TEST) {
-	    if(whichQueueInProcess == QUEUE1_IN_PROCESS) {
-		readyList1.poll();
-	    } else if(whichQueueInProcess == QUEUE2_IN_PROCESS) {
-		readyList2.poll();
-	    }  else if(whichQueueInProcess == QUEUE3_IN_PROCESS) {
-		readyList3.poll();
-	    } else if(whichQueueInProcess == QUEUE4_IN_PROCESS) {
-		readyList4.poll();
-	    } else if(whichQueueInProcess == QUEUE5_IN_PROCESS) {
-		readyList5.poll();
-	    }
+	SchedulingInfo info = threadInfo.remove(currentThread);
+	if (info != null && info.gang != null)
+	    leaveGang(info);
+	if (info != null && info.period > 0) {
+	    Debug.println('t', "Real-time thread " + currentThread.name
+		    + " missed " + info.missedDeadlines + " deadlines");
+	    releaseRealTime(info);
 	}
-	
+	if ((stride || fair) && info != null) {
+	    charge(info);
+	    Debug.println('t', "Thread " + currentThread.name + " of weight "
+		    + info.weight + " ran for " + info.cpuTicks + " ticks");
+	}
+
 	yieldCPU(NachosThread.FINISHED, null);
 	// Interrupts will be re-enabled when the next thread runs or the
 	// current CPU goes idle.
     }
 
+    /**
+     * Charge a timer tick to the thread running on a CPU, and determine
+     * whether that thread should give way to another.  A real-time thread
+     * gives way when it has used up its budget for the period, or when a
+     * real-time thread with an earlier deadline is waiting.  Any other thread
+     * gives way as soon as a real-time thread, or a thread that has been
+     * brought here to run with its gang, is waiting, or else when it has
+     * used up its quantum.  Assumes that interrupts are disabled.
+     *
+     * @param unit
+     *            The unit number of the CPU that took the timer interrupt.
+     * @return true if the running thread should yield the CPU.
+     */
+    private boolean quantumExpired(int unit) {
+	RunQueue queue = runQueues[unit];
+	NachosThread thread = queue.running;
+	if (thread != null) {
+	    SchedulingInfo info = getInfo(thread);
+	    if (info.hasBudget()) {
+		charge(info);
+		if (!info.hasBudget()) {
+		    Debug.println('t', "Real-time thread " + thread.name
+			    + " used its budget");
+		    return true;
+		}
+		if (!queue.hasRealTime())
+		    return false;
+		queue.lock.acquire();
+		boolean earlier = queue.earliestDeadline() < info.deadline;
+		queue.lock.release();
+		return earlier;
+	    }
+	}
+	boolean expired = sliceExpired(unit, thread);
+	return expired || queue.hasRealTime() || queue.hasCoscheduled();
+    }
+
+    /**
+     * Charge a timer tick to a thread that is not real-time, and determine
+     * whether that thread has used up its quantum.  Under the multilevel
+     * feedback queue policy, each thread has its own quantum, which doubles
+     * at each level, and a thread that uses up its quantum is moved down a
+     * level.  A thread that blocks before using up its quantum keeps its
+     * level, so interactive threads stay at the top levels.  Under completely
+     * fair scheduling, the time slice is the target latency divided among
+     * the threads competing for the CPU.  Otherwise, every thread gets the
+     * same fixed quantum.  Assumes that interrupts are disabled.
+     *
+     * @param unit
+     *            The unit number of the CPU that took the timer interrupt.
+     * @param thread
+     *            The thread running on that CPU, or null if it is idle.
+     * @return true if the running thread has used up its quantum.
+     */
+    private boolean sliceExpired(int unit, NachosThread thread) {
+	if (stride && thread != null) {
+	    // Advance the pass of the thread, and give the CPU to the thread
+	    // with the smallest pass at the end of each quantum.
+	    SchedulingInfo info = getInfo(thread);
+	    info.key += STRIDE1 / info.weight;
+	    info.quantumLeft -= TICK_INTERVAL;
+	    if (info.quantumLeft > 0)
+		return false;
+	    info.quantumLeft = MAX_QUANTUM;
+	    return true;
+	}
+	if (fair && thread != null) {
+	    SchedulingInfo info = getInfo(thread);
+	    charge(info);
+	    int slice = Math.max(targetLatency
+		    / (runQueues[unit].size() + 1), minGranularity);
+	    if (info.cpuTicks - info.sliceStart < slice)
+		return false;
+	    info.sliceStart = info.cpuTicks;
+	    return true;
+	}
+	if (multiLevel && thread != null) {
+	    // Without tickless timers, CPU 0 always ticks, so it does the boosts.
+	    if (boostInterval > 0 && (unit == 0 || tickless)
+		    && Simulation.currentTime() - lastBoostTime >= boostInterval)
+		boostPriorities();
+	    SchedulingInfo info = getInfo(thread);
+	    currentLevel(info);
+	    info.quantumLeft -= TICK_INTERVAL;
+	    if (info.quantumLeft > 0)
+		return false;
+	    if (info.level < numLevels - 1)
+		info.level++;
+	    info.quantumLeft = quantumForLevel(info.level);
+	    Debug.println('t', "Thread " + thread.name + " used its quantum, "
+		    + "moving to level " + info.level);
+	    return true;
+	}
+	if (cpuQuantums[unit] < MAX_QUANTUM) {
+	    cpuQuantums[unit] += TICK_INTERVAL;
+	    return false;
+	}
+	cpuQuantums[unit] = 0;
+	return true;
+    }
+
+    /**
+     * Move every thread back to level 0 of the multilevel feedback queue,
+     * so that threads that have sunk to the bottom levels are not starved.
+     * Threads in the run queues are moved immediately; other threads are
+     * moved the next time their level is looked at.  Does nothing if another
+     * CPU has just done a boost.  Assumes that interrupts are disabled.
+     */
+    private void boostPriorities() {
+	boostLock.acquire();
+	boolean due = Simulation.currentTime() - lastBoostTime >= boostInterval;
+	if (due) {
+	    lastBoostTime = Simulation.currentTime();
+	    boostEpoch++;
+	}
+	boostLock.release();
+	if (!due)
+	    return;
+	Debug.println('t', "Boosting all threads to level 0");
+	for (RunQueue queue : runQueues) {
+	    queue.lock.acquire();
+	    queue.boost();
+	    queue.lock.release();
+	}
+    }
+
     /**
      * Interrupt handler for the time-slice timer. A timer is set up to
      * interrupt the CPU periodically (once every Timer.DefaultInterval ticks).
@@ -483,8 +1907,6 @@ public class Scheduler {
 	/** The Timer device this is a handler for. */
 	private final Timer timer;
 
-	SpinLock mTickModificationLock = new SpinLock("tick_modification_lock");
-	
 	private int quantum = 0;
 	private int queueQuantum = 0;
 	
@@ -507,46 +1929,22 @@ public class Scheduler {
 	    // if the interrupted thread called yield at the point it is
 	    // was interrupted.
 	    
-	    CPU ccpu = CPU.currentCPU();
-	    CPU cpu = null;
-	    int j = 0;
-	    for(int i = 0; i < Machine.NUM_CPUS; i++) {
-		if(ccpu == cpus[i]) {
-		    cpu = cpus[i];
-		    j = i;
-		    break;
-		}
-	    }
-	    if (cpuQuantums[j] < MAX_QUANTUM) {
-		    cpuQuantums[j] += TICK_INTERVAL;
-		    return;
-	    }
-	    cpuQuantums[j] = 0;
-	    
-	    yieldOnReturn();
-
-	    // Implementation of sleep system call
-	    mTickModificationLock.acquire();
-	    if (mThreads.isEmpty()) {
-		mTickModificationLock.release();
-		return;
-	    }
-	    int length = mThreads.size();
-	    for (int i = 0; i < length; i++) {
-		if (mTicks.get(i) <= 0) {
-		    if(CPU.currentCPU() != mThreadCPUMap.get(mThreads.get(i)))
-			continue;
-		    mThreads.remove(i);
-		    length--;
-		    mTicks.remove(i);
-		    mSemaphoreForSleep.V();
-		} else {
-		    int t = mTicks.get(i);
-		    mTicks.set(i, t-TICK_INTERVAL);
-		}
-		i++;
+	    Scheduler scheduler = Nachos.scheduler;
+	    int unit = CPU.currentCPU().unit;
+	    if (scheduler.wheelTimer == null)
+		scheduler.timerWheel.advance(Simulation.currentTime());
+	    scheduler.balanceLoad();
+	    if (scheduler.quantumExpired(unit))
+		yieldOnReturn();
+	    if (scheduler.tickless) {
+		// Nobody is waiting for this CPU, so there is no need to keep
+		// interrupting it to share it out.
+		RunQueue queue = scheduler.runQueues[unit];
+		queue.lock.acquire();
+		if (queue.size() == 0)
+		    scheduler.stopTick(queue);
+		queue.lock.release();
 	    }
-	    mTickModificationLock.release();
 	}
 
 	/**
@@ -577,23 +1975,87 @@ public class Scheduler {
     }
 
     /**
-     * Makes a process sleep for the specified time
+     * Interrupt handler for the timer that drives the timer wheel when CPU
+     * timers are not in use.  The timer is stopped once no timeouts are
+     * pending, so that an idle system does not keep taking interrupts.
+     */
+    private class WheelTimerInterruptHandler implements InterruptHandler {
+
+	public void handleInterrupt() {
+	    Debug.println('i', "Timer interrupt: " + wheelTimer.name);
+	    timerWheel.advance(Simulation.currentTime());
+	    wheelTimerLock.acquire();
+	    if (timerWheel.size() == 0 && wheelTimerRunning) {
+		wheelTimer.stop();
+		wheelTimerRunning = false;
+	    }
+	    wheelTimerLock.release();
+	}
+
+    }
+
+    /**
+     * Arrange for an action to be performed after a specified number of
+     * ticks have elapsed.  The action is performed from a timer interrupt
+     * handler, with interrupts disabled, so it must not block; typically it
+     * makes some thread ready to run, for example by calling Semaphore.V().
+     * The delay is rounded up to a whole number of timer interrupts.
+     *
+     * @param ticks
+     *            The number of ticks from now at which to perform the action.
+     * @param action
+     *            The action to perform.
+     * @return a handle that can be passed to cancelTimeout().
+     */
+    public TimerWheel.Timeout setTimeout(int ticks, Runnable action) {
+	int deadline = Simulation.currentTime() + Math.max(ticks, 0);
+	TimerWheel.Timeout timeout = timerWheel.schedule(deadline, action);
+	if (wheelTimer != null) {
+	    int oldLevel = CPU.setLevel(CPU.IntOff);
+	    wheelTimerLock.acquire();
+	    if (!wheelTimerRunning) {
+		wheelTimer.start();
+		wheelTimerRunning = true;
+	    }
+	    wheelTimerLock.release();
+	    CPU.setLevel(oldLevel);
+	}
+	return timeout;
+    }
+
+    /**
+     * Cancel an action previously arranged by setTimeout().
+     *
+     * @param timeout
+     *            The handle returned by setTimeout().
+     * @return true if the action was cancelled, false if it has already been
+     *         performed or cancelled.
+     */
+    public boolean cancelTimeout(TimerWheel.Timeout timeout) {
+	return timerWheel.cancel(timeout);
+    }
+
+    /**
+     * Makes the current thread sleep for the specified time.  Each sleeping
+     * thread has its own timeout in the timer wheel, so it is woken up as
+     * soon as its own time is up, regardless of how many other threads are
+     * sleeping.
      * 
      * @param sleepTime
-     *            sleep time
+     *            sleep time, in ticks
      */
     public void sleep(int sleepTime) {
-	if(sleepTime > Integer.MAX_VALUE) {
-	    Debug.println('+', "Sleep time is more than integer max value (2^31 - 1");
-	    return;
-	}
-	sleepLock.acquire();
-	mThreads.add(NachosThread.currentThread());
-	mTicks.add(sleepTime - TICK_INTERVAL);
-	mThreadCPUMap.put(NachosThread.currentThread(), CPU.currentCPU());
-	Debug.println('+', "Thread " + NachosThread.currentThread().name + " went to sleep  of " + sleepTime + " ticks");
-	mSemaphoreForSleep.P();
-	Debug.println('+', "Thread " + NachosThread.currentThread().name + " Waken up from the sleep  of " + sleepTime + " ticks");
-	sleepLock.release();
+	NachosThread currentThread = NachosThread.currentThread();
+	final Semaphore wakeup = new Semaphore(currentThread.name + " sleep", 0);
+	Debug.println('+', "Thread " + currentThread.name
+		+ " went to sleep  of " + sleepTime + " ticks");
+	setTimeout(sleepTime, new Runnable() {
+	    public void run() {
+		wakeup.V();
+	    }
+	});
+	wakeup.P();
+	Debug.println('+', "Thread " + currentThread.name
+		+ " Waken up from the sleep  of " + sleepTime + " ticks");
     }
 }
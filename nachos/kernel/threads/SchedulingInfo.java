@@ -0,0 +1,186 @@
+// SchedulingInfo.java
+//
+// Copyright (c) 2003 State University of New York at Stony Brook.
+// All rights reserved.  See the COPYRIGHT file for copyright notice and
+// limitation of liability and disclaimer of warranty provisions.
+
+package nachos.kernel.threads;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import nachos.machine.NachosThread;
+
+/**
+ * Per-thread state kept by the scheduler.  NachosThread belongs to the
+ * machine package, so the scheduler keeps one of these objects for each
+ * thread it knows about, rather than adding fields to the thread itself.
+ *
+ * The fields are only changed either by the CPU on which the thread is
+ * running, or while the thread is not running and the lock on the run queue
+ * that holds it is held, so they need no lock of their own.
+ */
+class SchedulingInfo {
+
+    /** Affinity mask that allows a thread to run on any CPU. */
+    static final long ALL_CPUS = -1L;
+
+    /** Value of donatedLevel when no priority has been lent to the thread. */
+    static final int NO_DONATION = Integer.MAX_VALUE;
+
+    /** The thread this is the scheduling state of. */
+    final NachosThread thread;
+
+    /**
+     * Run queue of the CPU on which the thread last ran, or null if the
+     * thread has not yet run.
+     */
+    RunQueue runQueue;
+
+    /**
+     * Run queue of the CPU on which the thread was last dispatched, used to
+     * count migrations.  Unlike runQueue, this is not changed when a thread
+     * is moved to another queue because of its affinity mask.
+     */
+    RunQueue lastDispatched;
+
+    /** Multilevel feedback queue level; 0 is the highest priority. */
+    int level;
+
+    /** Number of ticks left in the thread's quantum at its current level. */
+    int quantumLeft;
+
+    /**
+     * Value of the scheduler's priority boost counter when the level
+     * of the thread was last set.  If the counter has since advanced,
+     * the thread is due to be moved back to level 0.
+     */
+    int boostEpoch;
+
+    /**
+     * Share weight: under proportional-share scheduling, a thread receives
+     * CPU time in proportion to its weight.
+     */
+    volatile int weight = Scheduler.DEFAULT_WEIGHT;
+
+    /**
+     * Key by which the thread is ordered in a keyed run queue, such as its
+     * stride scheduling pass or its virtual runtime.  Only changed while the thread is not in a
+     * run queue.
+     */
+    long key;
+
+    /** Arrival number in a keyed run queue, to break ties between keys. */
+    long seq;
+
+    /** Total busy ticks of the CPUs while the thread was running on them. */
+    long cpuTicks;
+
+    /** Busy ticks of the CPU when the thread was last dispatched on it. */
+    long dispatchTicks;
+
+    /** Value of cpuTicks when the thread's current time slice began. */
+    long sliceStart;
+
+    /** Real-time period, in ticks, or 0 if the thread is not real-time. */
+    int period;
+
+    /** Real-time budget: CPU ticks the thread may use in each period. */
+    int budget;
+
+    /** Real-time relative deadline, in ticks after each release. */
+    int relativeDeadline;
+
+    /** Time at which the current real-time job was released. */
+    long release;
+
+    /** Absolute deadline of the current real-time job. */
+    long deadline;
+
+    /** Budget left in the current period. */
+    int budgetLeft;
+
+    /** Number of real-time jobs that finished after their deadlines. */
+    int missedDeadlines;
+
+    /** Run queue whose real-time load includes this thread, if any. */
+    RunQueue realTimeQueue;
+
+    /** Real-time load of the thread, in parts per million of a CPU. */
+    int density;
+
+    /** Affinity mask of the thread before it was made real-time. */
+    long savedAffinity;
+
+    /**
+     * The members of the gang to which the thread belongs, shared by all of
+     * them, or null if it belongs to none.  Only changed, and the list only
+     * used, with the scheduler's gang lock held.
+     */
+    List<SchedulingInfo> gang;
+
+    /** The object identifying the gang, or null if there is none. */
+    Object gangKey;
+
+    /**
+     * Has the thread been placed in a run queue to run alongside the other
+     * members of its gang?  Only changed while the thread is in no queue, or
+     * with the lock on its queue held.
+     */
+    boolean coscheduled;
+
+    /**
+     * The highest priority (lowest multilevel feedback queue level) lent to
+     * the thread by threads waiting for locks it holds, or NO_DONATION.
+     * The thread is scheduled at this level if it is better than its own.
+     * Only changed with the scheduler's inheritance lock held, and not while
+     * the thread is in a run queue.
+     */
+    int donatedLevel = NO_DONATION;
+
+    /** Time at which a priority was first lent to the thread. */
+    int donatedSince;
+
+    /** The lock the thread is waiting to acquire, if any. */
+    Lock waitingFor;
+
+    /** The locks the thread holds. */
+    final List<Lock> heldLocks = new ArrayList<Lock>();
+
+    /**
+     * Hard affinity mask: bit i is set if and only if the thread may run on
+     * the CPU with unit number i.  This may be changed at any time, and takes
+     * effect the next time the thread is taken from a run queue.
+     */
+    volatile long affinity = ALL_CPUS;
+
+    /**
+     * Initialize the scheduling state of a thread.
+     *
+     * @param thread  The thread.
+     */
+    SchedulingInfo(NachosThread thread) {
+	this.thread = thread;
+    }
+
+    /**
+     * Determine whether the thread may run on a specified CPU.
+     *
+     * @param unit  The unit number of the CPU.
+     * @return true if the affinity mask of the thread allows that CPU.
+     */
+    boolean allows(int unit) {
+	return (affinity & (1L << unit)) != 0;
+    }
+
+    /**
+     * Determine whether the thread is real-time and has budget left in its
+     * current period, so that it takes precedence over other threads.
+     *
+     * @return true if the thread is to be scheduled as real-time.
+     */
+    boolean hasBudget() {
+	return period > 0 && budgetLeft > 0;
+    }
+
+}
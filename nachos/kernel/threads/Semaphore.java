@@ -25,8 +25,8 @@ import nachos.Debug;
 import nachos.kernel.Nachos;
 import nachos.machine.CPU;
 import nachos.machine.NachosThread;
-import nachos.util.FIFOQueue;
-import nachos.util.Queue;
+import nachos.machine.Simulation;
+import nachos.util.RemovableQueue;
 
 /**
  * This class defines a "semaphore" whose value is a non-negative
@@ -35,6 +35,12 @@ import nachos.util.Queue;
  *	P() -- waits until value > 0, then decrement.
  *
  *	V() -- increment, waking up a thread waiting in P() if necessary.
+ *
+ * There are also two variants of P(): tryP(), which never waits, and
+ * P(ticks), which gives up if the value has not become > 0 within a
+ * given number of ticks.  A thread waiting in P(ticks) is taken out of
+ * the queue by a scheduler timeout when its time runs out, so it does not
+ * need anyone else to wake it up.
  * 
  * Note that the interface does *not* allow a thread to read the value of 
  * the semaphore directly -- even if you did read the value, the
@@ -57,7 +63,7 @@ public class Semaphore {
     private int value;
 
     /** Threads waiting in P() for the value to be > 0. */
-    private final Queue<NachosThread> queue;
+    private final RemovableQueue<NachosThread> queue;
 
     /**
      * Spin lock used to obtain exclusive access to semaphore state
@@ -74,7 +80,7 @@ public class Semaphore {
     public Semaphore(String debugName, int initialValue) {
 	name = debugName;
 	value = initialValue;
-	queue = new FIFOQueue<NachosThread>();
+	queue = new RemovableQueue<NachosThread>();
 	spinLock = new SpinLock(name + " spin lock");
     }
 
@@ -107,6 +113,67 @@ public class Semaphore {
 	CPU.setLevel(oldLevel);				// restore interrupts
     }
 
+    /**
+     * 	Decrement semaphore value if it is > 0, without waiting.
+     *
+     *	@return true if the value was decremented, false if it was 0.
+     */
+    public boolean tryP() {
+	int oldLevel = CPU.setLevel(CPU.IntOff);	// disable interrupts
+	spinLock.acquire();				// exclude other CPUs
+
+	boolean available = value > 0;
+	if (available) {
+	    Debug.println('s', "Semaphore " + name + ": value " + value
+		    + " -> " + (value-1));
+	    value--;
+	}
+
+	spinLock.release();				// release exclusion
+	CPU.setLevel(oldLevel);				// restore interrupts
+	return available;
+    }
+
+    /**
+     * 	Wait until semaphore value > 0, then decrement, but give up if
+     * 	that has not happened after a given number of ticks.
+     *
+     *	@param ticks The longest time to wait, in ticks.
+     *	@return true if the value was decremented, false if the time ran
+     *	out first.
+     */
+    public boolean P(int ticks) {
+	int oldLevel = CPU.setLevel(CPU.IntOff);	// disable interrupts
+	spinLock.acquire();				// exclude other CPUs
+
+	int deadline = Simulation.currentTime() + ticks;
+	int remaining;
+	while (value == 0
+		&& (remaining = deadline - Simulation.currentTime()) > 0) {
+	    // wait in the queue until a V(), or until the timeout takes us out
+	    TimedWait wait =
+		new TimedWait(queue.add(NachosThread.currentThread()));
+	    TimerWheel.Timeout timeout =
+		Nachos.scheduler.setTimeout(remaining, wait);
+	    Nachos.scheduler.sleepThread(spinLock);
+	    Nachos.scheduler.cancelTimeout(timeout);
+	    spinLock.acquire();				// restore exclusion
+	}
+	boolean available = value > 0;
+	if (available) {
+	    Debug.println('s', "Semaphore " + name + ": value " + value
+		    + " -> " + (value-1));
+	    value--;
+	} else {
+	    Debug.printf('s', "Thread %s timed out waiting on semaphore %s\n",
+		    NachosThread.currentThread().name, name);
+	}
+
+	spinLock.release();				// release exclusion
+	CPU.setLevel(oldLevel);				// restore interrupts
+	return available;
+    }
+
     /**
      * 	Increment semaphore value, waking up a waiter if necessary.
      */
@@ -131,4 +198,34 @@ public class Semaphore {
 	CPU.setLevel(oldLevel);
     }
 
+    /**
+     * A thread waiting in P(ticks).  If its time runs out before a V()
+     * wakes it, the scheduler runs this from the timer interrupt handler,
+     * with interrupts disabled, to take the thread out of the queue and
+     * make it ready to run again.
+     */
+    private class TimedWait implements Runnable {
+
+	/** The waiting thread's entry in the queue. */
+	private final RemovableQueue.Entry<NachosThread> entry;
+
+	/**
+	 * Initialize a timed wait.
+	 *
+	 * @param entry  The waiting thread's entry in the queue.
+	 */
+	TimedWait(RemovableQueue.Entry<NachosThread> entry) {
+	    this.entry = entry;
+	}
+
+	/**
+	 * Wake up the waiting thread, unless a V() has already done so.
+	 */
+	public void run() {
+	    spinLock.acquire();
+	    if (queue.remove(entry))
+		Nachos.scheduler.readyToRun(entry.element);
+	    spinLock.release();
+	}
+    }
 }
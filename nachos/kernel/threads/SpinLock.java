@@ -1,35 +1,145 @@
 package nachos.kernel.threads;
 
 import nachos.Debug;
+import nachos.kernel.Nachos;
 import nachos.machine.Machine;
 import nachos.machine.Releasable;
+import nachos.machine.Simulation;
 import nachos.machine.TestAndSetVariable;
 
 /**
  * This class implements "spin locks" for multiprocessor synchronization.
- * 
+ *
+ * There are three kinds of spin lock.  A TEST_AND_SET lock is a single
+ * shared location that every waiting CPU hammers with test-and-set; it is
+ * cheap when uncontended, but unfair, since whichever CPU happens to try at
+ * the right moment gets the lock.  A TICKET lock hands out numbered tickets
+ * and serves them in order, so CPUs get the lock first-come, first-served.
+ * A QUEUED lock (of the kind described by Mellor-Crummey and Scott) is also
+ * first-come, first-served, but keeps the waiting CPUs in a queue, each
+ * spinning on a location of its own, so that a release disturbs only the
+ * next waiter.  The kind is chosen when the lock is created, either
+ * explicitly or from Nachos.options.SPIN_LOCK_KIND.
+ *
+ * The simulated machine only provides test-and-set, so the fetch-and-add,
+ * swap and compare-and-swap steps of the ticket and queued locks are made
+ * atomic by briefly holding the test-and-set location.  It is held for just
+ * that one step, never while waiting for the lock itself.
+ *
+ * Each lock keeps statistics on how much it has been contended: the number
+ * of acquisitions, how many of them had to wait, the total and largest
+ * number of times a waiter spun, and the longest time the lock was held.
+ * The statistics are updated while the lock is held, so they need no
+ * further synchronization.  With just one CPU, spin locks do nothing, and
+ * no statistics are kept.
+ *
  * @author Eugene W. Stark
  * @version 20140106
  */
 
 public class SpinLock implements Releasable {
-    
+
+    /** Kind of lock in which every waiter spins on one test-and-set location. */
+    public static final int TEST_AND_SET = 0;
+
+    /** Kind of lock that serves waiters in ticket order. */
+    public static final int TICKET = 1;
+
+    /** Kind of lock that queues waiters, each spinning on its own location. */
+    public static final int QUEUED = 2;
+
+    /** Names of the kinds of lock, as used by Nachos.options.SPIN_LOCK_KIND. */
+    public static final String[] kindNames = { "tas", "ticket", "mcs" };
+
+    /**
+     * Entry of a waiting CPU in the queue of a QUEUED lock.
+     */
+    private static class QueueNode {
+
+	/** Set by the predecessor, when it releases the lock to this waiter. */
+	volatile boolean waiting = true;
+
+	/** The next waiter, once it has linked itself into the queue. */
+	volatile QueueNode next;
+    }
+
     /** The underlying shared memory location with an atomic test-and-set operation. */
     private TestAndSetVariable<Boolean> shared;
-    
+
     /** Name of this lock, for debugging. */
     private final String name;
-    
+
+    /** The kind of this lock. */
+    private final int kind;
+
+    /** For a TICKET lock, the next ticket to be handed out. */
+    private int nextTicket;
+
+    /** For a TICKET lock, the ticket now being served. */
+    private volatile int nowServing;
+
+    /** For a QUEUED lock, the last waiter in the queue, or null if unlocked. */
+    private volatile QueueNode tail;
+
+    /** For a QUEUED lock, the queue entry of the current holder. */
+    private QueueNode holder;
+
+    /** Simulated time at which the lock was last acquired. */
+    private int acquiredAt;
+
+    /** Number of times the lock has been acquired. */
+    private long acquisitions;
+
+    /** Number of acquisitions that had to wait for another holder. */
+    private long contended;
+
+    /** Total number of times waiters have spun. */
+    private long spins;
+
+    /** Largest number of times a single waiter has spun. */
+    private long maxSpins;
+
+    /** Longest time, in ticks, for which the lock has been held. */
+    private int maxHoldTicks;
+
     /**
-     * Initialize a spin lock.
-     * 
+     * Initialize a spin lock, of the kind given by the options.
+     *
      * @param name  Name of the lock, for debugging.
      */
     public SpinLock(String name) {
+	this(name, Nachos.options == null ? TEST_AND_SET
+		: kindOf(Nachos.options.SPIN_LOCK_KIND));
+    }
+
+    /**
+     * Initialize a spin lock of a given kind.
+     *
+     * @param name  Name of the lock, for debugging.
+     * @param kind  TEST_AND_SET, TICKET or QUEUED.
+     */
+    public SpinLock(String name, int kind) {
+	Debug.ASSERT(kind >= TEST_AND_SET && kind <= QUEUED,
+		"Bad spin lock kind");
 	this.name = name;
+	this.kind = kind;
 	shared = new TestAndSetVariable<Boolean>();
     }
-    
+
+    /**
+     * Find the kind of lock with a given name.
+     *
+     * @param kindName  One of the names in kindNames.
+     * @return  The kind of lock, or -1 if there is none by that name.
+     */
+    public static int kindOf(String kindName) {
+	for(int i = 0; i < kindNames.length; i++) {
+	    if(kindNames[i].equals(kindName))
+		return i;
+	}
+	return -1;
+    }
+
     /**
      * Acquire this spin lock.
      */
@@ -37,13 +147,70 @@ public class SpinLock implements Releasable {
 	if(Machine.NUM_CPUS > 1) {
 	    Debug.printf('s', "Acquiring spin lock: %s\n", name);
 
-	    while(shared.testAndSet(true) != null)
-		/* spin */;
+	    long spun;
+	    switch(kind) {
+	    case TICKET:
+		spun = acquireTicket();
+		break;
+	    case QUEUED:
+		spun = acquireQueued();
+		break;
+	    default:
+		spun = 0;
+		while(shared.testAndSet(true) != null)
+		    spun++;
+		break;
+	    }
+	    acquiredAt = Simulation.currentTime();
+	    acquisitions++;
+	    if(spun > 0) {
+		contended++;
+		spins += spun;
+		if(spun > maxSpins)
+		    maxSpins = spun;
+	    }
 
 	    Debug.printf('s', "Acquired spin lock: %s\n", name);
 	}
     }
-    
+
+    /**
+     * Take a ticket and wait for it to be served.
+     *
+     * @return  The number of times we spun.
+     */
+    private long acquireTicket() {
+	lockShared();
+	int ticket = nextTicket++;
+	shared.reset();
+	long spun = 0;
+	while(nowServing != ticket)
+	    spun++;
+	return spun;
+    }
+
+    /**
+     * Join the end of the queue and wait for our predecessor to hand
+     * the lock on.
+     *
+     * @return  The number of times we spun.
+     */
+    private long acquireQueued() {
+	QueueNode node = new QueueNode();
+	lockShared();
+	QueueNode predecessor = tail;
+	tail = node;
+	shared.reset();
+	long spun = 0;
+	if(predecessor != null) {
+	    predecessor.next = node;
+	    while(node.waiting)
+		spun++;
+	}
+	holder = node;
+	return spun;
+    }
+
     /**
      * Release this spin lock.
      */
@@ -51,13 +218,56 @@ public class SpinLock implements Releasable {
 	if(Machine.NUM_CPUS > 1) {
 	    Debug.printf('s', "Releasing spin lock: %s\n", name);
 
+	    int held = Simulation.currentTime() - acquiredAt;
+	    if(held > maxHoldTicks)
+		maxHoldTicks = held;
+	    switch(kind) {
+	    case TICKET:
+		nowServing++;
+		break;
+	    case QUEUED:
+		releaseQueued();
+		break;
+	    default:
+		shared.reset();
+		break;
+	    }
+	}
+    }
+
+    /**
+     * Hand the lock on to the next waiter in the queue, if there is one.
+     */
+    private void releaseQueued() {
+	QueueNode node = holder;
+	holder = null;
+	if(node.next == null) {
+	    lockShared();
+	    if(tail == node) {
+		tail = null;
+		shared.reset();
+		return;
+	    }
 	    shared.reset();
+	    // A waiter has joined the queue, but not yet linked itself in.
+	    while(node.next == null)
+		/* spin */;
 	}
+	node.next.waiting = false;
     }
-    
+
+    /**
+     * Obtain the test-and-set location, for one atomic step on the ticket
+     * counter or the queue.
+     */
+    private void lockShared() {
+	while(shared.testAndSet(true) != null)
+	    /* spin */;
+    }
+
     /**
      * Determine if this spin lock is currently locked.
-     * 
+     *
      * @return true if this spin lock is currently locked, false otherwise.
      * Note that a return value of true does not imply that the currently executing
      * activity is the one that acquired the spin lock, only that the spin lock was
@@ -71,10 +281,85 @@ public class SpinLock implements Releasable {
      */
     public boolean isLocked() {
 	if(Machine.NUM_CPUS > 1) {
-	    return shared.getValue() != null;
+	    switch(kind) {
+	    case TICKET:
+		return nextTicket != nowServing;
+	    case QUEUED:
+		return tail != null;
+	    default:
+		return shared.getValue() != null;
+	    }
 	} else {
 	    return true;
 	}
     }
 
+    /**
+     * Get the kind of this spin lock.
+     *
+     * @return  TEST_AND_SET, TICKET or QUEUED.
+     */
+    public int getKind() {
+	return kind;
+    }
+
+    /**
+     * Get the number of times this spin lock has been acquired.
+     *
+     * @return  The number of acquisitions.
+     */
+    public long getAcquisitions() {
+	return acquisitions;
+    }
+
+    /**
+     * Get the number of acquisitions of this spin lock that had to wait.
+     *
+     * @return  The number of contended acquisitions.
+     */
+    public long getContended() {
+	return contended;
+    }
+
+    /**
+     * Get the total number of times waiters have spun on this spin lock.
+     *
+     * @return  The number of spin iterations.
+     */
+    public long getSpins() {
+	return spins;
+    }
+
+    /**
+     * Get the largest number of times a single waiter has spun on this
+     * spin lock, which shows how unfair it has been.
+     *
+     * @return  The largest number of spin iterations of one acquisition.
+     */
+    public long getMaxSpins() {
+	return maxSpins;
+    }
+
+    /**
+     * Get the longest time for which this spin lock has been held.
+     *
+     * @return  The longest hold time, in ticks.
+     */
+    public int getMaxHoldTicks() {
+	return maxHoldTicks;
+    }
+
+    /**
+     * Describe this spin lock and its statistics.  The numbers are read
+     * without holding the lock, so they might be slightly inconsistent.
+     *
+     * @return  A one-line summary.
+     */
+    public String getStatistics() {
+	return name + " (" + kindNames[kind] + "): " + acquisitions
+		+ " acquisitions, " + contended + " contended, " + spins
+		+ " spins (at most " + maxSpins + "), held at most "
+		+ maxHoldTicks + " ticks";
+    }
+
 }
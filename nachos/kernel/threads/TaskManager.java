@@ -1,11 +1,11 @@
 package nachos.kernel.threads;
 
-import java.util.ArrayList;
-import java.util.List;
-
 import nachos.Debug;
 import nachos.kernel.Nachos;
+import nachos.machine.CPU;
 import nachos.machine.NachosThread;
+import nachos.util.FIFOQueue;
+import nachos.util.Queue;
 
 /**
  * This class provides a facility for scheduling work to be performed
@@ -13,42 +13,115 @@ import nachos.machine.NachosThread;
  * results back to a "parent" thread.  It is loosely modeled after the
  * AsyncTask facility provided in the Android API.
  *
- * The class is provided in skeletal form.  It is your job to
- * complete the implementation of this class in conformance with the
- * Javadoc specifications provided for each method.  The method
- * signatures specified below must not be changed.  However, the
- * implementation will likely require additional private methods as well
- * as (private) instance variables.  Also, it is essential to provide
- * proper synchronization for any data that can be accessed concurrently.
- * You may use any combination of semaphores, locks, and conditions
- * for this purpose.
+ * The background work is done by a fixed pool of worker threads, created
+ * with the TaskManager and reused for task after task, which take tasks
+ * from a bounded queue.  A thread that executes a task while the queue is
+ * full waits until a worker takes one; if it is the parent thread, it runs
+ * posted requests meanwhile.  Requests for the parent thread, including the
+ * onCompletion() or onCancellation() call for each task, go into a queue
+ * belonging to this TaskManager, and each is run exactly once.  Requests
+ * posted by threads other than the parent are also limited, so that they
+ * cannot get too far ahead of it.  The workers keep waiting for tasks
+ * until shutdown() is called.
  *
- * NOTE: You may NOT disable interrupts or use spinlocks.
+ * Like Phaser, it keeps all its state under a single spin lock with
+ * interrupts disabled, and blocks waiting threads with
+ * Scheduler.sleepThread(), so that handing a task to a worker and its
+ * completion back to the parent thread costs only a few short critical
+ * sections.  The parent thread takes all the waiting requests at once.
  */
 public class TaskManager {
-    
-    private String mParentThreadName = "";
-    private List<Runnable> mRequests = new ArrayList<Runnable>();
-    private static List<Runnable> mResponses = new ArrayList<Runnable>();
-    private int mThreadCounter = 0;
+
+    /** Default number of tasks or requests that may be waiting. */
+    private static final int DEFAULT_CAPACITY = 16;
+
+    /** Name of the parent thread. */
+    private final String mParentThreadName;
+
+    /** Greatest number of tasks or requests that may be waiting. */
+    private final int mCapacity;
+
+    /** Tasks waiting for a worker. */
+    private final FIFOQueue<Task> mTasks = new FIFOQueue<Task>();
+
+    /** Requests waiting to be run by the parent thread. */
+    private final FIFOQueue<Runnable> mRequests = new FIFOQueue<Runnable>();
+
+    /** Number of requests posted by threads other than the parent, or the
+	workers, that are still waiting. */
+    private int mPostedRequests = 0;
+
+    /** Number of tasks executed whose completion request has not been
+	taken by the parent thread. */
+    private int mOutstandingTasks = 0;
+
+    /** Has shutdown() been called? */
+    private boolean mShutdown = false;
+
+    /** Worker threads waiting for a task. */
+    private final Queue<NachosThread> mIdleWorkers =
+	new FIFOQueue<NachosThread>();
+
+    /** Threads waiting for room in the task or request queue. */
+    private final Queue<NachosThread> mSpaceWaiters =
+	new FIFOQueue<NachosThread>();
+
+    /** Threads waiting in get() for a task to be done. */
+    private final Queue<NachosThread> mDoneWaiters =
+	new FIFOQueue<NachosThread>();
+
+    /** The parent thread, while it waits for something to do. */
+    private NachosThread mWaitingParent = null;
+
+    /**
+     * Spin lock used to obtain exclusive access to the state of this
+     * TaskManager and its tasks in a multiprocessor setting.
+     */
+    private final SpinLock spinLock = new SpinLock("TaskManager spin lock");
+
+    /** Number of TaskManagers created, for naming worker threads. */
     private static int mCounter = 0;
-    private static int mTaskCounter = 0;
-    private Semaphore mPostRequestsSemaphore = new Semaphore("Post_Requests", 1);
-    private static Semaphore mSemaphoreForExecution = new Semaphore("Executing_Task", 0);
-    private static Semaphore mSemaphoreForFirstThread = new Semaphore("FirstThread_Task", 0);
-    private Semaphore mSemaphoreForTask = new Semaphore("Task_Cancellation", 1);
+
     /**
      * Initialize a new TaskManager object, and register the
      * calling thread as the "parent" thread.  The parent thread is
      * responsible (after creating at least one Task object and
      * calling its execute() method) for calling processRequests() to
      * track the completion of "child" threads and process onCompletion()
-     * or onCancellation() requests on their behalf.
+     * or onCancellation() requests on their behalf.  There is one worker
+     * thread for each CPU, but at least two.
      */
     public TaskManager() {
+	this(Math.max(2, Nachos.options.NUM_CPUS), DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Initialize a new TaskManager object with a given number of worker
+     * threads, and register the calling thread as the "parent" thread.
+     *
+     * @param workers  The number of worker threads.
+     * @param capacity  The greatest number of tasks, and of requests
+     * posted by threads other than the parent, that may be waiting.
+     */
+    public TaskManager(int workers, int capacity) {
+	if (workers <= 0 || capacity <= 0)
+	    throw new IllegalArgumentException();
 	mParentThreadName = NachosThread.currentThread().name;
+	mCapacity = capacity;
+	int manager = ++mCounter;
+	for (int i = 0; i < workers; i++) {
+	    NachosThread worker =
+		new NachosThread("TaskManager " + manager + " worker " + i,
+			new Runnable() {
+			    public void run() {
+				work();
+				Nachos.scheduler.finishThread();
+			    }
+			});
+	    Nachos.scheduler.readyToRun(worker);
+	}
     }
-    
+
     /**
      * Posts a request for a Runnable to be executed by the parent thread.
      * Such a Runnable might consist of a call to <CODE>onCompletion()</CODE>
@@ -56,105 +129,320 @@ public class TaskManager {
      * being performed by a child thread, or it might consist of
      * completely unrelated work (such as responding to user interface
      * events) for the parent thread to perform.
-     * 
-     * NOTE: This method should be safely callable by any thread.
+     *
+     * NOTE: This method should be safely callable by any thread.  A thread
+     * other than the parent waits while too many of its requests are
+     * already waiting to be run.
      *
      * @param runnable  Runnable to be executed by the parent thread.
      */
     public void postRequest(Runnable runnable) {
-	mPostRequestsSemaphore.P();
-	mRequests.add(runnable);
-	mPostRequestsSemaphore.V();
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	spinLock.acquire();
+	if (!isParent()) {
+	    while (mPostedRequests >= mCapacity)
+		await(mSpaceWaiters);
+	    mPostedRequests++;
+	    runnable = new PostedRequest(runnable);
+	}
+	mRequests.offer(runnable);
+	wakeParent();
+	spinLock.release();
+	CPU.setLevel(oldLevel);
     }
 
     /**
      * Called by the parent thread to process work requests posted
      * for it.  This method does not return unless there are no
-     * further pending requests to be processed AND all child threads
-     * have terminated.  If there are no requests to be processed,
-     * but some child threads are still active, then the parent thread
+     * further pending requests to be processed AND all tasks
+     * executed so far have completed.  If there are no requests to be
+     * processed, but some tasks are still active, then the parent thread
      * will block within this method awaiting further requests
-     * (for example, those that will eventually result from the termination
-     * of the currently active child threads).
+     * (for example, those that will eventually result from the completion
+     * of the currently active tasks).
      *
      * @throws IllegalStateException  if the calling thread is not
      * registered as the parent thread for this TaskManager.
      */
     public void processRequests() throws IllegalStateException {
-	try {
-	    // Don't let any threads except Parent thread execute this method
-    	    if(!NachosThread.currentThread().name.equals(mParentThreadName))
-    	        return;
-    	    // Main thread waits till all requests have been served / all worker threads have been finished
-    	    while (true) {
-    		// Run the post doInBackground actions such as onCompletion and onCancellation
-    	        for (Runnable response : mResponses) {
-    		    response.run();
-    	        }
-    	        if(mResponses.size() == mThreadCounter) {
-    		    break;
-    	        } else {
-    		    mSemaphoreForFirstThread.P();
-    	        }
-    	    }
-	} catch (Exception ex) {
-	    
+	if (!isParent())
+	    throw new IllegalStateException("Not the parent thread");
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	spinLock.acquire();
+	while (true) {
+	    if (!mRequests.isEmpty())
+		runRequests(oldLevel);
+	    else if (mOutstandingTasks == 0)
+		break;
+	    else
+		awaitParent();
+	}
+	spinLock.release();
+	CPU.setLevel(oldLevel);
+    }
+
+    /**
+     * Stop the worker threads, once they have run the tasks already
+     * executed.  No more tasks may be executed afterwards.
+     */
+    public void shutdown() {
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	spinLock.acquire();
+	mShutdown = true;
+	NachosThread worker;
+	while ((worker = mIdleWorkers.poll()) != null)
+	    Nachos.scheduler.readyToRun(worker);
+	spinLock.release();
+	CPU.setLevel(oldLevel);
+    }
+
+    /**
+     * Body of a worker thread: run tasks until shutdown() is called and
+     * no task is left.
+     */
+    private void work() {
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	spinLock.acquire();
+	while (true) {
+	    Task task = mTasks.poll();
+	    if (task == null) {
+		if (mShutdown)
+		    break;
+		await(mIdleWorkers);
+		continue;
+	    }
+	    if (mTasks.size() == mCapacity - 1)	// no longer full
+		wakeSpaceWaiters();
+	    task.mState = Task.RUNNING;
+	    spinLock.release();
+	    CPU.setLevel(oldLevel);
+	    Debug.println('t', "Thread " + NachosThread.currentThread().name
+		    + " running a task");
+	    try {
+		task.doInBackground();
+	    } catch (RuntimeException e) {
+		// The task is over, but the worker must go on serving the
+		// others.
+		Debug.println('t', "Thread " + NachosThread.currentThread().name
+			+ " task failed: " + e);
+	    }
+	    CPU.setLevel(CPU.IntOff);
+	    spinLock.acquire();
+	    task.finish();
+	}
+	spinLock.release();
+	CPU.setLevel(oldLevel);
+    }
+
+    /**
+     * Take all the waiting requests and run them in the parent thread.
+     * Called with interrupts disabled and the spin lock held, which is
+     * released while the requests run and held again on return.  Taking
+     * a completion request is what counts its task as no longer
+     * outstanding.
+     *
+     * @param oldLevel  The interrupt level to run the requests at.
+     */
+    private void runRequests(int oldLevel) {
+	FIFOQueue<Runnable> batch = new FIFOQueue<Runnable>();
+	boolean madeRoom = false;
+	Runnable request;
+	while ((request = mRequests.poll()) != null) {
+	    if (request instanceof PostedRequest) {
+		mPostedRequests--;
+		madeRoom = true;
+	    } else if (request instanceof Completion) {
+		mOutstandingTasks--;
+	    }
+	    batch.offer(request);
+	}
+	if (madeRoom)
+	    wakeSpaceWaiters();
+	spinLock.release();
+	CPU.setLevel(oldLevel);
+	while ((request = batch.poll()) != null)
+	    request.run();
+	CPU.setLevel(CPU.IntOff);
+	spinLock.acquire();
+    }
+
+    /**
+     * Block the calling thread on a queue until another thread wakes it.
+     * Called with interrupts disabled and the spin lock held, which is
+     * held again on return; the caller must check again what it was
+     * waiting for.
+     *
+     * @param queue  The queue to wait on.
+     */
+    private void await(Queue<NachosThread> queue) {
+	queue.offer(NachosThread.currentThread());
+	Nachos.scheduler.sleepThread(spinLock);
+	spinLock.acquire();
+    }
+
+    /**
+     * Block the parent thread until there may be something for it to do.
+     * Called with interrupts disabled and the spin lock held, which is
+     * held again on return.
+     */
+    private void awaitParent() {
+	mWaitingParent = NachosThread.currentThread();
+	Nachos.scheduler.sleepThread(spinLock);
+	spinLock.acquire();
+    }
+
+    /**
+     * Wake up the parent thread, if it is waiting.  Called with the spin
+     * lock held.
+     */
+    private void wakeParent() {
+	if (mWaitingParent != null) {
+	    Nachos.scheduler.readyToRun(mWaitingParent);
+	    mWaitingParent = null;
+	}
+    }
+
+    /**
+     * Wake up the threads waiting for room in the task or request queue,
+     * including the parent thread.  Called with the spin lock held.
+     */
+    private void wakeSpaceWaiters() {
+	NachosThread thread;
+	while ((thread = mSpaceWaiters.poll()) != null)
+	    Nachos.scheduler.readyToRun(thread);
+	wakeParent();
+    }
+
+    /**
+     * Is the calling thread the parent thread?
+     *
+     * @return true if the calling thread is the parent thread.
+     */
+    private boolean isParent() {
+	return NachosThread.currentThread().name.equals(mParentThreadName);
+    }
+
+    /**
+     * A request posted by a thread other than the parent, which counts
+     * against the limit on such requests until the parent takes it.
+     */
+    private class PostedRequest implements Runnable {
+
+	/** The request. */
+	private final Runnable request;
+
+	/**
+	 * Initialize a posted request.
+	 *
+	 * @param request  The request.
+	 */
+	PostedRequest(Runnable request) {
+	    this.request = request;
+	}
+
+	/**
+	 * Run the request.
+	 */
+	public void run() {
+	    request.run();
+	}
+    }
+
+    /**
+     * The request for the parent thread to run onCompletion() or
+     * onCancellation() for a task that is done.
+     */
+    private class Completion implements Runnable {
+
+	/** The task. */
+	private final Task task;
+
+	/**
+	 * Initialize a completion request.
+	 *
+	 * @param task  The task that is done.
+	 */
+	Completion(Task task) {
+	    this.task = task;
+	}
+
+	/**
+	 * Run onCompletion(), or onCancellation() if the task was cancelled.
+	 */
+	public void run() {
+	    if (task.isCancelled())
+		task.onCancellation();
+	    else
+		task.onCompletion();
 	}
     }
 
     /**
      * Inner class representing a task to be executed in the background
-     * by a child thread.  This class must be subclassed in order to
+     * by a worker thread.  This class must be subclassed in order to
      * override the doInBackground() method and possibly also the
-     * onCompletion() and onCancellation() methods.
+     * onCompletion() and onCancellation() methods.  A Task also acts as
+     * a "future": another thread can wait for it with get().
      */
     public class Task {
-	private boolean isCancelled = false;
-	private final Task mContext = this; 
-	
+
+	/** State of a task that has not been executed yet. */
+	private static final int NEW = 0;
+
+	/** State of a task waiting for a worker. */
+	private static final int QUEUED = 1;
+
+	/** State of a task being run by a worker. */
+	private static final int RUNNING = 2;
+
+	/** State of a task that has finished or was cancelled before it ran. */
+	private static final int DONE = 3;
+
+	/** The state of this task; protected by the TaskManager spin lock. */
+	private int mState = NEW;
+
+	/** Has this task been cancelled? */
+	private volatile boolean isCancelled = false;
+
 	/**
-	 * Cause the current task to be executed by a new child thread.
-	 * In more detail, a new child thread is created, the child
-	 * thread runs the doInBackground() method and upon termination
-	 * of that method a request is posted for the parent thread to
-	 * run either onCancellation() or onCompletion(), respectively,
-	 * depending on	whether or not the task was cancelled.
+	 * Cause the current task to be executed by a worker thread.
+	 * In more detail, the task is queued for the next free worker
+	 * thread, which runs the doInBackground() method, and upon
+	 * termination of that method a request is posted for the parent
+	 * thread to run either onCancellation() or onCompletion(),
+	 * respectively, depending on whether or not the task was cancelled.
+	 * If too many tasks are already waiting, the caller waits for a
+	 * worker to take one.
+	 *
+	 * @throws IllegalStateException  if the task has already been
+	 * executed, or the TaskManager has been shut down.
 	 */
 	public void execute() {
-	    ++mThreadCounter;
-	    Runnable tRunnable = new Runnable() {
-	        
-	        @Override
-	        public void run() {
-	            try {
-	        	++mTaskCounter;
-	        	mContext.doInBackground();
-	        	// Runnable to be executed by the Main thread
-	        	Runnable response = new Runnable() {
-			    
-			    @Override
-			    public void run() {
-				if(isCancelled())
-				    mContext.onCancellation();
-				else
-				    mContext.onCompletion();
-			    }
-			};
-			// Post the request to the Main thread
-			mResponses.add(response);
-			if(mTaskCounter == mThreadCounter)
-			    mSemaphoreForFirstThread.V();
-	            } catch(NullPointerException ex) {
-	        	
-	            } catch(Exception ex) {
-	        	
-	            } finally {
-	        	Nachos.scheduler.finishThread();
-	            }
-	        }
-	    };
-	    NachosThread nachosThread = new NachosThread("Nachos Thread " + ++mCounter, tRunnable);
-	    Nachos.scheduler.readyToRun(nachosThread);
+	    int oldLevel = CPU.setLevel(CPU.IntOff);
+	    spinLock.acquire();
+	    if (mState != NEW || mShutdown) {
+		spinLock.release();
+		CPU.setLevel(oldLevel);
+		throw new IllegalStateException("Task cannot be executed");
+	    }
+	    mOutstandingTasks++;
+	    mState = QUEUED;
+	    while (mTasks.size() >= mCapacity && mState == QUEUED) {
+		if (!isParent())
+		    await(mSpaceWaiters);
+		else if (!mRequests.isEmpty())
+		    runRequests(oldLevel);
+		else
+		    awaitParent();
+	    }
+	    if (mState == QUEUED) {		// not cancelled meanwhile
+		mTasks.offer(this);
+		NachosThread worker = mIdleWorkers.poll();
+		if (worker != null)
+		    Nachos.scheduler.readyToRun(worker);
+	    }
+	    spinLock.release();
+	    CPU.setLevel(oldLevel);
 	}
 
 	/**
@@ -162,16 +450,27 @@ public class TaskManager {
 	 * already completed.  Successful cancellation (as indicated
 	 * by a return value of true) guarantees that the onCancellation()
 	 * method will be executed instead of the normal onCompletion()
-	 * method.  This method should be safely callable by any thread.
+	 * method.  A task that has not started running yet never runs.
+	 * This method should be safely callable by any thread.
 	 *
 	 * @return true if the task was successfully cancelled,
 	 * otherwise false.
 	 */
 	public boolean cancel() {
-	    mSemaphoreForTask.P();
-	    isCancelled = true;
-	    mSemaphoreForTask.V();
-	    return isCancelled;
+	    int oldLevel = CPU.setLevel(CPU.IntOff);
+	    spinLock.acquire();
+	    boolean cancelled = mState != DONE && !isCancelled;
+	    if (cancelled) {
+		isCancelled = true;
+		if (mState == QUEUED) {
+		    if (mTasks.remove(this))
+			wakeSpaceWaiters();
+		    finish();
+		}
+	    }
+	    spinLock.release();
+	    CPU.setLevel(oldLevel);
+	    return cancelled;
 	}
 
 	/**
@@ -184,6 +483,53 @@ public class TaskManager {
 	    return isCancelled;
 	}
 
+	/**
+	 * Determine whether this Task is done: it has finished running,
+	 * or it was cancelled before it started.
+	 *
+	 * @return true if this Task is done, false otherwise.
+	 */
+	public boolean isDone() {
+	    return mState == DONE;
+	}
+
+	/**
+	 * Wait until this Task is done.  This does not wait for its
+	 * onCompletion() or onCancellation() method, which the parent thread
+	 * runs later.
+	 *
+	 * @return true if the task completed, false if it was cancelled.
+	 * @throws IllegalStateException  if the task has not been executed.
+	 */
+	public boolean get() {
+	    int oldLevel = CPU.setLevel(CPU.IntOff);
+	    spinLock.acquire();
+	    if (mState == NEW && !isCancelled) {
+		spinLock.release();
+		CPU.setLevel(oldLevel);
+		throw new IllegalStateException("Task not executed");
+	    }
+	    while (mState != DONE)
+		await(mDoneWaiters);
+	    spinLock.release();
+	    CPU.setLevel(oldLevel);
+	    return !isCancelled;
+	}
+
+	/**
+	 * Mark this task done, and post the request for the parent thread
+	 * to run onCompletion() or onCancellation().  Called with the spin
+	 * lock held.
+	 */
+	private void finish() {
+	    mState = DONE;
+	    NachosThread thread;
+	    while ((thread = mDoneWaiters.poll()) != null)
+		Nachos.scheduler.readyToRun(thread);
+	    mRequests.offer(new Completion(this));
+	    wakeParent();
+	}
+
 	/**
 	 * Method to be executed in the background by a child thread.
 	 * Subclasses will override this with desired code.  The default
@@ -192,7 +538,8 @@ public class TaskManager {
 	 * so that this method will return promptly if this Task is
 	 * cancelled.  This method should not be called directly;
 	 * rather, it will be called indirectly as a result of a call to
-	 * the execute() method.
+	 * the execute() method.  If it throws an exception, the task is
+	 * done just as if it had returned.
 	 */
 	protected void doInBackground() {
 	}
@@ -200,7 +547,7 @@ public class TaskManager {
 	/**
 	 * Method to be executed by the main thread upon termination of
 	 * of doInBackground().  Will not be executed if the task was
-	 * cancelled.  This method should not be called directly; 
+	 * cancelled.  This method should not be called directly;
 	 * rather, it will be called indirectly as a result of a call to
 	 * the execute() method.
 	 */
@@ -213,9 +560,9 @@ public class TaskManager {
 	 * was cancelled.
 	 */
 	protected void onCancellation() {
-	    
+
 	}
-	
+
 	/**
 	 * This method can be called to simulate "doing work".
 	 * Each time it is called it gives control to the NACHOS
@@ -289,6 +636,7 @@ public class TaskManager {
 	    task.execute();
 	}
 	mgr.processRequests();
+	mgr.shutdown();
 	Debug.println('1', "Demo terminating");
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,286 @@
+// TimerWheel.java
+//
+// Copyright (c) 2003 State University of New York at Stony Brook.
+// All rights reserved.  See the COPYRIGHT file for copyright notice and
+// limitation of liability and disclaimer of warranty provisions.
+
+package nachos.kernel.threads;
+
+import nachos.Debug;
+import nachos.machine.CPU;
+
+/**
+ * A hierarchical timer wheel, which keeps track of actions that are to be
+ * performed when the simulated time reaches given deadlines.  Scheduling
+ * and cancelling a timeout both take constant time, no matter how many
+ * timeouts are pending, and advancing the wheel only looks at timeouts that
+ * are due (or, occasionally, at a group of timeouts that are getting close
+ * to being due).
+ *
+ * Time is divided into "wheel ticks" of a fixed resolution.  The wheel has
+ * LEVELS levels of SLOTS slots each.  A timeout due within SLOTS wheel ticks
+ * is kept in a slot of level 0, indexed by its expiry tick.  A timeout due
+ * later is kept at the lowest level whose slots cover a long enough span,
+ * and is "cascaded" down a level each time the wheel turns through the slot
+ * that holds it.
+ *
+ * The wheel itself is passive: something (normally a timer interrupt handler)
+ * has to call advance() periodically.  The actions of timeouts that are due
+ * are run by advance(), with interrupts disabled but without any lock held,
+ * so they may do anything an interrupt handler may do, such as calling
+ * Semaphore.V() or Scheduler.readyToRun().
+ */
+public class TimerWheel {
+
+    /** Number of bits of the expiry tick used to index each level. */
+    private static final int SLOT_BITS = 6;
+
+    /** Number of slots in each level. */
+    private static final int SLOTS = 1 << SLOT_BITS;
+
+    /** Number of levels. */
+    private static final int LEVELS = 4;
+
+    /** Largest number of wheel ticks into the future a timeout can be. */
+    private static final long MAX_DELTA = (1L << (SLOT_BITS * LEVELS)) - 1;
+
+    /**
+     * A pending action, as returned by schedule().  The handle can be passed
+     * to cancel() to prevent the action from being performed.
+     */
+    public static class Timeout {
+
+	/** The simulated time at which the action is due. */
+	public final int deadline;
+
+	/** The action to perform when the timeout expires. */
+	private final Runnable action;
+
+	/** Wheel tick at which the timeout expires. */
+	private final long expires;
+
+	/** Neighbours in the list of the slot that holds this timeout. */
+	private Timeout prev, next;
+
+	/** Level and slot holding this timeout, if it is pending. */
+	private int level, slot;
+
+	/** Is the timeout still in the wheel? */
+	private boolean pending;
+
+	private Timeout(int deadline, long expires, Runnable action) {
+	    this.deadline = deadline;
+	    this.expires = expires;
+	    this.action = action;
+	}
+
+	/**
+	 * Determine whether this timeout is still waiting to expire.
+	 *
+	 * @return true if the timeout has neither expired nor been cancelled.
+	 */
+	public boolean isPending() {
+	    return pending;
+	}
+    }
+
+    /** Printable name useful for debugging. */
+    public final String name;
+
+    /** Number of simulated ticks per wheel tick. */
+    private final int resolution;
+
+    /** Heads of the lists of timeouts in each slot of each level. */
+    private final Timeout[][] slots = new Timeout[LEVELS][SLOTS];
+
+    /** Every timeout expiring at or before this wheel tick has been run. */
+    private long currentTick;
+
+    /** Number of pending timeouts. */
+    private volatile int size;
+
+    /** Spin lock for mutually exclusive access to the wheel. */
+    private final SpinLock spinLock;
+
+    /**
+     * Initialize an empty timer wheel.
+     *
+     * @param debugName  An arbitrary name, useful for debugging.
+     * @param resolution  Number of simulated ticks per wheel tick.
+     * Deadlines are rounded up to a multiple of this.
+     * @param now  The current simulated time.
+     */
+    public TimerWheel(String debugName, int resolution, int now) {
+	Debug.ASSERT(resolution > 0, "Bad timer wheel resolution");
+	name = debugName;
+	this.resolution = resolution;
+	currentTick = now / resolution;
+	spinLock = new SpinLock(name + " spin lock");
+    }
+
+    /**
+     * Arrange for an action to be performed once the simulated time has
+     * reached a specified deadline.  The action is performed during the
+     * first call of advance() at or after the deadline (rounded up to the
+     * resolution of the wheel).
+     *
+     * @param deadline  The simulated time at which the action is due.
+     * @param action  The action to perform.
+     * @return a handle that can be used to cancel the timeout.
+     */
+    public Timeout schedule(int deadline, Runnable action) {
+	long expires = ((long)deadline + resolution - 1) / resolution;
+	Timeout timeout = new Timeout(deadline, expires, action);
+
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	spinLock.acquire();
+	insert(timeout, false);
+	size++;
+	spinLock.release();
+	CPU.setLevel(oldLevel);
+	return timeout;
+    }
+
+    /**
+     * Cancel a pending timeout, so that its action is not performed.
+     *
+     * @param timeout  The timeout to cancel.
+     * @return true if the timeout was cancelled, false if it had already
+     * expired or been cancelled.
+     */
+    public boolean cancel(Timeout timeout) {
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	spinLock.acquire();
+	boolean wasPending = timeout.pending;
+	if (wasPending) {
+	    unlink(timeout);
+	    size--;
+	}
+	spinLock.release();
+	CPU.setLevel(oldLevel);
+	return wasPending;
+    }
+
+    /**
+     * Advance the wheel to the current simulated time, performing the
+     * actions of all the timeouts that have become due.
+     *
+     * @param now  The current simulated time.
+     */
+    public void advance(int now) {
+	long target = now / resolution;
+	Timeout expired = null;
+
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	spinLock.acquire();
+	if (size == 0 && currentTick < target)
+	    currentTick = target;
+	while (currentTick < target) {
+	    currentTick++;
+	    int index = (int)(currentTick & (SLOTS - 1));
+	    // When level 0 wraps around, bring the timeouts in the next slot
+	    // of level 1 down, and so on up the levels.
+	    for (int level = 1; index == 0 && level < LEVELS; level++) {
+		index = (int)((currentTick >> (SLOT_BITS * level)) & (SLOTS - 1));
+		cascade(level, index);
+	    }
+	    index = (int)(currentTick & (SLOTS - 1));
+	    Timeout timeout;
+	    while ((timeout = slots[0][index]) != null) {
+		unlink(timeout);
+		size--;
+		timeout.next = expired;
+		expired = timeout;
+	    }
+	}
+	spinLock.release();
+
+	while (expired != null) {
+	    Timeout timeout = expired;
+	    expired = timeout.next;
+	    timeout.next = null;
+	    Debug.println('t', "Timeout expired on " + name + ", deadline "
+		    + timeout.deadline);
+	    timeout.action.run();
+	}
+	CPU.setLevel(oldLevel);
+    }
+
+    /**
+     * Get the number of pending timeouts.
+     *
+     * @return the number of timeouts that have neither expired nor been
+     * cancelled.
+     */
+    public int size() {
+	return size;
+    }
+
+    /**
+     * Put a timeout in the appropriate slot, given the current wheel tick.
+     * Assumes that the spin lock is held.
+     *
+     * @param timeout  The timeout to insert.
+     * @param cascading  True if the timeout is being moved down by
+     * cascade(), in which case a timeout due on the current wheel tick goes
+     * into the level 0 slot that advance() is about to empty.
+     */
+    private void insert(Timeout timeout, boolean cascading) {
+	long delta = timeout.expires - currentTick;
+	long expires = timeout.expires;
+	if (delta <= 0 && cascading) {
+	    delta = 0;
+	    expires = currentTick;
+	} else if (delta <= 0) {
+	    // Already due -- run it on the next wheel tick.
+	    delta = 1;
+	    expires = currentTick + 1;
+	} else if (delta > MAX_DELTA) {
+	    delta = MAX_DELTA;
+	    expires = currentTick + MAX_DELTA;
+	}
+	int level = 0;
+	while (level < LEVELS - 1 && delta >= 1L << (SLOT_BITS * (level + 1)))
+	    level++;
+	int index = (int)((expires >> (SLOT_BITS * level)) & (SLOTS - 1));
+
+	timeout.level = level;
+	timeout.slot = index;
+	timeout.prev = null;
+	timeout.next = slots[level][index];
+	if (timeout.next != null)
+	    timeout.next.prev = timeout;
+	slots[level][index] = timeout;
+	timeout.pending = true;
+    }
+
+    /**
+     * Remove a timeout from its slot.  Assumes that the spin lock is held.
+     */
+    private void unlink(Timeout timeout) {
+	if (timeout.prev != null)
+	    timeout.prev.next = timeout.next;
+	else
+	    slots[timeout.level][timeout.slot] = timeout.next;
+	if (timeout.next != null)
+	    timeout.next.prev = timeout.prev;
+	timeout.prev = timeout.next = null;
+	timeout.pending = false;
+    }
+
+    /**
+     * Re-insert all the timeouts in one slot of a level, which moves them
+     * to lower levels now that they are closer to expiring.  Assumes that
+     * the spin lock is held.
+     */
+    private void cascade(int level, int index) {
+	Timeout timeout = slots[level][index];
+	slots[level][index] = null;
+	while (timeout != null) {
+	    Timeout next = timeout.next;
+	    insert(timeout, true);
+	    timeout = next;
+	}
+    }
+
+}
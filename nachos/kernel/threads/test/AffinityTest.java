@@ -0,0 +1,59 @@
+package nachos.kernel.threads.test;
+
+import java.util.Arrays;
+
+import nachos.Debug;
+import nachos.kernel.Nachos;
+import nachos.machine.CPU;
+import nachos.machine.NachosThread;
+
+/**
+ * This class tests/demonstrates CPU affinity and the spreading of threads
+ * over multiple CPUs.  Like SMPTest, it creates a number of kernel threads
+ * that each "waste time" by repeatedly enabling and disabling interrupts,
+ * but the first thread is pinned to CPU 0 by its affinity mask, so it never
+ * migrates.  As each thread finishes, it reports the length of the run queue
+ * of each CPU, which shows how evenly the work is spread over the CPUs, the
+ * number of times threads have migrated onto each CPU, and the number of
+ * threads moved onto each CPU by the load balancer.
+ */
+
+public class AffinityTest {
+
+    /** Number of times each thread goes around its loop. */
+    private static final int ITERATIONS = 2000;
+
+    /**
+     * Entry point for the test.
+     *
+     * @param numThreads  The number of threads.
+     */
+    public static void start(int numThreads) {
+	Debug.println('+', "Entering AffinityTest");
+	for(int i = 0; i < numThreads; i++) {
+	    NachosThread looper =
+		    new NachosThread
+		    ("Affinity" + i,
+		     new Runnable() {
+			public void run() {
+			    for(int i = 0; i < ITERATIONS; i++) {
+				int oldLevel = CPU.setLevel(CPU.IntOff);
+				CPU.setLevel(oldLevel);
+			    }
+			    Debug.println('+', NachosThread.currentThread().name
+				    + " finished on " + CPU.getName()
+				    + ", run queue lengths: "
+				    + Arrays.toString(Nachos.scheduler.getRunQueueLengths())
+				    + ", migrations: "
+				    + Arrays.toString(Nachos.scheduler.getMigrationCounts())
+				    + ", balanced: "
+				    + Arrays.toString(Nachos.scheduler.getBalanceCounts()));
+			    Nachos.scheduler.finishThread();
+			}
+		     });
+	    if(i == 0)
+		Nachos.scheduler.setAffinity(looper, 1);
+	    Nachos.scheduler.readyToRun(looper);
+	}
+    }
+}
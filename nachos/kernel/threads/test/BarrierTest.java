@@ -0,0 +1,277 @@
+package nachos.kernel.threads.test;
+
+import nachos.Debug;
+import nachos.kernel.Nachos;
+import nachos.kernel.threads.CyclicBarrier;
+import nachos.kernel.threads.CyclicBarrier.BrokenBarrierException;
+import nachos.kernel.threads.Phaser;
+import nachos.kernel.threads.Semaphore;
+import nachos.machine.CPU;
+import nachos.machine.NachosThread;
+import nachos.machine.Simulation;
+
+/**
+ * This class benchmarks barriers, the way a barrier-synchronized simulation
+ * uses them: a number of threads, which the scheduler spreads over the
+ * CPUs, repeatedly do a step of work and then wait for each other.  For 4,
+ * 16, 64 and 256 parties (up to a given maximum), it runs the threads once
+ * with a CyclicBarrier and once with a Phaser, and prints the average
+ * number of ticks per round.  With the CyclicBarrier, the barrier action
+ * counts the trips, and each thread checks after every round that it has
+ * been released in the right generation.  With the Phaser, half the
+ * threads deregister halfway through, and the others check that the
+ * phaser keeps advancing without them.  Finally, it checks that reset()
+ * breaks the barrier for a waiting thread and that the barrier can then
+ * be used again, and that parties still arriving in the generation a
+ * reset() broke do not keep the next one from tripping.  Run it with different numbers of CPUs, for example
+ * -ncpu 1, then -ncpu 4 and -ncpu 8, with -barriertest 256.
+ */
+
+public class BarrierTest {
+
+    /** Number of rounds run by each thread. */
+    private static final int ROUNDS = 10;
+
+    /** Number of steps of work done by each thread in each round. */
+    private static final int WORK = 20;
+
+    /** Number of times the barrier has tripped. */
+    private static volatile int trips;
+
+    /** Number of trials of resetting a barrier while parties arrive. */
+    private static final int RESET_TRIALS = 50;
+
+    /** Signalled by each thread when it is done. */
+    private static final Semaphore done = new Semaphore("BarrierTest done", 0);
+
+    /**
+     * Entry point for the test.
+     *
+     * @param maxParties  The largest number of parties to try.
+     */
+    public static void start(final int maxParties) {
+	Debug.println('+', "Entering BarrierTest");
+	NachosThread reporter =
+		new NachosThread
+		("BarrierReport",
+		 new Runnable() {
+		    public void run() {
+			for(int parties = 4; parties <= maxParties; parties *= 4) {
+			    int barrier = runBarrier(parties);
+			    int phaser = runPhaser(parties);
+			    Debug.println('+', parties + " parties on "
+				    + Nachos.options.NUM_CPUS
+				    + " CPUs: CyclicBarrier " + barrier
+				    + " ticks/round, Phaser " + phaser
+				    + " ticks/round");
+			}
+			checkReset();
+			checkResetDuringArrival();
+			Nachos.scheduler.finishThread();
+		    }
+		 });
+	Nachos.scheduler.readyToRun(reporter);
+    }
+
+    /**
+     * Run the threads with a CyclicBarrier.
+     *
+     * @param parties  The number of threads.
+     * @return  The average number of ticks per round.
+     */
+    private static int runBarrier(int parties) {
+	trips = 0;
+	final CyclicBarrier barrier = new CyclicBarrier(parties, new Runnable() {
+	    public void run() {
+		trips++;
+	    }
+	});
+	int start = Simulation.currentTime();
+	for(int i = 0; i < parties; i++) {
+	    NachosThread thread =
+		    new NachosThread
+		    ("BarrierTest" + i,
+		     new Runnable() {
+			public void run() {
+			    for(int round = 0; round < ROUNDS; round++) {
+				work(WORK);
+				try {
+				    barrier.await();
+				} catch (BrokenBarrierException e) {
+				    Debug.ASSERT(false, "BarrierTest: barrier broken");
+				} catch (InterruptedException e) {
+				}
+				Debug.ASSERT(trips == round + 1,
+					"BarrierTest: released in generation "
+					+ trips + " instead of " + (round + 1));
+			    }
+			    done.V();
+			    Nachos.scheduler.finishThread();
+			}
+		     });
+	    Nachos.scheduler.readyToRun(thread);
+	}
+	for(int i = 0; i < parties; i++)
+	    done.P();
+	Debug.ASSERT(trips == ROUNDS, "BarrierTest: " + trips + " trips");
+	return (Simulation.currentTime() - start) / ROUNDS;
+    }
+
+    /**
+     * Run the threads with a Phaser, half of them deregistering halfway
+     * through.
+     *
+     * @param parties  The number of threads.
+     * @return  The average number of ticks per round.
+     */
+    private static int runPhaser(int parties) {
+	final Phaser phaser = new Phaser("BarrierTest phaser", parties);
+	int start = Simulation.currentTime();
+	for(int i = 0; i < parties; i++) {
+	    final boolean leaves = i % 2 == 1;
+	    NachosThread thread =
+		    new NachosThread
+		    ("PhaserTest" + i,
+		     new Runnable() {
+			public void run() {
+			    for(int round = 0; round < ROUNDS; round++) {
+				work(WORK);
+				if(leaves && round == ROUNDS / 2) {
+				    phaser.arriveAndDeregister();
+				    break;
+				}
+				int phase = phaser.arriveAndAwaitAdvance();
+				Debug.ASSERT(phase == round + 1
+					|| (phase < 0 && round == ROUNDS - 1),
+					"BarrierTest: advanced to phase " + phase
+					+ " after round " + round);
+			    }
+			    done.V();
+			    Nachos.scheduler.finishThread();
+			}
+		     });
+	    Nachos.scheduler.readyToRun(thread);
+	}
+	for(int i = 0; i < parties; i++)
+	    done.P();
+	Debug.ASSERT(phaser.getPhase() == ROUNDS
+		&& phaser.getRegisteredParties() == parties / 2,
+		"BarrierTest: phaser at phase " + phaser.getPhase() + " with "
+		+ phaser.getRegisteredParties() + " parties");
+	return (Simulation.currentTime() - start) / ROUNDS;
+    }
+
+    /**
+     * Check that reset() breaks the barrier for a waiting thread, and that
+     * the barrier can be used again afterwards.
+     */
+    private static void checkReset() {
+	final CyclicBarrier barrier = new CyclicBarrier(2);
+	final boolean[] brokenSeen = new boolean[1];
+	NachosThread waiter =
+		new NachosThread
+		("BarrierWaiter",
+		 new Runnable() {
+		    public void run() {
+			try {
+			    barrier.await();
+			} catch (BrokenBarrierException e) {
+			    brokenSeen[0] = true;
+			} catch (InterruptedException e) {
+			}
+			done.V();
+			Nachos.scheduler.finishThread();
+		    }
+		 });
+	Nachos.scheduler.readyToRun(waiter);
+	while(barrier.getNumberWaiting() == 0)
+	    Nachos.scheduler.yieldThread();
+	barrier.reset();
+	done.P();
+	Debug.ASSERT(brokenSeen[0] && barrier.isBroken(),
+		"BarrierTest: reset did not break the barrier");
+
+	NachosThread partner =
+		new NachosThread
+		("BarrierPartner",
+		 new Runnable() {
+		    public void run() {
+			try {
+			    barrier.await();
+			} catch (Exception e) {
+			    Debug.ASSERT(false, "BarrierTest: barrier still broken");
+			}
+			done.V();
+			Nachos.scheduler.finishThread();
+		    }
+		 });
+	Nachos.scheduler.readyToRun(partner);
+	try {
+	    barrier.await();
+	} catch (Exception e) {
+	    Debug.ASSERT(false, "BarrierTest: barrier still broken");
+	}
+	done.P();
+	Debug.ASSERT(!barrier.isBroken(), "BarrierTest: barrier still broken");
+	Debug.println('+', "BarrierTest: reset checked");
+    }
+
+    /**
+     * Check that reset() can be called while parties are arriving.  In
+     * each trial, the parties wait at the barrier, waiting again whenever
+     * their generation is broken, while this thread resets the barrier
+     * after a varying delay.  Every generation must either trip or be
+     * broken for all the parties in it, so each trial ends with all of
+     * them released; a party arriving late in a broken generation must
+     * not wipe out the arrivals already counted in the next one, which
+     * would leave the parties waiting forever.
+     */
+    private static void checkResetDuringArrival() {
+	final int parties = 4;
+	final CyclicBarrier barrier = new CyclicBarrier(parties);
+	final int[] brokenSeen = new int[1];
+	for(int i = 0; i < parties; i++) {
+	    NachosThread party =
+		    new NachosThread
+		    ("BarrierResetParty" + i,
+		     new Runnable() {
+			public void run() {
+			    for(int trial = 0; trial < RESET_TRIALS; trial++) {
+				while(true) {
+				    try {
+					barrier.await();
+					break;
+				    } catch (BrokenBarrierException e) {
+					brokenSeen[0]++;
+				    } catch (InterruptedException e) {
+				    }
+				}
+				done.V();
+			    }
+			    Nachos.scheduler.finishThread();
+			}
+		     });
+	    Nachos.scheduler.readyToRun(party);
+	}
+	for(int trial = 0; trial < RESET_TRIALS; trial++) {
+	    work(trial % 10 * 3);
+	    barrier.reset();
+	    for(int i = 0; i < parties; i++)
+		done.P();
+	}
+	Debug.println('+', "BarrierTest: reset during arrival checked, "
+		+ brokenSeen[0] + " broken waits");
+    }
+
+    /**
+     * Do a few steps of work, giving interrupts a chance to happen.
+     *
+     * @param steps  The number of steps.
+     */
+    private static void work(int steps) {
+	for(int i = 0; i < steps; i++) {
+	    int oldLevel = CPU.setLevel(CPU.IntOff);
+	    CPU.setLevel(oldLevel);
+	}
+    }
+}
@@ -0,0 +1,165 @@
+package nachos.kernel.threads.test;
+
+import nachos.Debug;
+import nachos.kernel.Nachos;
+import nachos.kernel.threads.ForkJoinPool;
+import nachos.kernel.threads.ForkJoinTask;
+import nachos.machine.CPU;
+import nachos.machine.NachosThread;
+import nachos.machine.Simulation;
+
+/**
+ * This class benchmarks the ForkJoinPool with a recursive Fibonacci
+ * computation, in which every call does a step of work.  Above a threshold,
+ * fib(n) forks fib(n-1), computes fib(n-2) itself and joins; below it, it
+ * recurses sequentially.  The computation is run first sequentially by a
+ * single thread, then by a pool with one worker for each CPU, and the
+ * ticks taken by each, the speedup and the number of steals are printed.
+ * Finally, it checks that an exception thrown by a task reaches the
+ * threads that join it, and that the pool keeps all its workers.
+ * Run it with different numbers of CPUs, for example -ncpu 1, then
+ * -ncpu 2 and -ncpu 4, with -forkjointest 22.
+ */
+
+public class ForkJoinTest {
+
+    /** Below this, fib(n) is computed sequentially. */
+    private static final int THRESHOLD = 12;
+
+    /**
+     * Entry point for the test.
+     *
+     * @param n  Which Fibonacci number to compute.
+     */
+    public static void start(final int n) {
+	Debug.println('+', "Entering ForkJoinTest");
+	NachosThread reporter =
+		new NachosThread
+		("ForkJoinReport",
+		 new Runnable() {
+		    public void run() {
+			int start = Simulation.currentTime();
+			int expected = fib(n);
+			int sequential = Simulation.currentTime() - start;
+
+			ForkJoinPool pool = new ForkJoinPool("ForkJoinTest pool");
+			start = Simulation.currentTime();
+			int result = pool.invoke(new Fib(n));
+			int parallel = Simulation.currentTime() - start;
+
+			Debug.ASSERT(result == expected, "ForkJoinTest: fib("
+				+ n + ") = " + result + " instead of " + expected);
+			Debug.println('+', "fib(" + n + ") on "
+				+ pool.getParallelism() + " workers: sequential "
+				+ sequential + " ticks, pool " + parallel
+				+ " ticks, speedup "
+				+ (100 * sequential / parallel) / 100.0 + ", "
+				+ pool.getStealCount() + " steals");
+			checkException(pool);
+			pool.shutdown();
+			Nachos.scheduler.finishThread();
+		    }
+		 });
+	Nachos.scheduler.readyToRun(reporter);
+    }
+
+    /**
+     * Check that an exception thrown by a task is thrown again by join()
+     * in the tasks that join it, and then by invoke(), and that the pool
+     * can still run a computation on all its workers afterwards.
+     *
+     * @param pool  The pool to use.
+     */
+    private static void checkException(ForkJoinPool pool) {
+	boolean thrown = false;
+	try {
+	    pool.invoke(new Failing(3));
+	} catch (IllegalStateException e) {
+	    thrown = true;
+	}
+	Debug.ASSERT(thrown, "ForkJoinTest: exception of a task lost");
+	int n = THRESHOLD + 4;
+	Debug.ASSERT(pool.invoke(new Fib(n)) == fib(n),
+		"ForkJoinTest: wrong result after a task failed");
+	Debug.println('+', "ForkJoinTest: exception checked");
+    }
+
+    /**
+     * A task that forks a chain of subtasks, the last of which throws an
+     * exception.
+     */
+    private static class Failing extends ForkJoinTask<Integer> {
+
+	/** Number of subtasks still to be forked. */
+	private final int depth;
+
+	/**
+	 * Initialize a task.
+	 *
+	 * @param depth  Number of subtasks to fork before failing.
+	 */
+	Failing(int depth) {
+	    this.depth = depth;
+	}
+
+	/**
+	 * Fork and join the next task in the chain, or fail.
+	 *
+	 * @return never.
+	 */
+	protected Integer compute() {
+	    if (depth == 0)
+		throw new IllegalStateException("ForkJoinTest failure");
+	    Failing next = new Failing(depth - 1);
+	    next.fork();
+	    return next.join();
+	}
+    }
+
+    /**
+     * A task computing a Fibonacci number.
+     */
+    private static class Fib extends ForkJoinTask<Integer> {
+
+	/** Which Fibonacci number to compute. */
+	private final int n;
+
+	/**
+	 * Initialize a task.
+	 *
+	 * @param n  Which Fibonacci number to compute.
+	 */
+	Fib(int n) {
+	    this.n = n;
+	}
+
+	/**
+	 * Compute fib(n), splitting the work if it is large enough.
+	 *
+	 * @return fib(n).
+	 */
+	protected Integer compute() {
+	    if (n < THRESHOLD)
+		return fib(n);
+	    Fib first = new Fib(n - 1);
+	    first.fork();
+	    int second = new Fib(n - 2).compute();
+	    return first.join() + second;
+	}
+    }
+
+    /**
+     * Compute a Fibonacci number sequentially, doing a step of work, which
+     * gives interrupts a chance to happen, in every call.
+     *
+     * @param n  Which Fibonacci number to compute.
+     * @return fib(n).
+     */
+    private static int fib(int n) {
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	CPU.setLevel(oldLevel);
+	if (n < 2)
+	    return n;
+	return fib(n - 1) + fib(n - 2);
+    }
+}
@@ -0,0 +1,133 @@
+package nachos.kernel.threads.test;
+
+import nachos.Debug;
+import nachos.kernel.Nachos;
+import nachos.kernel.threads.Semaphore;
+import nachos.machine.CPU;
+import nachos.machine.NachosThread;
+import nachos.machine.Simulation;
+
+/**
+ * This class tests/demonstrates gang scheduling.  It creates a number of
+ * gangs of kernel threads.  The threads of each gang run a number of rounds,
+ * each consisting of some work followed by a barrier at which the threads
+ * spin, as barrier-heavy parallel code often does, until the whole gang has
+ * arrived.  A thread spinning at the barrier while a member of its gang is
+ * waiting for a CPU just wastes its time slice, so the gangs make progress
+ * much faster when their members are scheduled together.  At the end, a
+ * reporting thread prints how long each gang took.  Run it on several CPUs
+ * with time slicing, with and without gang scheduling, to compare (for
+ * example, -ncpu 4 -ps -gang 2 4, then the same with -gs).
+ */
+
+public class GangTest {
+
+    /** Number of rounds of work and barrier that each thread runs. */
+    private static final int ROUNDS = 20;
+
+    /** CPU time, in ticks, of the work each thread does in each round. */
+    private static final int WORK = 500;
+
+    /** Number of threads in each gang. */
+    private static int gangSize;
+
+    /** Number of threads of each gang that have reached the barrier. */
+    private static int[] arrived;
+
+    /** Number of times the barrier of each gang has been passed. */
+    private static volatile int[] generation;
+
+    /** Mutual exclusion for the barrier of each gang. */
+    private static Semaphore[] barrierLock;
+
+    /** Time taken by each gang. */
+    private static int[] elapsed;
+
+    /** Signalled by each thread when it is done. */
+    private static final Semaphore done = new Semaphore("GangTest done", 0);
+
+    /**
+     * Entry point for the test.
+     *
+     * @param numGangs  The number of gangs.
+     * @param numThreads  The number of threads in each gang.
+     */
+    public static void start(final int numGangs, int numThreads) {
+	Debug.println('+', "Entering GangTest");
+	gangSize = numThreads;
+	arrived = new int[numGangs];
+	generation = new int[numGangs];
+	barrierLock = new Semaphore[numGangs];
+	elapsed = new int[numGangs];
+	final int start = Simulation.currentTime();
+	for(int g = 0; g < numGangs; g++) {
+	    final int gang = g;
+	    Object key = "Gang" + g;
+	    barrierLock[g] = new Semaphore("Gang" + g + " barrier", 1);
+	    for(int i = 0; i < numThreads; i++) {
+		NachosThread member =
+			new NachosThread
+			("Gang" + g + "." + i,
+			 new Runnable() {
+			    public void run() {
+				NachosThread self = NachosThread.currentThread();
+				for(int round = 0; round < ROUNDS; round++) {
+				    long begin = Nachos.scheduler.getCPUTicks(self);
+				    while(Nachos.scheduler.getCPUTicks(self) - begin
+					    < WORK)
+					spin();
+				    await(gang);
+				}
+				elapsed[gang] = Simulation.currentTime() - start;
+				done.V();
+				Nachos.scheduler.finishThread();
+			    }
+			 });
+		Nachos.scheduler.setGang(member, key);
+		Nachos.scheduler.readyToRun(member);
+	    }
+	}
+	NachosThread reporter =
+		new NachosThread
+		("GangReport",
+		 new Runnable() {
+		    public void run() {
+			for(int i = 0; i < numGangs * gangSize; i++)
+			    done.P();
+			for(int g = 0; g < numGangs; g++)
+			    Debug.println('+', "Gang" + g + " of " + gangSize
+				    + " threads ran " + ROUNDS + " rounds in "
+				    + elapsed[g] + " ticks");
+			Debug.println('+', "Co-scheduling moves: "
+				+ Nachos.scheduler.getCoscheduleCount());
+			Nachos.scheduler.finishThread();
+		    }
+		 });
+	Nachos.scheduler.readyToRun(reporter);
+    }
+
+    /**
+     * Wait, spinning, until every thread of a gang has reached the barrier.
+     *
+     * @param gang  The index of the gang.
+     */
+    private static void await(int gang) {
+	barrierLock[gang].P();
+	int current = generation[gang];
+	if(++arrived[gang] == gangSize) {
+	    arrived[gang] = 0;
+	    generation[gang]++;
+	}
+	barrierLock[gang].V();
+	while(generation[gang] == current)
+	    spin();
+    }
+
+    /**
+     * Use a little CPU time, giving interrupts a chance to happen.
+     */
+    private static void spin() {
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	CPU.setLevel(oldLevel);
+    }
+}
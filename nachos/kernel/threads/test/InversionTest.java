@@ -0,0 +1,117 @@
+package nachos.kernel.threads.test;
+
+import nachos.Debug;
+import nachos.kernel.Nachos;
+import nachos.kernel.threads.Lock;
+import nachos.machine.CPU;
+import nachos.machine.NachosThread;
+import nachos.machine.Simulation;
+
+/**
+ * This class tests/demonstrates priority inheritance through locks, under
+ * multilevel feedback scheduling.  A "low" thread uses enough CPU time to
+ * sink to the bottom level, and then does some more work holding a lock,
+ * during which its time slice runs out.  Meanwhile, "medium" threads wake
+ * up and compete for the CPU from the upper levels, and a "high" thread,
+ * which has hardly run, wakes up and wants the lock.  Without priority
+ * inheritance, the low thread cannot finish its work and release the lock
+ * until the medium threads have sunk to its level or are done, so the high
+ * thread waits for them too.  With it, the low thread runs at the high
+ * thread's level until it releases the lock.  At the end, the high thread
+ * prints how long it waited.  Run it with, for example,
+ * -pi -ps -mlfs 1000 -mlfslevels 5 -mlfsboost 0, and then again with -nopi
+ * as well.
+ */
+
+public class InversionTest {
+
+    /** CPU time, in ticks, for which the low thread runs before locking. */
+    private static final int SINK = 16000;
+
+    /**
+     * CPU time, in ticks, for which the low thread holds the lock; long
+     * enough for its time slice to run out before it releases the lock.
+     */
+    private static final int CRITICAL = 24000;
+
+    /** Number of medium threads. */
+    private static final int MEDIUMS = 3;
+
+    /** Number of ticks for which the medium threads compete. */
+    private static final int DURATION = 60000;
+
+    /** The lock the low and high threads share. */
+    private static final Lock lock = new Lock("InversionTest lock");
+
+    /**
+     * Entry point for the test.
+     */
+    public static void start() {
+	Debug.println('+', "Entering InversionTest");
+	NachosThread low =
+		new NachosThread
+		("Low",
+		 new Runnable() {
+		    public void run() {
+			work(SINK);
+			lock.acquire();
+			work(CRITICAL);
+			lock.release();
+			Nachos.scheduler.finishThread();
+		    }
+		 });
+	Nachos.scheduler.readyToRun(low);
+	for(int i = 0; i < MEDIUMS; i++) {
+	    NachosThread medium =
+		    new NachosThread
+		    ("Medium" + i,
+		     new Runnable() {
+			public void run() {
+			    Nachos.scheduler.sleep(SINK + CRITICAL / 4);
+			    int end = Simulation.currentTime() + DURATION;
+			    while(Simulation.currentTime() < end)
+				spin();
+			    Nachos.scheduler.finishThread();
+			}
+		     });
+	    Nachos.scheduler.readyToRun(medium);
+	}
+	NachosThread high =
+		new NachosThread
+		("High",
+		 new Runnable() {
+		    public void run() {
+			Nachos.scheduler.sleep(SINK + CRITICAL / 2);
+			int start = Simulation.currentTime();
+			lock.acquire();
+			int waited = Simulation.currentTime() - start;
+			lock.release();
+			Debug.println('+', "High waited " + waited
+				+ " ticks for the lock; longest inversion "
+				+ Nachos.scheduler.getMaxInversionTicks() + " ticks");
+			Nachos.scheduler.finishThread();
+		    }
+		 });
+	Nachos.scheduler.readyToRun(high);
+    }
+
+    /**
+     * Use a given amount of CPU time.
+     *
+     * @param ticks  The CPU time to use, in ticks.
+     */
+    private static void work(int ticks) {
+	NachosThread self = NachosThread.currentThread();
+	long start = Nachos.scheduler.getCPUTicks(self);
+	while(Nachos.scheduler.getCPUTicks(self) - start < ticks)
+	    spin();
+    }
+
+    /**
+     * Use a little CPU time, giving interrupts a chance to happen.
+     */
+    private static void spin() {
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	CPU.setLevel(oldLevel);
+    }
+}
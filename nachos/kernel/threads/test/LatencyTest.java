@@ -0,0 +1,99 @@
+package nachos.kernel.threads.test;
+
+import nachos.Debug;
+import nachos.kernel.Nachos;
+import nachos.kernel.threads.Semaphore;
+import nachos.machine.CPU;
+import nachos.machine.NachosThread;
+import nachos.machine.Simulation;
+
+/**
+ * This class tests/demonstrates scheduling latency with many threads.  It
+ * creates a number of kernel threads that all compete for the CPU for the
+ * same period of simulated time, by repeatedly enabling and disabling
+ * interrupts.  Each thread watches the simulated time as it runs, and so
+ * notices how long it was kept waiting whenever it was pre-empted.  At the
+ * end, a reporting thread prints the longest wait of any thread, the average
+ * over the threads of their longest waits, and the least CPU time received
+ * by any thread.  Compare, for example, -ps, -mlfs and -cfs scheduling.
+ */
+
+public class LatencyTest {
+
+    /** Number of ticks for which the threads compete. */
+    private static final int DURATION = 1000000;
+
+    /** Longest wait of each thread. */
+    private static int[] maxWait;
+
+    /** CPU ticks received by each thread. */
+    private static long[] ticks;
+
+    /** Signalled by each thread when it is done. */
+    private static final Semaphore done = new Semaphore("LatencyTest done", 0);
+
+    /**
+     * Entry point for the test.
+     *
+     * @param numThreads  The number of competing threads.
+     */
+    public static void start(final int numThreads) {
+	Debug.println('+', "Entering LatencyTest");
+	maxWait = new int[numThreads];
+	ticks = new long[numThreads];
+	final int end = Simulation.currentTime() + DURATION;
+	for(int i = 0; i < numThreads; i++) {
+	    final int which = i;
+	    NachosThread competitor =
+		    new NachosThread
+		    ("Latency" + i,
+		     new Runnable() {
+			public void run() {
+			    int last = Simulation.currentTime();
+			    while(last < end) {
+				int oldLevel = CPU.setLevel(CPU.IntOff);
+				CPU.setLevel(oldLevel);
+				int now = Simulation.currentTime();
+				if(now - last > maxWait[which])
+				    maxWait[which] = now - last;
+				last = now;
+			    }
+			    ticks[which] = Nachos.scheduler.getCPUTicks
+				    (NachosThread.currentThread());
+			    done.V();
+			    Nachos.scheduler.finishThread();
+			}
+		     });
+	    Nachos.scheduler.readyToRun(competitor);
+	}
+	NachosThread reporter =
+		new NachosThread
+		("LatencyReport",
+		 new Runnable() {
+		    public void run() {
+			for(int i = 0; i < numThreads; i++)
+			    done.P();
+			report();
+			Nachos.scheduler.finishThread();
+		    }
+		 });
+	Nachos.scheduler.readyToRun(reporter);
+    }
+
+    /**
+     * Print the worst and average longest waits, and the least CPU time.
+     */
+    private static void report() {
+	long worst = 0;
+	long sum = 0;
+	long least = Long.MAX_VALUE;
+	for(int i = 0; i < maxWait.length; i++) {
+	    worst = Math.max(worst, maxWait[i]);
+	    sum += maxWait[i];
+	    least = Math.min(least, ticks[i]);
+	}
+	Debug.println('+', maxWait.length + " threads: longest wait " + worst
+		+ " ticks, average longest wait " + (sum / maxWait.length)
+		+ " ticks, least CPU time " + least + " ticks");
+    }
+}
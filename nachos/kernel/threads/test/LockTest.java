@@ -0,0 +1,191 @@
+package nachos.kernel.threads.test;
+
+import nachos.Debug;
+import nachos.kernel.Nachos;
+import nachos.kernel.threads.Lock;
+import nachos.kernel.threads.Semaphore;
+import nachos.machine.CPU;
+import nachos.machine.NachosThread;
+import nachos.machine.Simulation;
+
+/**
+ * This class benchmarks Locks, to compare adaptive locks with ones that
+ * always block.  A number of kernel threads, which the scheduler spreads
+ * over the CPUs, run three phases one after the other.  In the first, they
+ * repeatedly take a shared lock for a critical section a few instructions
+ * long, which is where spinning should pay off.  In the second, they print
+ * characters through the console driver, whose output lock is mostly held
+ * briefly while a character is buffered.  In the third, they read sectors
+ * through the disk driver, whose lock is held for a whole disk operation,
+ * during which the holder is blocked, so that waiters should not spin.  The
+ * console phase is skipped if there is no console, and the disk phase if
+ * there is no disk.  At the end, a reporting thread prints how long each
+ * phase took, and how the locks involved were acquired.  Run it on several
+ * CPUs with and without adaptive locks, for example -ncpu 4 -locktest 4,
+ * then the same with -adaptive 100.  With a console, the simulation does
+ * not stop by itself, so use -tl as well.
+ */
+
+public class LockTest {
+
+    /** Number of short critical sections run by each thread. */
+    private static final int SECTIONS = 200;
+
+    /** Number of characters printed by each thread. */
+    private static final int CHARS = 40;
+
+    /** Number of disk sectors read by each thread. */
+    private static final int SECTORS = 10;
+
+    /** Number of steps of work done in each short critical section. */
+    private static final int HOLD = 10;
+
+    /** Number of steps of work done between short critical sections. */
+    private static final int THINK = 60;
+
+    /** The lock shared in the first phase. */
+    private static Lock lock;
+
+    /** Number of short critical sections run. */
+    private static int counter;
+
+    /** Signalled by each thread when it has finished a phase. */
+    private static final Semaphore done = new Semaphore("LockTest done", 0);
+
+    /**
+     * Entry point for the test.
+     *
+     * @param numThreads  The number of competing threads.
+     */
+    public static void start(final int numThreads) {
+	Debug.println('+', "Entering LockTest");
+	lock = new Lock("LockTest lock");
+	NachosThread reporter =
+		new NachosThread
+		("LockReport",
+		 new Runnable() {
+		    public void run() {
+			int sections = phase("short sections", numThreads, 0);
+			int console = Nachos.consoleDriver == null ? -1
+				: phase("console output", numThreads, 1);
+			int disk = Nachos.diskDriver == null ? -1
+				: phase("disk reads", numThreads, 2);
+			report(numThreads, sections, console, disk);
+			Nachos.scheduler.finishThread();
+		    }
+		 });
+	Nachos.scheduler.readyToRun(reporter);
+    }
+
+    /**
+     * Run one phase of the benchmark, and wait for it to finish.
+     *
+     * @param name  Name of the phase, for the thread names.
+     * @param numThreads  The number of competing threads.
+     * @param which  0 for short sections, 1 for console output, 2 for
+     * disk reads.
+     * @return  The number of ticks the phase took.
+     */
+    private static int phase(String name, int numThreads, final int which) {
+	Debug.println('+', "LockTest: starting " + name);
+	int start = Simulation.currentTime();
+	for(int i = 0; i < numThreads; i++) {
+	    final int index = i;
+	    NachosThread worker =
+		    new NachosThread
+		    ("LockTest" + which + "." + i,
+		     new Runnable() {
+			public void run() {
+			    if(which == 0)
+				runSections();
+			    else if(which == 1)
+				printChars(index);
+			    else
+				readSectors(index);
+			    done.V();
+			    Nachos.scheduler.finishThread();
+			}
+		     });
+	    Nachos.scheduler.readyToRun(worker);
+	}
+	for(int i = 0; i < numThreads; i++)
+	    done.P();
+	return Simulation.currentTime() - start;
+    }
+
+    /**
+     * Repeatedly take the shared lock for a short critical section.
+     */
+    private static void runSections() {
+	for(int i = 0; i < SECTIONS; i++) {
+	    lock.acquire();
+	    int value = counter;
+	    work(HOLD);
+	    counter = value + 1;
+	    lock.release();
+	    work(THINK);
+	}
+    }
+
+    /**
+     * Print some characters through the console driver.
+     *
+     * @param index  The index of the calling thread.
+     */
+    private static void printChars(int index) {
+	for(int i = 0; i < CHARS; i++)
+	    Nachos.consoleDriver.putChar((char)('a' + index % 26));
+    }
+
+    /**
+     * Read some sectors through the disk driver.
+     *
+     * @param index  The index of the calling thread.
+     */
+    private static void readSectors(int index) {
+	byte[] buffer = new byte[Nachos.diskDriver.getSectorSize()];
+	for(int i = 0; i < SECTORS; i++)
+	    Nachos.diskDriver.readSector
+		    ((index * SECTORS + i) % Nachos.diskDriver.getNumSectors(),
+		     buffer, 0);
+    }
+
+    /**
+     * Do a few steps of work, giving interrupts a chance to happen.
+     *
+     * @param steps  The number of steps.
+     */
+    private static void work(int steps) {
+	for(int i = 0; i < steps; i++) {
+	    int oldLevel = CPU.setLevel(CPU.IntOff);
+	    CPU.setLevel(oldLevel);
+	}
+    }
+
+    /**
+     * Print how long each phase took, and how the locks were acquired.
+     *
+     * @param numThreads  The number of competing threads.
+     * @param sections  Ticks taken by the short sections phase.
+     * @param console  Ticks taken by the console phase, or -1 if skipped.
+     * @param disk  Ticks taken by the disk phase, or -1 if skipped.
+     */
+    private static void report(int numThreads, int sections, int console,
+	    int disk) {
+	Debug.ASSERT(counter == numThreads * SECTIONS,
+		"LockTest lost " + (numThreads * SECTIONS - counter)
+		+ " updates");
+	Debug.println('+', numThreads + " threads, spin limit "
+		+ Nachos.options.LOCK_SPIN_LIMIT + ": short sections "
+		+ sections + " ticks, console output "
+		+ (console < 0 ? "skipped" : console + " ticks")
+		+ ", disk reads " + (disk < 0 ? "skipped" : disk + " ticks"));
+	Debug.println('+', lock.getStatistics());
+	if(Nachos.consoleDriver != null) {
+	    for(String line : Nachos.consoleDriver.getLockStatistics())
+		Debug.println('+', line);
+	}
+	if(Nachos.diskDriver != null)
+	    Debug.println('+', Nachos.diskDriver.getLockStatistics());
+    }
+}
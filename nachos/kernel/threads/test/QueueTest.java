@@ -0,0 +1,214 @@
+package nachos.kernel.threads.test;
+
+import nachos.Debug;
+import nachos.kernel.Nachos;
+import nachos.kernel.threads.Semaphore;
+import nachos.kernel.threads.SpinLock;
+import nachos.machine.CPU;
+import nachos.machine.NachosThread;
+import nachos.machine.Simulation;
+import nachos.util.FIFOQueue;
+import nachos.util.Queue;
+import nachos.util.RingQueue;
+
+/**
+ * This class benchmarks the lock-free RingQueue against a FIFOQueue used
+ * the usual way, under a spin lock with interrupts disabled.  First one
+ * thread offers and polls a number of items, so that the cost of the
+ * operations themselves is measured.  Then one producer and one consumer
+ * thread for each CPU pass the same number of items through the queue,
+ * each thread yielding when the queue is full or empty, and the consumers
+ * check that every item arrives exactly once.  For each, it prints the
+ * simulated ticks and the real time taken.  Run it with different numbers
+ * of CPUs, for example -ncpu 1, then -ncpu 4, with -queuetest 100000.
+ */
+
+public class QueueTest {
+
+    /** Capacity of the queues. */
+    private static final int CAPACITY = 64;
+
+    /** Signalled by each producer and consumer when it is done. */
+    private static final Semaphore done = new Semaphore("QueueTest done", 0);
+
+    /**
+     * Entry point for the test.
+     *
+     * @param items  The number of items to pass through each queue.
+     */
+    public static void start(final int items) {
+	Debug.println('+', "Entering QueueTest");
+	NachosThread reporter =
+		new NachosThread
+		("QueueReport",
+		 new Runnable() {
+		    public void run() {
+			runAlone(new LockedQueue(), items);
+			runAlone(new RingQueue<Integer>(CAPACITY), items);
+			runShared(new LockedQueue(), items);
+			runShared(new RingQueue<Integer>(CAPACITY), items);
+			Nachos.scheduler.finishThread();
+		    }
+		 });
+	Nachos.scheduler.readyToRun(reporter);
+    }
+
+    /**
+     * Offer and poll the items in a single thread, a queue's worth at a
+     * time.
+     *
+     * @param queue  The queue.
+     * @param items  The number of items.
+     */
+    private static void runAlone(Queue<Integer> queue, int items) {
+	Integer item = 1;
+	int start = Simulation.currentTime();
+	long realStart = System.nanoTime();
+	for(int i = 0; i < items; i += CAPACITY) {
+	    for(int j = 0; j < CAPACITY; j++)
+		queue.offer(item);
+	    for(int j = 0; j < CAPACITY; j++)
+		queue.poll();
+	}
+	report(queue, "1 thread", items, start, realStart);
+    }
+
+    /**
+     * Pass the items through the queue from a producer to a consumer
+     * thread for each CPU.
+     *
+     * @param queue  The queue.
+     * @param items  The number of items.
+     */
+    private static void runShared(final Queue<Integer> queue, int items) {
+	final int pairs = Nachos.options.NUM_CPUS;
+	final int perProducer = items / pairs;
+	final boolean[] seen = new boolean[perProducer * pairs];
+	int start = Simulation.currentTime();
+	long realStart = System.nanoTime();
+	for(int i = 0; i < pairs; i++) {
+	    final int first = i * perProducer;
+	    NachosThread producer =
+		    new NachosThread
+		    ("QueueProducer" + i,
+		     new Runnable() {
+			public void run() {
+			    for(int k = first; k < first + perProducer; k++) {
+				while(!queue.offer(k))
+				    Nachos.scheduler.yieldThread();
+			    }
+			    done.V();
+			    Nachos.scheduler.finishThread();
+			}
+		     });
+	    NachosThread consumer =
+		    new NachosThread
+		    ("QueueConsumer" + i,
+		     new Runnable() {
+			public void run() {
+			    for(int k = 0; k < perProducer; k++) {
+				Integer item;
+				while((item = queue.poll()) == null)
+				    Nachos.scheduler.yieldThread();
+				Debug.ASSERT(!seen[item],
+					"QueueTest: item " + item + " seen twice");
+				seen[item] = true;
+			    }
+			    done.V();
+			    Nachos.scheduler.finishThread();
+			}
+		     });
+	    Nachos.scheduler.readyToRun(producer);
+	    Nachos.scheduler.readyToRun(consumer);
+	}
+	for(int i = 0; i < 2 * pairs; i++)
+	    done.P();
+	for(int i = 0; i < seen.length; i++)
+	    Debug.ASSERT(seen[i], "QueueTest: item " + i + " lost");
+	report(queue, pairs + " producers and consumers", seen.length,
+		start, realStart);
+    }
+
+    /**
+     * Print the time taken by a run.
+     *
+     * @param queue  The queue.
+     * @param what  What was run.
+     * @param items  The number of items.
+     * @param start  The simulated time at the start.
+     * @param realStart  The real time at the start, in nanoseconds.
+     */
+    private static void report(Queue<Integer> queue, String what, int items,
+	    int start, long realStart) {
+	long nanos = System.nanoTime() - realStart;
+	Debug.println('+', queue.getClass().getSimpleName() + ", " + what
+		+ ": " + items + " items, "
+		+ (Simulation.currentTime() - start) + " ticks, "
+		+ nanos / 1000000 + " ms, " + nanos / items + " ns/item");
+    }
+
+    /**
+     * A FIFOQueue of the same capacity, with each operation done under a
+     * spin lock with interrupts disabled.
+     */
+    private static class LockedQueue implements Queue<Integer> {
+
+	/** The queue. */
+	private final FIFOQueue<Integer> queue = new FIFOQueue<Integer>();
+
+	/** Spin lock protecting the queue. */
+	private final SpinLock spinLock = new SpinLock("QueueTest spin lock");
+
+	/**
+	 * Add an item, unless the queue is full.
+	 *
+	 * @param e  The item.
+	 * @return true if the item was added.
+	 */
+	public boolean offer(Integer e) {
+	    int oldLevel = CPU.setLevel(CPU.IntOff);
+	    spinLock.acquire();
+	    boolean added = queue.size() < CAPACITY && queue.offer(e);
+	    spinLock.release();
+	    CPU.setLevel(oldLevel);
+	    return added;
+	}
+
+	/**
+	 * Remove the first item.
+	 *
+	 * @return the item, or null if the queue is empty.
+	 */
+	public Integer poll() {
+	    int oldLevel = CPU.setLevel(CPU.IntOff);
+	    spinLock.acquire();
+	    Integer e = queue.poll();
+	    spinLock.release();
+	    CPU.setLevel(oldLevel);
+	    return e;
+	}
+
+	/**
+	 * Get the first item.
+	 *
+	 * @return the item, or null if the queue is empty.
+	 */
+	public Integer peek() {
+	    int oldLevel = CPU.setLevel(CPU.IntOff);
+	    spinLock.acquire();
+	    Integer e = queue.peek();
+	    spinLock.release();
+	    CPU.setLevel(oldLevel);
+	    return e;
+	}
+
+	/**
+	 * Test whether the queue is empty.
+	 *
+	 * @return true if the queue is empty.
+	 */
+	public boolean isEmpty() {
+	    return queue.isEmpty();
+	}
+    }
+}
@@ -0,0 +1,167 @@
+package nachos.kernel.threads.test;
+
+import nachos.Debug;
+import nachos.kernel.Nachos;
+import nachos.kernel.threads.ReadWriteLock;
+import nachos.kernel.threads.Semaphore;
+import nachos.kernel.threads.SpinLock;
+import nachos.machine.CPU;
+import nachos.machine.NachosThread;
+
+/**
+ * This class tests/demonstrates reader-writer locks.  A number of reader
+ * threads repeatedly hold a ReadWriteLock for reading for a while, and a
+ * few writer threads occasionally hold it for writing.  The threads keep
+ * track of how many readers hold the lock at once, and check that no
+ * reader ever holds it at the same time as a writer.  At the end, a
+ * reporting thread prints the largest number of readers that held the
+ * lock together, which is more than one when readers run on several CPUs.
+ * Run it on several CPUs, for example -ncpu 4 -rwtest 6 2.
+ */
+
+public class ReadWriteTest {
+
+    /** Number of times each reader reads. */
+    private static final int READS = 100;
+
+    /** Number of times each writer writes. */
+    private static final int WRITES = 10;
+
+    /** Number of steps of work done holding the lock. */
+    private static final int HOLD = 30;
+
+    /** Number of steps of work done between writes. */
+    private static final int PAUSE = 300;
+
+    /** The reader-writer lock the threads share. */
+    private static final ReadWriteLock lock = new ReadWriteLock("ReadWriteTest lock");
+
+    /** Spin lock for the counts below. */
+    private static final SpinLock countLock = new SpinLock("ReadWriteTest count lock");
+
+    /** Number of readers holding the lock. */
+    private static int activeReaders;
+
+    /** Largest number of readers that have held the lock together. */
+    private static int maxReaders;
+
+    /** Number of writers holding the lock. */
+    private static int activeWriters;
+
+    /** Signalled by each thread when it is done. */
+    private static final Semaphore done = new Semaphore("ReadWriteTest done", 0);
+
+    /**
+     * Entry point for the test.
+     *
+     * @param numReaders  The number of reader threads.
+     * @param numWriters  The number of writer threads.
+     */
+    public static void start(final int numReaders, final int numWriters) {
+	Debug.println('+', "Entering ReadWriteTest");
+	for(int i = 0; i < numReaders; i++) {
+	    NachosThread reader =
+		    new NachosThread
+		    ("Reader" + i,
+		     new Runnable() {
+			public void run() {
+			    for(int i = 0; i < READS; i++) {
+				read();
+				work(HOLD);
+			    }
+			    done.V();
+			    Nachos.scheduler.finishThread();
+			}
+		     });
+	    Nachos.scheduler.readyToRun(reader);
+	}
+	for(int i = 0; i < numWriters; i++) {
+	    NachosThread writer =
+		    new NachosThread
+		    ("Writer" + i,
+		     new Runnable() {
+			public void run() {
+			    for(int i = 0; i < WRITES; i++) {
+				work(PAUSE);
+				write();
+			    }
+			    done.V();
+			    Nachos.scheduler.finishThread();
+			}
+		     });
+	    Nachos.scheduler.readyToRun(writer);
+	}
+	NachosThread reporter =
+		new NachosThread
+		("ReadWriteReport",
+		 new Runnable() {
+		    public void run() {
+			for(int i = 0; i < numReaders + numWriters; i++)
+			    done.P();
+			Debug.println('+', numReaders + " readers, " + numWriters
+				+ " writers: at most " + maxReaders
+				+ " readers at once");
+			Nachos.scheduler.finishThread();
+		    }
+		 });
+	Nachos.scheduler.readyToRun(reporter);
+    }
+
+    /**
+     * Hold the lock for reading for a while.
+     */
+    private static void read() {
+	lock.acquireRead();
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	countLock.acquire();
+	Debug.ASSERT(activeWriters == 0, "Reader and writer at once");
+	if(++activeReaders > maxReaders)
+	    maxReaders = activeReaders;
+	countLock.release();
+	CPU.setLevel(oldLevel);
+
+	work(HOLD);
+
+	oldLevel = CPU.setLevel(CPU.IntOff);
+	countLock.acquire();
+	activeReaders--;
+	countLock.release();
+	CPU.setLevel(oldLevel);
+	lock.releaseRead();
+    }
+
+    /**
+     * Hold the lock for writing for a while.
+     */
+    private static void write() {
+	lock.acquireWrite();
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	countLock.acquire();
+	Debug.ASSERT(activeReaders == 0 && activeWriters == 0,
+		"Writer not alone");
+	activeWriters++;
+	countLock.release();
+	CPU.setLevel(oldLevel);
+
+	work(HOLD);
+
+	oldLevel = CPU.setLevel(CPU.IntOff);
+	countLock.acquire();
+	activeWriters--;
+	countLock.release();
+	CPU.setLevel(oldLevel);
+	lock.releaseWrite();
+    }
+
+    /**
+     * Do a few steps of work, giving interrupts a chance to happen.
+     *
+     * @param steps  The number of steps.
+     */
+    private static void work(int steps) {
+	for(int i = 0; i < steps; i++) {
+	    int oldLevel = CPU.setLevel(CPU.IntOff);
+	    CPU.setLevel(oldLevel);
+	}
+    }
+}
@@ -0,0 +1,141 @@
+package nachos.kernel.threads.test;
+
+import nachos.Debug;
+import nachos.kernel.Nachos;
+import nachos.kernel.threads.Semaphore;
+import nachos.machine.CPU;
+import nachos.machine.NachosThread;
+import nachos.machine.Simulation;
+
+/**
+ * This class tests/demonstrates earliest-deadline-first real-time scheduling.
+ * It creates periodic real-time kernel threads, each of which asks to be
+ * admitted to the real-time class and then runs a fixed number of jobs,
+ * using a little less than its budget of CPU time in each, while some
+ * ordinary threads hog the CPU for the whole time.  The parameters are
+ * chosen so that, on a single CPU, the last real-time thread would take the
+ * real-time load over 100% and is rejected.  At the end, a reporting thread
+ * prints how many deadlines each admitted thread missed.  Run it with
+ * time slicing (-rt -ps or -rt -tickless) to see every deadline met despite
+ * the hogs; without it, the real-time threads cannot start until the hogs
+ * are done.
+ */
+
+public class RealTimeTest {
+
+    /** Period, budget and relative deadline of each real-time thread. */
+    private static final int[][] PARAMS = {
+	{ 2000, 500, 2000 },
+	{ 5000, 1500, 4000 },
+	{ 1000, 600, 1000 }
+    };
+
+    /** Number of jobs run by each real-time thread. */
+    private static final int JOBS = 20;
+
+    /** Number of ordinary threads competing with the real-time threads. */
+    private static final int HOGS = 3;
+
+    /** Number of ticks for which the ordinary threads run. */
+    private static final int DURATION = 100000;
+
+    /** Was each real-time thread admitted? */
+    private static final boolean[] admitted = new boolean[PARAMS.length];
+
+    /** Number of deadlines missed by each real-time thread. */
+    private static final int[] missed = new int[PARAMS.length];
+
+    /** Signalled by each thread when it is done. */
+    private static final Semaphore done = new Semaphore("RealTimeTest done", 0);
+
+    /**
+     * Entry point for the test.
+     */
+    public static void start() {
+	Debug.println('+', "Entering RealTimeTest");
+	final int end = Simulation.currentTime() + DURATION;
+	for(int i = 0; i < HOGS; i++) {
+	    NachosThread hog =
+		    new NachosThread
+		    ("Hog" + i,
+		     new Runnable() {
+			public void run() {
+			    while(Simulation.currentTime() < end)
+				spin();
+			    done.V();
+			    Nachos.scheduler.finishThread();
+			}
+		     });
+	    Nachos.scheduler.readyToRun(hog);
+	}
+	for(int i = 0; i < PARAMS.length; i++) {
+	    final int which = i;
+	    NachosThread periodic =
+		    new NachosThread
+		    ("RT" + i,
+		     new Runnable() {
+			public void run() {
+			    runJobs(which);
+			    done.V();
+			    Nachos.scheduler.finishThread();
+			}
+		     });
+	    Nachos.scheduler.readyToRun(periodic);
+	}
+	NachosThread reporter =
+		new NachosThread
+		("RealTimeReport",
+		 new Runnable() {
+		    public void run() {
+			for(int i = 0; i < HOGS + PARAMS.length; i++)
+			    done.P();
+			report();
+			Nachos.scheduler.finishThread();
+		    }
+		 });
+	Nachos.scheduler.readyToRun(reporter);
+    }
+
+    /**
+     * Body of a real-time thread: ask for admission, then run the jobs,
+     * each using four fifths of the budget.
+     *
+     * @param which  The index of the thread's parameters.
+     */
+    private static void runJobs(int which) {
+	NachosThread self = NachosThread.currentThread();
+	int[] p = PARAMS[which];
+	admitted[which] = Nachos.scheduler.setRealTime(p[0], p[1], p[2]);
+	if(!admitted[which])
+	    return;
+	int work = p[1] * 4 / 5;
+	for(int job = 0; job < JOBS; job++) {
+	    long start = Nachos.scheduler.getCPUTicks(self);
+	    while(Nachos.scheduler.getCPUTicks(self) - start < work)
+		spin();
+	    Nachos.scheduler.waitForNextPeriod();
+	}
+	missed[which] = Nachos.scheduler.getMissedDeadlines(self);
+	Nachos.scheduler.setRealTime(0, 0, 0);
+    }
+
+    /**
+     * Use a little CPU time, giving interrupts a chance to happen.
+     */
+    private static void spin() {
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	CPU.setLevel(oldLevel);
+    }
+
+    /**
+     * Print the outcome for each real-time thread.
+     */
+    private static void report() {
+	for(int i = 0; i < PARAMS.length; i++) {
+	    Debug.println('+', "RT" + i + ": period " + PARAMS[i][0]
+		    + ", budget " + PARAMS[i][1] + ", deadline " + PARAMS[i][2]
+		    + (admitted[i] ? ", admitted, missed " + missed[i]
+			    + " of " + JOBS + " deadlines" : ", rejected"));
+	}
+    }
+}
@@ -0,0 +1,93 @@
+package nachos.kernel.threads.test;
+
+import nachos.Debug;
+import nachos.kernel.Nachos;
+import nachos.kernel.threads.Semaphore;
+import nachos.machine.CPU;
+import nachos.machine.NachosThread;
+import nachos.machine.Simulation;
+
+/**
+ * This class tests/demonstrates proportional-share scheduling.  It creates
+ * kernel threads whose weights are in the ratio 1:2:3, which all compete for
+ * the CPU for the same period of simulated time by repeatedly enabling and
+ * disabling interrupts.  When the period is over, each thread records how
+ * much CPU time it received, and a reporting thread then prints, for each
+ * thread, the share of the CPU requested by its weight and the share it
+ * actually got.  Run it with stride scheduling and time slicing on a single
+ * CPU (-stride -ps -shares) to see the CPU split according to the weights.
+ */
+
+public class ShareTest {
+
+    /** Weights of the competing threads. */
+    private static final int[] WEIGHTS = { 100, 200, 300 };
+
+    /** Number of ticks for which the threads compete. */
+    private static final int DURATION = 300000;
+
+    /** CPU ticks received by each thread. */
+    private static final long[] ticks = new long[WEIGHTS.length];
+
+    /** Signalled by each thread when it is done. */
+    private static final Semaphore done = new Semaphore("ShareTest done", 0);
+
+    /**
+     * Entry point for the test.
+     */
+    public static void start() {
+	Debug.println('+', "Entering ShareTest");
+	final int end = Simulation.currentTime() + DURATION;
+	for(int i = 0; i < WEIGHTS.length; i++) {
+	    final int which = i;
+	    NachosThread competitor =
+		    new NachosThread
+		    ("Share" + i,
+		     new Runnable() {
+			public void run() {
+			    while(Simulation.currentTime() < end) {
+				int oldLevel = CPU.setLevel(CPU.IntOff);
+				CPU.setLevel(oldLevel);
+			    }
+			    ticks[which] = Nachos.scheduler.getCPUTicks
+				    (NachosThread.currentThread());
+			    done.V();
+			    Nachos.scheduler.finishThread();
+			}
+		     });
+	    Nachos.scheduler.setWeight(competitor, WEIGHTS[i]);
+	    Nachos.scheduler.readyToRun(competitor);
+	}
+	NachosThread reporter =
+		new NachosThread
+		("ShareReport",
+		 new Runnable() {
+		    public void run() {
+			for(int i = 0; i < WEIGHTS.length; i++)
+			    done.P();
+			report();
+			Nachos.scheduler.finishThread();
+		    }
+		 });
+	Nachos.scheduler.readyToRun(reporter);
+    }
+
+    /**
+     * Print the requested and achieved CPU share of each thread.
+     */
+    private static void report() {
+	long totalWeight = 0;
+	long totalTicks = 0;
+	for(int i = 0; i < WEIGHTS.length; i++) {
+	    totalWeight += WEIGHTS[i];
+	    totalTicks += ticks[i];
+	}
+	for(int i = 0; i < WEIGHTS.length; i++) {
+	    Debug.println('+', "Share" + i + ": weight " + WEIGHTS[i]
+		    + ", requested " + (100 * WEIGHTS[i] / totalWeight) + "%"
+		    + ", achieved "
+		    + (totalTicks == 0 ? 0 : 100 * ticks[i] / totalTicks) + "%"
+		    + " (" + ticks[i] + " ticks)");
+	}
+    }
+}
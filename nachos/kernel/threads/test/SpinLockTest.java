@@ -0,0 +1,123 @@
+package nachos.kernel.threads.test;
+
+import nachos.Debug;
+import nachos.kernel.Nachos;
+import nachos.kernel.threads.Semaphore;
+import nachos.kernel.threads.SpinLock;
+import nachos.machine.CPU;
+import nachos.machine.NachosThread;
+import nachos.machine.Simulation;
+
+/**
+ * This class tests/demonstrates the kinds of spin lock.  It creates a
+ * number of kernel threads, which the scheduler spreads over the CPUs, and
+ * each of them repeatedly takes a shared spin lock, holds it for a little
+ * while, and releases it.  Each thread watches how long it waits for the
+ * lock, so an unfair lock shows up as some threads waiting much longer
+ * than others.  At the end, a reporting thread checks that no update made
+ * under the lock was lost, and prints the longest wait of any thread, the
+ * statistics of the shared lock, and those of the scheduler's own locks.
+ * Run it on several CPUs with each kind of lock, for example
+ * -ncpu 8 -spintest 8, then the same with -spin ticket or -spin mcs.
+ */
+
+public class SpinLockTest {
+
+    /** Number of times each thread takes the lock. */
+    private static final int ROUNDS = 200;
+
+    /** Number of steps of work done holding the lock. */
+    private static final int HOLD = 20;
+
+    /** The lock the threads share. */
+    private static SpinLock lock;
+
+    /** Number of updates made under the lock. */
+    private static int counter;
+
+    /** Longest wait, in ticks, of each thread for the lock. */
+    private static int[] maxWait;
+
+    /** Signalled by each thread when it is done. */
+    private static final Semaphore done = new Semaphore("SpinLockTest done", 0);
+
+    /**
+     * Entry point for the test.
+     *
+     * @param numThreads  The number of competing threads.
+     */
+    public static void start(final int numThreads) {
+	Debug.println('+', "Entering SpinLockTest");
+	lock = new SpinLock("SpinLockTest lock");
+	maxWait = new int[numThreads];
+	for(int i = 0; i < numThreads; i++) {
+	    final int which = i;
+	    NachosThread competitor =
+		    new NachosThread
+		    ("Spinner" + i,
+		     new Runnable() {
+			public void run() {
+			    for(int round = 0; round < ROUNDS; round++)
+				update(which);
+			    done.V();
+			    Nachos.scheduler.finishThread();
+			}
+		     });
+	    Nachos.scheduler.readyToRun(competitor);
+	}
+	NachosThread reporter =
+		new NachosThread
+		("SpinLockReport",
+		 new Runnable() {
+		    public void run() {
+			for(int i = 0; i < numThreads; i++)
+			    done.P();
+			report();
+			Nachos.scheduler.finishThread();
+		    }
+		 });
+	Nachos.scheduler.readyToRun(reporter);
+    }
+
+    /**
+     * Take the lock, update the counter in a few steps, and release it.
+     *
+     * @param which  The index of the calling thread.
+     */
+    private static void update(int which) {
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	int start = Simulation.currentTime();
+	lock.acquire();
+	int waited = Simulation.currentTime() - start;
+	if(waited > maxWait[which])
+	    maxWait[which] = waited;
+	int value = counter;
+	for(int i = 0; i < HOLD; i++)
+	    CPU.setLevel(CPU.IntOff);
+	counter = value + 1;
+	lock.release();
+	CPU.setLevel(oldLevel);
+    }
+
+    /**
+     * Print the outcome.
+     */
+    private static void report() {
+	int expected = maxWait.length * ROUNDS;
+	Debug.ASSERT(counter == expected,
+		"SpinLockTest lost " + (expected - counter) + " updates");
+	int worst = 0;
+	long sum = 0;
+	for(int i = 0; i < maxWait.length; i++) {
+	    worst = Math.max(worst, maxWait[i]);
+	    sum += maxWait[i];
+	}
+	Debug.println('+', maxWait.length + " threads, " + counter
+		+ " updates: longest wait " + worst
+		+ " ticks, average longest wait " + (sum / maxWait.length)
+		+ " ticks");
+	Debug.println('+', lock.getStatistics());
+	for(String line : Nachos.scheduler.getLockStatistics())
+	    Debug.println('+', line);
+    }
+}
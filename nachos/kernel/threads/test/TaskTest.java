@@ -0,0 +1,181 @@
+package nachos.kernel.threads.test;
+
+import nachos.Debug;
+import nachos.kernel.Nachos;
+import nachos.kernel.threads.Semaphore;
+import nachos.kernel.threads.SpinLock;
+import nachos.kernel.threads.TaskManager;
+import nachos.machine.CPU;
+import nachos.machine.NachosThread;
+import nachos.machine.Simulation;
+
+/**
+ * This class benchmarks the TaskManager worker pool against creating a
+ * thread for every task.  A number of short tasks, each a few steps of
+ * work, are run first by a new thread each, and then by a TaskManager,
+ * whose parent thread counts the onCompletion() calls to check that each
+ * runs exactly once.  For each, it prints the simulated ticks and the real
+ * time taken, since creating and destroying the threads for the tasks
+ * mostly costs real time.  Then it checks that a task cancelled while
+ * queued never runs, gets onCancellation() instead, and is reported by
+ * get() as cancelled.
+ */
+
+public class TaskTest {
+
+    /** Number of steps of work done by each task. */
+    private static final int WORK = 10;
+
+    /** Spin lock for ran. */
+    private static final SpinLock countLock = new SpinLock("TaskTest count lock");
+
+    /** Number of tasks that have run. */
+    private static int ran;
+
+    /** Number of onCompletion() calls. */
+    private static int completions;
+
+    /** Number of onCancellation() calls. */
+    private static int cancellations;
+
+    /** Signalled by each thread-per-task thread when it is done. */
+    private static final Semaphore done = new Semaphore("TaskTest done", 0);
+
+    /**
+     * Entry point for the test.
+     *
+     * @param numTasks  The number of tasks.
+     */
+    public static void start(final int numTasks) {
+	Debug.println('+', "Entering TaskTest");
+	NachosThread parent =
+		new NachosThread
+		("TaskTestParent",
+		 new Runnable() {
+		    public void run() {
+			runThreads(numTasks);
+			runPool(numTasks);
+			checkCancel();
+			Nachos.scheduler.finishThread();
+		    }
+		 });
+	Nachos.scheduler.readyToRun(parent);
+    }
+
+    /**
+     * Run the tasks with a new thread for each.
+     *
+     * @param numTasks  The number of tasks.
+     */
+    private static void runThreads(int numTasks) {
+	int start = Simulation.currentTime();
+	long realStart = System.currentTimeMillis();
+	for(int i = 0; i < numTasks; i++) {
+	    NachosThread thread =
+		    new NachosThread
+		    ("TaskTest" + i,
+		     new Runnable() {
+			public void run() {
+			    work(WORK);
+			    done.V();
+			    Nachos.scheduler.finishThread();
+			}
+		     });
+	    Nachos.scheduler.readyToRun(thread);
+	}
+	for(int i = 0; i < numTasks; i++)
+	    done.P();
+	Debug.println('+', numTasks + " tasks, thread per task: "
+		+ (Simulation.currentTime() - start) + " ticks, "
+		+ (System.currentTimeMillis() - realStart) + " ms");
+    }
+
+    /**
+     * Run the tasks with a TaskManager.
+     *
+     * @param numTasks  The number of tasks.
+     */
+    private static void runPool(int numTasks) {
+	int start = Simulation.currentTime();
+	long realStart = System.currentTimeMillis();
+	ran = completions = 0;
+	TaskManager manager = new TaskManager();
+	for(int i = 0; i < numTasks; i++)
+	    newTask(manager).execute();
+	manager.processRequests();
+	manager.shutdown();
+	Debug.ASSERT(ran == numTasks && completions == numTasks,
+		"TaskTest: " + ran + " tasks ran, " + completions
+		+ " completions for " + numTasks + " tasks");
+	Debug.println('+', numTasks + " tasks, TaskManager: "
+		+ (Simulation.currentTime() - start) + " ticks, "
+		+ (System.currentTimeMillis() - realStart) + " ms");
+    }
+
+    /**
+     * Check that a task cancelled while queued never runs.
+     */
+    private static void checkCancel() {
+	ran = completions = cancellations = 0;
+	TaskManager manager = new TaskManager(1, 4);
+	final Semaphore blocker = new Semaphore("TaskTest blocker", 0);
+	TaskManager.Task first = manager.new Task() {
+	    protected void doInBackground() {
+		blocker.P();		// keep the only worker busy
+		ran++;
+	    }
+	    protected void onCompletion() {
+		completions++;
+	    }
+	};
+	TaskManager.Task second = newTask(manager);
+	first.execute();
+	second.execute();
+	boolean cancelled = second.cancel();
+	blocker.V();
+	Debug.ASSERT(first.get() && !second.get() && cancelled,
+		"TaskTest: get() or cancel() returned the wrong result");
+	manager.processRequests();
+	manager.shutdown();
+	Debug.ASSERT(ran == 1 && completions == 1 && cancellations == 1,
+		"TaskTest: cancelled task ran or was not reported");
+	Debug.println('+', "TaskTest: cancel and get checked");
+    }
+
+    /**
+     * Make a short task.
+     *
+     * @param manager  The TaskManager to run it.
+     * @return  The task.
+     */
+    private static TaskManager.Task newTask(TaskManager manager) {
+	return manager.new Task() {
+	    protected void doInBackground() {
+		work(WORK);
+		int oldLevel = CPU.setLevel(CPU.IntOff);
+		countLock.acquire();
+		ran++;
+		countLock.release();
+		CPU.setLevel(oldLevel);
+	    }
+	    protected void onCompletion() {
+		completions++;
+	    }
+	    protected void onCancellation() {
+		cancellations++;
+	    }
+	};
+    }
+
+    /**
+     * Do a few steps of work, giving interrupts a chance to happen.
+     *
+     * @param steps  The number of steps.
+     */
+    private static void work(int steps) {
+	for(int i = 0; i < steps; i++) {
+	    int oldLevel = CPU.setLevel(CPU.IntOff);
+	    CPU.setLevel(oldLevel);
+	}
+    }
+}
@@ -0,0 +1,214 @@
+package nachos.kernel.threads.test;
+
+import nachos.Debug;
+import nachos.kernel.Nachos;
+import nachos.kernel.threads.Condition;
+import nachos.kernel.threads.Lock;
+import nachos.kernel.threads.Semaphore;
+import nachos.kernel.threads.SpinLock;
+import nachos.machine.CPU;
+import nachos.machine.NachosThread;
+import nachos.machine.Simulation;
+
+/**
+ * This class tests/demonstrates timed waits on semaphores and condition
+ * variables.  In the first phase, a producer thread V()s a semaphore now
+ * and then, more slowly than a number of consumer threads try to P() it
+ * with a timeout, so that some of their waits succeed and the others time
+ * out.  The producer paces itself by waiting with a timeout on a semaphore
+ * that is never V()ed.  In the second phase, the same happens with a
+ * condition variable, which the producer signals and the consumers await
+ * with a timeout.  Each phase checks that every item produced was consumed
+ * exactly once, and records how late the timed-out waits woke up.  At the
+ * end, a reporting thread prints the results.
+ */
+
+public class TimeoutTest {
+
+    /** Number of items produced in each phase. */
+    private static final int ITEMS = 20;
+
+    /** Number of ticks between items. */
+    private static final int PERIOD = 1500;
+
+    /** Number of ticks a consumer waits for an item before giving up. */
+    private static final int WAIT = 1000;
+
+    /** Semaphore counting the items in the first phase. */
+    private static final Semaphore items = new Semaphore("TimeoutTest items", 0);
+
+    /** Lock protecting pending in the second phase. */
+    private static final Lock lock = new Lock("TimeoutTest lock");
+
+    /** Condition signalled when an item is produced in the second phase. */
+    private static final Condition produced =
+	new Condition("TimeoutTest produced", lock);
+
+    /** Number of items produced but not yet consumed in the second phase. */
+    private static int pending;
+
+    /** Is the producer still producing? */
+    private static volatile boolean producing;
+
+    /** Spin lock for the counts below. */
+    private static final SpinLock countLock = new SpinLock("TimeoutTest count lock");
+
+    /** Number of items consumed in the current phase. */
+    private static int consumed;
+
+    /** Number of waits that timed out in the current phase. */
+    private static int timeouts;
+
+    /** Largest number of ticks a timed-out wait overran its timeout by. */
+    private static int maxLate;
+
+    /** Signalled by each thread when it has finished a phase. */
+    private static final Semaphore done = new Semaphore("TimeoutTest done", 0);
+
+    /**
+     * Entry point for the test.
+     *
+     * @param numThreads  The number of consumer threads.
+     */
+    public static void start(final int numThreads) {
+	Debug.println('+', "Entering TimeoutTest");
+	NachosThread reporter =
+		new NachosThread
+		("TimeoutReport",
+		 new Runnable() {
+		    public void run() {
+			phase(numThreads, false);
+			phase(numThreads, true);
+			Nachos.scheduler.finishThread();
+		    }
+		 });
+	Nachos.scheduler.readyToRun(reporter);
+    }
+
+    /**
+     * Run one phase of the test, wait for it to finish, and report.
+     *
+     * @param numThreads  The number of consumer threads.
+     * @param condition  true to use the condition variable, false to use
+     * the semaphore.
+     */
+    private static void phase(int numThreads, final boolean condition) {
+	consumed = timeouts = maxLate = 0;
+	producing = true;
+	NachosThread producer =
+		new NachosThread
+		("TimeoutProducer",
+		 new Runnable() {
+		    public void run() {
+			produce(condition);
+			done.V();
+			Nachos.scheduler.finishThread();
+		    }
+		 });
+	Nachos.scheduler.readyToRun(producer);
+	for(int i = 0; i < numThreads; i++) {
+	    NachosThread consumer =
+		    new NachosThread
+		    ("TimeoutConsumer" + i,
+		     new Runnable() {
+			public void run() {
+			    if(condition)
+				awaitItems();
+			    else
+				takeItems();
+			    done.V();
+			    Nachos.scheduler.finishThread();
+			}
+		     });
+	    Nachos.scheduler.readyToRun(consumer);
+	}
+	for(int i = 0; i < numThreads + 1; i++)
+	    done.P();
+
+	Debug.ASSERT(consumed == ITEMS && !items.tryP() && pending == 0,
+		"TimeoutTest consumed " + consumed + " of " + ITEMS + " items");
+	Debug.println('+', (condition ? "Condition.await" : "Semaphore.P")
+		+ ", " + numThreads + " consumers: " + consumed
+		+ " items consumed, " + timeouts + " waits timed out, at most "
+		+ maxLate + " ticks late");
+    }
+
+    /**
+     * Produce the items, one every PERIOD ticks.
+     *
+     * @param condition  true to use the condition variable, false to use
+     * the semaphore.
+     */
+    private static void produce(boolean condition) {
+	Semaphore never = new Semaphore("TimeoutTest never", 0);
+	for(int i = 0; i < ITEMS; i++) {
+	    Debug.ASSERT(!never.P(PERIOD), "TimeoutTest never was V()ed");
+	    if(condition) {
+		lock.acquire();
+		pending++;
+		produced.signal();
+		lock.release();
+	    } else {
+		items.V();
+	    }
+	}
+	producing = false;
+    }
+
+    /**
+     * Take items from the semaphore until the producer is done and no
+     * item is left.
+     */
+    private static void takeItems() {
+	while(producing) {
+	    int start = Simulation.currentTime();
+	    if(items.P(WAIT))
+		count(true, 0);
+	    else
+		count(false, Simulation.currentTime() - start - WAIT);
+	}
+	while(items.tryP())
+	    count(true, 0);
+    }
+
+    /**
+     * Take items signalled through the condition variable until the
+     * producer is done and no item is left.
+     */
+    private static void awaitItems() {
+	lock.acquire();
+	while(producing || pending > 0) {
+	    if(pending > 0) {
+		pending--;
+		count(true, 0);
+		continue;
+	    }
+	    int start = Simulation.currentTime();
+	    if(!produced.await(WAIT))
+		count(false, Simulation.currentTime() - start - WAIT);
+	}
+	lock.release();
+    }
+
+    /**
+     * Count an item consumed, or a wait that timed out.
+     *
+     * @param item  true if an item was consumed, false if a wait timed out.
+     * @param late  The number of ticks by which a wait that timed out
+     * overran its timeout.
+     */
+    private static void count(boolean item, int late) {
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	countLock.acquire();
+	if(item) {
+	    consumed++;
+	} else {
+	    Debug.ASSERT(late >= 0, "TimeoutTest wait timed out early");
+	    timeouts++;
+	    if(late > maxLate)
+		maxLate = late;
+	}
+	countLock.release();
+	CPU.setLevel(oldLevel);
+    }
+}
@@ -20,6 +20,7 @@
 package nachos.kernel.userprog;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map.Entry;
@@ -82,8 +83,12 @@ public class AddrSpace {
      *
      * Assumes that the object code file is in NOFF format.
      *
-     * First, set up the translation from program memory to physical memory. For
-     * now, this is really simple (1:1), since we are only uniprogramming.
+     * Pages are loaded on demand: every page table entry starts out invalid,
+     * and the first reference to a page causes a page fault, which
+     * handlePageFault() serves by reading the page's part of the code and
+     * initialized data segments from the file, and zero-filling the rest,
+     * so bss and stack pages are only zero-filled.  The file must therefore
+     * stay open for as long as the address space is in use.
      *
      * @param executable
      *            The file containing the object code to load into memory
@@ -91,6 +96,19 @@ public class AddrSpace {
      */
     NoffHeader noffH = null;
     long size;
+
+    /** The file from which the program's pages are loaded. */
+    private OpenFile executable;
+
+    /** Number of pages of code, data and stack, which are loaded on demand. */
+    private int imagePages;
+
+    /**
+     * Swap slot holding each page of code, data and stack, or -1 if it has
+     * never been written to the swap area.
+     */
+    int[] swapSlots;
+
     public int exec(OpenFile executable) {
 
 	if ((noffH = NoffHeader.readHeader(executable)) == null)
@@ -103,27 +121,20 @@ public class AddrSpace {
 				 // to leave room for the stack
 	int numPages = (int) (size / Machine.PageSize);
 	numPhysicalPages = numPages;
-	Debug.ASSERT((numPages <= Machine.NumPhysPages),// check we're not
-							// trying
-		"AddrSpace constructor: Not enough memory!");
-	// to run anything too big --
-	// at least until we have
-	// virtual memory
+	imagePages = numPages;
+	this.executable = executable;
+	swapSlots = new int[numPages];
+	Arrays.fill(swapSlots, -1);
 
 	Debug.println('a', "Initializing address space, numPages=" + numPages
 		+ ", size=" + size);
-	PhysicalMemoryManager pmm = PhysicalMemoryManager.getInstance();
-	//pmm.setPages();
-	// first, set up the translation
+	// first, set up the translation; no page is in memory yet
 	pageTable = new TranslationEntry[numPages];
 	for (int i = 0; i < numPages; i++) {
 	    pageTable[i] = new TranslationEntry();
 	    pageTable[i].virtualPage = i;
-	    pageTable[i].physicalPage = pmm.getPage();
-	    if(pageTable[i].physicalPage == -1)
-		pageTable[i].valid = false;
-	    else
-		pageTable[i].valid = true;
+	    pageTable[i].physicalPage = -1;
+	    pageTable[i].valid = false;
 	    pageTable[i].use = false;
 	    pageTable[i].dirty = false;
 	    // if code and data segments live on
@@ -132,64 +143,95 @@ public class AddrSpace {
 	    pageTable[i].readOnly = false;
 	}
 
-	byte[] tempBuffer = new byte[(int) size];
-
-	// then, copy in the code and data segments into memory
-	if (noffH.code.size > 0) {
-	    Debug.println('a', "Initializing code segment, at "
-		    + noffH.code.virtualAddr + ", size " + noffH.code.size);
-
-	    executable.seek(noffH.code.inFileAddr);
-	    executable
-		    .read(tempBuffer, noffH.code.virtualAddr, noffH.code.size);
-	}
+	PhysicalMemoryManager pmm = PhysicalMemoryManager.getInstance();
+	pmm.mapProcessIdToAddressSpace(NachosThread.currentThread().name, this);
+	return (0);
+    }
 
-	if (noffH.initData.size > 0) {
-	    Debug.println('a', "Initializing data segment, at "
-		    + noffH.initData.virtualAddr + ", size "
-		    + noffH.initData.size);
+    /**
+     * Make sure that a page of the program is in memory, loading it if it
+     * is not.  Used by the kernel before it reads or writes user memory,
+     * since it does not go through the MMU and so cannot take page faults.
+     *
+     * @param vpn  The virtual page.
+     * @return true if the page is now valid, false if it is not a page of
+     * this address space or no physical page could be had for it.
+     */
+    public boolean faultIn(int vpn) {
+	if (pageTable == null || vpn < 0 || vpn >= pageTable.length)
+	    return false;
+	if (pageTable[vpn].valid)
+	    return true;
+	return vpn < imagePages && loadPage(vpn);
+    }
 
-	    executable.seek(noffH.initData.inFileAddr);
-	    executable.read(tempBuffer, noffH.initData.virtualAddr,
-		    noffH.initData.size);
+    /**
+     * Load a page of the program: take a physical page and read the page
+     * into it from the swap area, if it has been written there, or else
+     * zero it and read into it whatever parts of the code and initialized
+     * data segments fall within it.
+     *
+     * @param vpn  The virtual page, which is not in memory.
+     * @return true if the page was loaded, false if there was no free
+     * physical page.
+     */
+    private boolean loadPage(int vpn) {
+	PhysicalMemoryManager pmm = PhysicalMemoryManager.getInstance();
+	int ppn = pmm.getPage();
+	if (ppn < 0)
+	    return false;
+	int pAddress = ppn * Machine.PageSize;
+	if (swapSlots[vpn] >= 0) {
+	    pmm.getSwapSpace().read(swapSlots[vpn], pAddress);
+	    Debug.println('a', "Swapped in virtual page " + vpn
+		    + " into physical page " + ppn);
+	} else {
+	    Arrays.fill(Machine.mainMemory, pAddress,
+		    pAddress + Machine.PageSize, (byte) 0);
+	    loadSegment(noffH.code, vpn, pAddress);
+	    loadSegment(noffH.initData, vpn, pAddress);
+	    Debug.println('a', "Loaded virtual page " + vpn
+		    + " into physical page " + ppn);
 	}
 
-	// Starts paging
-	int ppn = 0, offset = 0;
-	int index = 0;
-	for (int i = 0; i < size; i++) {
-	    if (i != 0 && i % Machine.PageSize == 0) {
-		ppn++;
-		offset = 0;
-	    }
-	    index = (pageTable[ppn].physicalPage * Machine.PageSize) + (offset++);
-	    if(index < 0) {
-		break;
-	    }
-	    Machine.mainMemory[index] = tempBuffer[i];
-	}
+	TranslationEntry entry = pageTable[vpn];
+	entry.physicalPage = ppn;
+	entry.use = true;
+	entry.dirty = false;
+	entry.readOnly = false;
+	entry.valid = true;
+	pmm.map(ppn, this, vpn);
+	return true;
+    }
 
-	pmm.mapProcessIdToAddressSpace(NachosThread.currentThread().name, this);
-	return (0);
+    /**
+     * Read the part of a segment that falls within a virtual page from the
+     * executable into the physical page holding it.
+     *
+     * @param segment  The segment.
+     * @param vpn  The virtual page.
+     * @param pAddress  The physical address of the page.
+     */
+    private void loadSegment(NoffHeader.NoffSegment segment, int vpn,
+	    int pAddress) {
+	int pageStart = vpn * Machine.PageSize;
+	int from = Math.max(pageStart, segment.virtualAddr);
+	int to = Math.min(pageStart + Machine.PageSize,
+		segment.virtualAddr + segment.size);
+	if (from >= to)
+	    return;
+	executable.readAt(Machine.mainMemory, pAddress + from - pageStart,
+		to - from, segment.inFileAddr + from - segment.virtualAddr);
     }
 
     /**
      * Releases the memory. Destroy all the pages that have been created.
+     * Their frames are not cleared: every frame is filled in full when it
+     * is handed out again.
      */
     public void destroy() {
-	// Destroy each object inside the array for better garbage collection
-	// It may improve the performance
-	for(int i = 0; i < pageTable.length; i++) {
-	    int m = 0;
-	    for(int j = 0; j < Machine.PageSize; j++) {
-		m = (pageTable[i].physicalPage * Machine.PageSize) + j;
-		if(m < 0)
-		    break;
-		Machine.mainMemory[m] = 0;
-	    }
-	}
-	// Destroys the Physical Memory Manager instance
-	PhysicalMemoryManager.getInstance().destroySpace(pageTable);
+	// Releases the pages in memory and in the swap area
+	PhysicalMemoryManager.getInstance().destroySpace(this);
 	for (int i = 0; i < pageTable.length; i++) {
 	    pageTable[i] = null;
 	}
@@ -269,29 +311,32 @@ public class AddrSpace {
 	return spaceId;
     }
     
+    /**
+     * Make a copy of this address space for a forked process, copy-on-write.
+     * The copy shares every page this space has in memory, and both spaces
+     * map the shared pages read-only, so that the first write to one by
+     * either of them raises a ReadOnlyException, and handleReadOnlyException()
+     * gives the writer its own copy.  Pages not loaded yet are left for the
+     * copy to load itself.
+     *
+     * @return the copy.
+     */
     public AddrSpace clone() {
 	AddrSpace space = new AddrSpace();
 	//space.setSpaceId(spaceId+1);
 	space.numPhysicalPages = numPhysicalPages;
-	space.pageTable = new TranslationEntry[numPhysicalPages];
+	space.noffH = noffH;
+	space.size = size;
+	space.executable = executable;
+	space.imagePages = imagePages;
+	space.pageTable = new TranslationEntry[pageTable.length];
 	for(int i = 0; i < pageTable.length; i++) {
 	    space.pageTable[i] = new TranslationEntry();
 	    space.pageTable[i].virtualPage = pageTable[i].virtualPage;
-	    space.pageTable[i].physicalPage = PhysicalMemoryManager.getInstance().getPage();
-	    //space.pageTable[i].physicalPage = pageTable[i].physicalPage;
-	    space.pageTable[i].valid = pageTable[i].valid;
-	    space.pageTable[i].use = pageTable[i].use;
-	    space.pageTable[i].dirty = pageTable[i].dirty;
-	    pageTable[i].readOnly = pageTable[i].readOnly;
-	    int m = 0, n = 0;
-	    for(int j = 0; j < Machine.PageSize; j++) {
-		m = (pageTable[i].physicalPage * Machine.PageSize) + j;
-		n = (space.pageTable[i].physicalPage * Machine.PageSize) + (j);
-		if(j >= noffH.code.size + noffH.initData.size)
-		    break;
-		Machine.mainMemory[n] = Machine.mainMemory[m];
-	    }
 	}
+	// Shares the pages in memory and in swap, under the frame lock so
+	// that none of them can be evicted meanwhile
+	PhysicalMemoryManager.getInstance().shareSpace(this, space);
 	
 	return space;
     }
@@ -368,6 +413,15 @@ public class AddrSpace {
 
     public void handlePageFault(int vAddress) {
 	int vpn = vAddress / Machine.PageSize;
+	if (vpn >= 0 && vpn < imagePages) {
+	    if (!faultIn(vpn)) {
+		Debug.println('+', "Out of physical memory, Virtual address: "
+			+ vAddress);
+		Syscall.exit(-1);
+	    }
+	    restoreState();
+	    return;
+	}
 	for(TranslationEntry entry: pageTable) {
 	    if(entry.virtualPage == vpn) {
 		if(entry.physicalPage != -1) {
@@ -489,10 +543,40 @@ public class AddrSpace {
 	}
     }
     
+    /**
+     * Handle a write to a read-only page.  If the page is shared
+     * copy-on-write with another address space, the writer gets a copy of
+     * it first.  Either way, the page becomes writable and dirty.
+     *
+     * @param vAddress  The virtual address written to.
+     */
     public void handleReadOnlyException(int vAddress) {
 	int vpn = vAddress / Machine.PageSize;
 	for (TranslationEntry entry : pageTable) {
 	    if(entry.virtualPage == vpn) {
+		PhysicalMemoryManager pmm = PhysicalMemoryManager.getInstance();
+		if(pmm.isShared(entry.physicalPage)) {
+		    int ppn = pmm.getPage();
+		    if(ppn < 0) {
+			Debug.println('+', "Out of physical memory, Virtual address: "
+				+ vAddress);
+			Syscall.exit(-1);
+		    }
+		    System.arraycopy(Machine.mainMemory,
+			    entry.physicalPage * Machine.PageSize,
+			    Machine.mainMemory, ppn * Machine.PageSize,
+			    Machine.PageSize);
+		    Debug.println('a', "Copied shared physical page "
+			    + entry.physicalPage + " to " + ppn
+			    + " for virtual page " + vpn);
+		    int shared = entry.physicalPage;
+		    entry.physicalPage = ppn;
+		    entry.dirty = true;
+		    entry.readOnly = false;
+		    if(vpn < imagePages)
+			pmm.map(ppn, this, vpn);
+		    pmm.freePage(shared, this);
+		}
 		entry.dirty = true;
 		entry.readOnly = false;
 		break;
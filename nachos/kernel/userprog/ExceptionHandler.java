@@ -10,7 +10,6 @@ import nachos.machine.MIPS;
 import nachos.machine.Machine;
 import nachos.machine.MachineException;
 import nachos.machine.NachosThread;
-import nachos.machine.TranslationEntry;
 import nachos.kernel.Nachos;
 import nachos.kernel.userprog.Syscall;
 
@@ -94,9 +93,7 @@ public class ExceptionHandler implements nachos.machine.ExceptionHandler {
 		len = CPU.readRegister(5);
 		buf = new byte[len];
 		int read = Syscall.read(buf, len, CPU.readRegister(6));
-		for(int i = 0; i < len; i++) {
-		    Machine.mainMemory[ptr++] = buf[i];
-		}
+		writeMemory(ptr, len, buf);
 		CPU.writeRegister(2, read);
 		break;
 	    case Syscall.SC_Sleep:
@@ -120,6 +117,27 @@ public class ExceptionHandler implements nachos.machine.ExceptionHandler {
 	    case Syscall.SC_Munmap:
 		Syscall.Munmap();
 		break;
+	    case Syscall.SC_SetAffinity:
+		CPU.writeRegister(2, Syscall.setAffinity(CPU.readRegister(4)));
+		break;
+	    case Syscall.SC_SetWeight:
+		CPU.writeRegister(2, Syscall.setWeight(CPU.readRegister(4)));
+		break;
+	    case Syscall.SC_SetRealTime:
+		CPU.writeRegister(2, Syscall.setRealTime(CPU.readRegister(4),
+			CPU.readRegister(5), CPU.readRegister(6)));
+		break;
+	    case Syscall.SC_WaitNextPeriod:
+		CPU.writeRegister(2, Syscall.waitNextPeriod());
+		break;
+	    case Syscall.SC_FutexWait:
+		CPU.writeRegister(2, Syscall.futexWait(CPU.readRegister(4),
+			CPU.readRegister(5), CPU.readRegister(6)));
+		break;
+	    case Syscall.SC_FutexWake:
+		CPU.writeRegister(2, Syscall.futexWake(CPU.readRegister(4),
+			CPU.readRegister(5)));
+		break;
 	    }
 
 	    // Update the program counter to point to the next instruction
@@ -150,31 +168,65 @@ public class ExceptionHandler implements nachos.machine.ExceptionHandler {
 
     }
     
-    protected static TranslationEntry getEntry(int vPage, TranslationEntry[] entries) {
+    /**
+     * Copy bytes out of the current thread's user memory, a page at a time,
+     * since consecutive virtual pages need not be consecutive in physical
+     * memory.  Each page is pinned while it is copied, so that it cannot be
+     * evicted and its frame given to another process meanwhile.
+     *
+     * @param ptr  The virtual address to copy from.
+     * @param len  The number of bytes.
+     * @param buf  The buffer to copy into.
+     */
+    protected static void readMemory(int ptr, int len, byte[] buf) {
+	AddrSpace space = ((UserThread)NachosThread.currentThread()).space;
 	PhysicalMemoryManager pmm = PhysicalMemoryManager.getInstance();
-	if (vPage < 0 || vPage >= pmm.getMaxPages())
-		return null;
-	TranslationEntry result = entries[vPage];
-	if (result == null)
-	    return null;
-	int[] physicalPages = pmm.getPages();
-	if(result.physicalPage < 0)
-	    return null;
-	if(physicalPages[result.physicalPage] == 0)
-	    return null;
-	return result;
+	for (int done = 0, chunk; done < len; done += chunk) {
+	    int vAddress = ptr + done;
+	    int offset = vAddress % Machine.PageSize;
+	    chunk = Math.min(len - done, Machine.PageSize - offset);
+	    int frame = pmm.pin(space, vAddress / Machine.PageSize);
+	    if(frame < 0)
+		return;
+	    System.arraycopy(Machine.mainMemory,
+		    frame * Machine.PageSize + offset, buf, done, chunk);
+	    pmm.unpin(frame);
+	}
     }
-    
-    protected static void readMemory(int ptr, int len, byte[] buf) {
-	int vpn = ptr / Machine.PageSize;
+
+    /**
+     * Copy bytes into the current thread's user memory, a page at a time,
+     * pinning each page while it is copied.
+     *
+     * @param ptr  The virtual address to copy to.
+     * @param len  The number of bytes.
+     * @param buf  The buffer to copy from.
+     */
+    protected static void writeMemory(int ptr, int len, byte[] buf) {
 	AddrSpace space = ((UserThread)NachosThread.currentThread()).space;
-	TranslationEntry entry = getEntry(vpn, space.getPageTable());
-	if(null == entry)
-	    return;
-	int ppn = entry.physicalPage;
-	int pAddress = ppn * Machine.PageSize;
-	int offset = ptr % Machine.PageSize;
-	int source = pAddress + offset;
-	System.arraycopy(Machine.mainMemory, source, buf, 0, len);
+	PhysicalMemoryManager pmm = PhysicalMemoryManager.getInstance();
+	for (int done = 0, chunk; done < len; done += chunk) {
+	    int vAddress = ptr + done;
+	    int vpn = vAddress / Machine.PageSize;
+	    int offset = vAddress % Machine.PageSize;
+	    chunk = Math.min(len - done, Machine.PageSize - offset);
+	    int frame = pmm.pin(space, vpn);
+	    if(frame < 0)
+		return;
+	    if(space.getPageTable()[vpn].readOnly) {
+		// Copy on write first, which moves the page to a new frame.
+		pmm.unpin(frame);
+		space.handleReadOnlyException(vAddress);
+		frame = pmm.pin(space, vpn);
+		if(frame < 0)
+		    return;
+	    }
+	    System.arraycopy(buf, done, Machine.mainMemory,
+		    frame * Machine.PageSize + offset, chunk);
+	    // Marked dirty after the copy, in case the pageout daemon cleaned
+	    // the page while it was being copied.
+	    space.getPageTable()[vpn].dirty = true;
+	    pmm.unpin(frame);
+	}
     }
 }
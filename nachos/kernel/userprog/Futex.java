@@ -0,0 +1,248 @@
+package nachos.kernel.userprog;
+
+import java.util.HashMap;
+
+import nachos.Debug;
+import nachos.kernel.threads.Semaphore;
+import nachos.kernel.threads.SpinLock;
+import nachos.machine.CPU;
+import nachos.machine.Machine;
+import nachos.util.RemovableQueue;
+
+/**
+ * Kernel side of "fast user-space mutexes" (futexes).  A user program keeps
+ * the state of a lock, or of any other synchronization object, in an
+ * ordinary word of its memory, and changes it with ordinary instructions
+ * while nobody has to wait.  Only when a thread has to wait, or has to wake
+ * a waiting thread, does it trap to the kernel:
+ *
+ *	wait -- if the word still holds the value the caller last saw,
+ *		block until woken (or until a timeout expires).
+ *
+ *	wake -- wake up to a given number of threads waiting on the word.
+ *
+ * The check of the word in wait() and the queueing of the caller happen
+ * under the same lock that wake() takes, so a wake() that follows a change
+ * of the word cannot be lost.
+ *
+ * Waiting threads are kept in a hash table keyed by the physical address of
+ * the word, found through the caller's page table, so that processes that
+ * share a page can synchronize through it whatever its virtual address is.
+ * The table is split into buckets, each with its own spin lock, so that
+ * futexes in different buckets do not contend.  A waiter whose timeout
+ * expires is removed from its queue in constant time.
+ */
+public class Futex {
+
+    /** Returned by wait() when the thread was woken by wake(). */
+    public static final int WOKEN = 0;
+
+    /** Returned by wait() when the word did not hold the expected value. */
+    public static final int VALUE_CHANGED = -1;
+
+    /** Returned by wait() when the timeout expired. */
+    public static final int TIMED_OUT = -2;
+
+    /** Returned when the address is not a mapped, aligned user word. */
+    public static final int BAD_ADDRESS = -3;
+
+    /** Number of buckets in the hash table. */
+    private static final int NUM_BUCKETS = 64;
+
+    /** The buckets of the hash table. */
+    private static final Bucket[] buckets = new Bucket[NUM_BUCKETS];
+
+    static {
+	for (int i = 0; i < NUM_BUCKETS; i++)
+	    buckets[i] = new Bucket(i);
+    }
+
+    /**
+     * One bucket of the hash table: the threads waiting on the words whose
+     * addresses hash to it, in a FIFO queue for each word.
+     */
+    private static class Bucket {
+
+	/** Spin lock protecting the queues. */
+	final SpinLock lock;
+
+	/** Queue of waiters for each physical address that has any. */
+	final HashMap<Integer, RemovableQueue<Waiter>> queues =
+	    new HashMap<Integer, RemovableQueue<Waiter>>();
+
+	/**
+	 * Initialize an empty bucket.
+	 *
+	 * @param index  The index of the bucket, for the name of its lock.
+	 */
+	Bucket(int index) {
+	    lock = new SpinLock("futex bucket " + index);
+	}
+    }
+
+    /**
+     * A thread waiting on a futex.
+     */
+    private static class Waiter {
+
+	/** Semaphore on which the thread blocks, V()ed by wake(). */
+	final Semaphore wakeup = new Semaphore("futex wakeup", 0);
+
+	/** The waiter's entry in its queue. */
+	RemovableQueue.Entry<Waiter> entry;
+    }
+
+    /**
+     * Find the physical address of a word of user memory, and pin its page,
+     * so that the page is not evicted and reloaded elsewhere while threads
+     * wait on the word, and its frame is not given to another process.  The
+     * caller must undo this with unpin() once it no longer uses the address.
+     *
+     * @param space  The address space in which to look up the address.
+     * @param vAddress  The virtual address of the word.
+     * @return  The physical address of the word, or BAD_ADDRESS if it is
+     * not aligned or its page is not mapped.
+     */
+    public static int translate(AddrSpace space, int vAddress) {
+	if (vAddress < 0 || vAddress % 4 != 0)
+	    return BAD_ADDRESS;
+	int frame = PhysicalMemoryManager.getInstance()
+		.pin(space, vAddress / Machine.PageSize);
+	if (frame < 0)
+	    return BAD_ADDRESS;
+	return frame * Machine.PageSize + vAddress % Machine.PageSize;
+    }
+
+    /**
+     * Unpin the page of a physical address returned by translate().
+     *
+     * @param pAddress  The physical address.
+     */
+    public static void unpin(int pAddress) {
+	PhysicalMemoryManager.getInstance().unpin(pAddress / Machine.PageSize);
+    }
+
+    /**
+     * Wait on the word at a physical address, if it holds the expected
+     * value.
+     *
+     * @param pAddress  The physical address of the word.
+     * @param expected  The value the caller last saw in the word.
+     * @param ticks  The longest time to wait, in ticks, or 0 to wait until
+     * woken.
+     * @return  WOKEN, VALUE_CHANGED or TIMED_OUT.
+     */
+    public static int wait(int pAddress, int expected, int ticks) {
+	Bucket bucket = bucketFor(pAddress);
+	Waiter waiter = new Waiter();
+
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	bucket.lock.acquire();
+	if (readWord(pAddress) != expected) {
+	    bucket.lock.release();
+	    CPU.setLevel(oldLevel);
+	    return VALUE_CHANGED;
+	}
+	RemovableQueue<Waiter> queue = bucket.queues.get(pAddress);
+	if (queue == null) {
+	    queue = new RemovableQueue<Waiter>();
+	    bucket.queues.put(pAddress, queue);
+	}
+	waiter.entry = queue.add(waiter);
+	bucket.lock.release();
+	CPU.setLevel(oldLevel);
+
+	Debug.printf('s', "Waiting on futex at 0x%x\n", pAddress);
+	if (ticks <= 0) {
+	    waiter.wakeup.P();
+	    return WOKEN;
+	}
+	if (waiter.wakeup.P(ticks))
+	    return WOKEN;
+
+	// Timed out: leave the queue, unless a wake() took us out meanwhile.
+	oldLevel = CPU.setLevel(CPU.IntOff);
+	bucket.lock.acquire();
+	boolean removed = queue.remove(waiter.entry);
+	if (removed && queue.isEmpty())
+	    bucket.queues.remove(pAddress);
+	bucket.lock.release();
+	CPU.setLevel(oldLevel);
+	if (!removed) {
+	    waiter.wakeup.P();		// consume the wake() that raced with us
+	    return WOKEN;
+	}
+	return TIMED_OUT;
+    }
+
+    /**
+     * Wake threads waiting on the word at a physical address, in the order
+     * in which they started waiting.
+     *
+     * @param pAddress  The physical address of the word.
+     * @param count  The largest number of threads to wake.
+     * @return  The number of threads woken.
+     */
+    public static int wake(int pAddress, int count) {
+	Bucket bucket = bucketFor(pAddress);
+	int woken = 0;
+
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	bucket.lock.acquire();
+	RemovableQueue<Waiter> queue = bucket.queues.get(pAddress);
+	if (queue != null) {
+	    Waiter waiter;
+	    while (woken < count && (waiter = queue.poll()) != null) {
+		waiter.wakeup.V();
+		woken++;
+	    }
+	    if (queue.isEmpty())
+		bucket.queues.remove(pAddress);
+	}
+	bucket.lock.release();
+	CPU.setLevel(oldLevel);
+
+	Debug.printf('s', "Woke %d threads waiting on futex at 0x%x\n",
+		woken, pAddress);
+	return woken;
+    }
+
+    /**
+     * Find the bucket for a physical address.
+     *
+     * @param pAddress  The physical address.
+     * @return  The bucket.
+     */
+    private static Bucket bucketFor(int pAddress) {
+	return buckets[(pAddress >>> 2) % NUM_BUCKETS];
+    }
+
+    /**
+     * Read a word of physical memory, which the simulated MIPS stores
+     * least significant byte first.
+     *
+     * @param pAddress  The physical address of the word.
+     * @return  The word.
+     */
+    public static int readWord(int pAddress) {
+	byte[] memory = Machine.mainMemory;
+	return (memory[pAddress] & 0xff)
+		| (memory[pAddress + 1] & 0xff) << 8
+		| (memory[pAddress + 2] & 0xff) << 16
+		| memory[pAddress + 3] << 24;
+    }
+
+    /**
+     * Write a word of physical memory, least significant byte first.
+     *
+     * @param pAddress  The physical address of the word.
+     * @param value  The value to write.
+     */
+    public static void writeWord(int pAddress, int value) {
+	byte[] memory = Machine.mainMemory;
+	memory[pAddress] = (byte) value;
+	memory[pAddress + 1] = (byte) (value >> 8);
+	memory[pAddress + 2] = (byte) (value >> 16);
+	memory[pAddress + 3] = (byte) (value >> 24);
+    }
+}
@@ -1,19 +1,98 @@
 package nachos.kernel.userprog;
 
-import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.HashMap;
 
+import nachos.Debug;
+import nachos.kernel.Nachos;
+import nachos.kernel.threads.ReadWriteLock;
+import nachos.kernel.threads.SpinLock;
+import nachos.machine.CPU;
 import nachos.machine.Machine;
+import nachos.machine.NachosThread;
 import nachos.machine.TranslationEntry;
+import nachos.util.FIFOQueue;
 
+/**
+ * Keeps track of which physical page frames are in use, and of the
+ * address space of each process.
+ *
+ * The free frames are kept on a stack, so that allocating or freeing a
+ * frame takes constant time however large main memory is.  The array of
+ * page flags is kept alongside, so that whether a frame is in use can
+ * still be looked up directly, and a frame freed twice is not pushed
+ * twice.  Since pages are loaded as they are first touched, frames are
+ * only ever wanted one at a time, so there is no call to take several.
+ *
+ * A frame can be shared by several address spaces, as fork() does with
+ * copy-on-write.  Each frame keeps a count of the references to it besides
+ * the first, and is only freed when the last of them is released.
+ *
+ * When no frame is free, getPage() takes one from an address space, using
+ * the WSClock policy.  A frame table records which address spaces map each
+ * frame holding a page of a program, and at which virtual page.  A clock
+ * hand sweeps over the frames: a page used since the last sweep has its
+ * use bit cleared and is passed over; an unused clean page is taken, since
+ * it can be read back from the executable or from the swap area; an unused
+ * dirty page is handed to the pageout daemon, a kernel thread that writes
+ * it to the swap area in the background, and is passed over for now.
+ * Only if every candidate is being written back does the caller wait.
+ * Frames shared by several address spaces, mmap'd pages, and frames the
+ * kernel has pinned while it copies to or from them, or while threads wait
+ * on a futex in them, are never taken.  The swap area and the daemon are
+ * created when memory first runs out, if the machine has a swap disk (see
+ * the -swap option).
+ */
 public class PhysicalMemoryManager {
 
     static PhysicalMemoryManager pmm = null;
 
+    /** For each frame, 1 if it is in use and 0 if it is free. */
     private int[] pages;
 
+    /** The free frames; the top of the stack is freeFrames[freeCount - 1]. */
+    private int[] freeFrames;
+
+    /** Number of free frames. */
+    private int freeCount;
+
+    /** Number of references to each frame besides the first. */
+    private int[] sharers;
+
+    /** The address spaces and virtual page held by each frame. */
+    private Frame[] frameTable;
+
+    /** Next frame the clock hand will look at. */
+    private int clockHand;
+
+    /** Frames handed to the pageout daemon and not yet written back. */
+    private final FIFOQueue<Integer> dirtyFrames = new FIFOQueue<Integer>();
+
+    /** Number of frames being written back. */
+    private int cleaning;
+
+    /** Threads waiting for a frame to be written back. */
+    private final FIFOQueue<NachosThread> cleanWaiters =
+	    new FIFOQueue<NachosThread>();
+
+    /** The pageout daemon, if it is sleeping for lack of work. */
+    private NachosThread idleDaemon;
+
+    /** Number of pages taken from address spaces to reuse their frames. */
+    private int evictions;
+
+    /** The swap area, or null if it has not been created. */
+    private volatile SwapSpace swap;
+
+    /** Spin lock protecting the free frames, sharers and the frame table. */
+    private final SpinLock frameLock = new SpinLock("physical frame lock");
+
     private HashMap<String, AddrSpace> spaceIdTracker = new HashMap<String, AddrSpace>();
 
+    /** Reader-writer lock for spaceIdTracker, which is mostly looked up. */
+    private final ReadWriteLock spaceIdLock =
+	    new ReadWriteLock("space id tracker lock");
+
     private int maxPages;
 
     /**
@@ -28,31 +107,237 @@ public class PhysicalMemoryManager {
     }
 
     /**
-     * Initializes page tracker.
+     * Initializes page tracker, with every frame free.
      */
     public void setPages() {
 	int totalPages = Machine.mainMemory.length / Machine.PageSize;
+	if (Nachos.options.USER_FRAMES > 0)
+	    totalPages = Math.min(totalPages, Nachos.options.USER_FRAMES);
 	maxPages = totalPages;
 	pages = new int[totalPages];
-	Arrays.fill(pages, 0, totalPages, 0);
+	freeFrames = new int[totalPages];
+	for (int i = 0; i < totalPages; i++)
+	    freeFrames[i] = totalPages - 1 - i;	// lowest frames first
+	freeCount = totalPages;
+	sharers = new int[totalPages];
+	frameTable = new Frame[totalPages];
+	for (int i = 0; i < totalPages; i++)
+	    frameTable[i] = new Frame();
     }
 
     /**
-     * Returns unused page
+     * Returns unused page, taking one from an address space if none is
+     * free and swapping is enabled.
      * 
-     * @return unused page
+     * @return unused page, or -1 if there is none
      */
     public int getPage() {
-	int i = 0;
-	for (; i < pages.length; i++) {
-	    if (pages[i] == 0) {
-		pages[i] = 1;
-		return i;
-	    }
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	frameLock.acquire();
+	int frame = takeFree();
+	frameLock.release();
+	CPU.setLevel(oldLevel);
+	if (frame < 0 && getSwapSpace() != null)
+	    frame = evict();
+	return frame;
+    }
+
+    /**
+     * Releases a reference to a page, returning it to the unused pages if
+     * it was the last one.  A page that is already unused is left alone.
+     * 
+     * @param frame
+     *            The page number
+     */
+    public void freePage(int frame) {
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	frameLock.acquire();
+	release(frame);
+	frameLock.release();
+	CPU.setLevel(oldLevel);
+    }
+
+    /**
+     * Records that a page holds a virtual page of an address space, so that
+     * it may be taken back by getPage() when memory runs out.  Called once
+     * the page has been loaded and its page table entry set.
+     * 
+     * @param frame
+     *            The page number
+     * @param space
+     *            The address space
+     * @param vpn
+     *            The virtual page
+     */
+    public void map(int frame, AddrSpace space, int vpn) {
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	frameLock.acquire();
+	frameTable[frame].spaces.add(space);
+	frameTable[frame].vpn = vpn;
+	frameLock.release();
+	CPU.setLevel(oldLevel);
+    }
+
+    /**
+     * Releases an address space's reference to a page, returning the page
+     * to the unused pages if it was the last one.
+     * 
+     * @param frame
+     *            The page number
+     * @param space
+     *            The address space
+     */
+    public void freePage(int frame, AddrSpace space) {
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	frameLock.acquire();
+	frameTable[frame].spaces.remove(space);
+	release(frame);
+	frameLock.release();
+	CPU.setLevel(oldLevel);
+    }
+
+    /**
+     * Pins the page holding a virtual page of an address space, loading it
+     * first if it is not in memory, so that it is not taken by getPage()
+     * while the kernel uses it.  Each pin must be undone by unpin().
+     * 
+     * @param space
+     *            The address space
+     * @param vpn
+     *            The virtual page
+     * @return the page number, or -1 if the virtual page is not mapped or
+     *         could not be loaded
+     */
+    public int pin(AddrSpace space, int vpn) {
+	while (space.faultIn(vpn)) {
+	    int oldLevel = CPU.setLevel(CPU.IntOff);
+	    frameLock.acquire();
+	    TranslationEntry entry = space.getPageTable()[vpn];
+	    int frame = entry.valid ? entry.physicalPage : -1;
+	    if (frame >= 0)
+		frameTable[frame].pins++;
+	    frameLock.release();
+	    CPU.setLevel(oldLevel);
+	    if (frame >= 0)
+		return frame;
+	    // Taken again before it could be pinned; load it again.
 	}
 	return -1;
     }
 
+    /**
+     * Undoes a pin() of a page.
+     * 
+     * @param frame
+     *            The page number
+     */
+    public void unpin(int frame) {
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	frameLock.acquire();
+	frameTable[frame].pins--;
+	frameLock.release();
+	CPU.setLevel(oldLevel);
+    }
+
+    /**
+     * Shares the pages of an address space, in memory and in the swap
+     * area, with a copy of it made by fork().  The pages in memory are
+     * mapped read-only in both, so that they are copied on write.
+     * 
+     * @param parent
+     *            The address space
+     * @param child
+     *            The copy, whose page table has one entry for each of the
+     *            parent's
+     */
+    public void shareSpace(AddrSpace parent, AddrSpace child) {
+	TranslationEntry[] from = parent.getPageTable();
+	TranslationEntry[] to = child.getPageTable();
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	frameLock.acquire();
+	for (int i = 0; i < from.length; i++) {
+	    to[i].physicalPage = from[i].physicalPage;
+	    to[i].valid = from[i].valid;
+	    to[i].use = from[i].use;
+	    to[i].dirty = from[i].dirty;
+	    if (from[i].physicalPage >= 0) {
+		Frame frame = frameTable[from[i].physicalPage];
+		if (!frame.spaces.isEmpty())
+		    frame.spaces.add(child);
+		sharers[from[i].physicalPage]++;
+		from[i].readOnly = true;
+	    }
+	    to[i].readOnly = from[i].readOnly;
+	}
+	if (parent.swapSlots != null) {
+	    child.swapSlots = parent.swapSlots.clone();
+	    for (int slot : child.swapSlots) {
+		if (slot >= 0)
+		    swap.share(slot);
+	    }
+	}
+	frameLock.release();
+	CPU.setLevel(oldLevel);
+    }
+
+    /**
+     * Tells whether a page is shared by more than one address space.
+     * 
+     * @param frame
+     *            The page number
+     * @return true if the page has more than one reference
+     */
+    public boolean isShared(int frame) {
+	return frame >= 0 && frame < maxPages && sharers[frame] > 0;
+    }
+
+    /**
+     * Pops a page off the stack of unused pages.  Called with the frame
+     * lock held.
+     * 
+     * @return the page, or -1 if there is none
+     */
+    private int takeFree() {
+	if (freeCount == 0)
+	    return -1;
+	int frame = freeFrames[--freeCount];
+	pages[frame] = 1;
+	return frame;
+    }
+
+    /**
+     * Releases a reference to a page, pushing it on the stack of unused
+     * pages if it was the last one and the page is not already there.
+     * Called with the frame lock held.
+     * 
+     * @param frame
+     *            The page number
+     */
+    private void release(int frame) {
+	if (sharers[frame] > 0) {
+	    sharers[frame]--;
+	    return;
+	}
+	if (pages[frame] == 0) {
+	    Debug.println('a', "Physical page " + frame + " freed twice");
+	    return;
+	}
+	frameTable[frame].spaces.clear();
+	pages[frame] = 0;
+	freeFrames[freeCount++] = frame;
+    }
+
+    /**
+     * Tells whether a page is in use.
+     * 
+     * @param frame
+     *            The page number
+     * @return true if the page has been allocated and not freed
+     */
+    public boolean isAllocated(int frame) {
+	return frame >= 0 && frame < maxPages && pages[frame] == 1;
+    }
+
     /**
      * Keeps track of the processes and the corresponding address spaces
      * 
@@ -62,7 +347,9 @@ public class PhysicalMemoryManager {
      *            Address space of the process
      */
     public void mapProcessIdToAddressSpace(String pId, AddrSpace space) {
+	spaceIdLock.acquireWrite();
 	spaceIdTracker.put(pId, space);
+	spaceIdLock.releaseWrite();
     }
 
     /**
@@ -73,7 +360,10 @@ public class PhysicalMemoryManager {
      * @return address space
      */
     public AddrSpace getAddressSpaceFromProcessId(String pId) {
-	return spaceIdTracker.get(pId);
+	spaceIdLock.acquireRead();
+	AddrSpace space = spaceIdTracker.get(pId);
+	spaceIdLock.releaseRead();
+	return space;
     }
 
     /**
@@ -86,40 +376,297 @@ public class PhysicalMemoryManager {
 	return maxPages;
     }
 
-    /**
-     * Returns the Physical page tracker list
-     * 
-     * @return physical page tracker
-     */
-    public int[] getPages() {
-	return pages;
-    }
-
     /**
      * Destroys the book keeping data such as Page tracker, etc. Needs to be
      * called when any process is being destroyed.
      */
     public void destroy() {
 	pages = null;
+	sharers = null;
 	spaceIdTracker = null;
 	pmm = null;
     }
 
-    public void destroySpace(TranslationEntry[] pageTable) {
+    /**
+     * Releases all the pages of an address space, in memory and in the
+     * swap area, freeing those it did not share with another.
+     * 
+     * @param space
+     *            The address space
+     */
+    public void destroySpace(AddrSpace space) {
+	TranslationEntry[] pageTable = space.getPageTable();
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	frameLock.acquire();
 	for (int i = 0; i < pageTable.length; i++) {
 	    if(pageTable[i].physicalPage < 0)
 	    	continue;
-	    pages[pageTable[i].physicalPage] = 0;
+	    frameTable[pageTable[i].physicalPage].spaces.remove(space);
+	    release(pageTable[i].physicalPage);
+	}
+	if (space.swapSlots != null) {
+	    for (int slot : space.swapSlots) {
+		if (slot >= 0)
+		    swap.free(slot);
+	    }
+	    space.swapSlots = null;
 	}
+	frameLock.release();
+	CPU.setLevel(oldLevel);
     }
 
+    /**
+     * Returns the number of pages in use
+     * 
+     * @return number of pages in use
+     */
     public int getAvailablePages() {
-	int counter = 0;
-	for (int i = 0; i < pages.length; i++) {
-	    if (pages[i] == 1) {
-		++counter;
+	return getUsedPages();
+    }
+
+    /**
+     * Returns the number of pages in use
+     * 
+     * @return number of pages in use
+     */
+    public int getUsedPages() {
+	return maxPages - freeCount;
+    }
+
+    /**
+     * Returns the number of unused pages
+     * 
+     * @return number of unused pages
+     */
+    public int getFreePages() {
+	return freeCount;
+    }
+
+    /**
+     * Describes the use of the pages, and the paging to and from the swap
+     * area if there has been any
+     * 
+     * @return one or two lines of statistics
+     */
+    public String getStatistics() {
+	String statistics = "Physical frames: " + getFreePages() + " of "
+		+ maxPages + " free";
+	String paging = getPagingStatistics();
+	return paging == null ? statistics : statistics + "\n" + paging;
+    }
+
+    /**
+     * Describes the use of the swap area
+     * 
+     * @return a line of statistics, or null if nothing has been swapped
+     */
+    private String getPagingStatistics() {
+	if (swap == null)
+	    return null;
+	return swap.getStatistics() + ", evictions " + evictions;
+    }
+
+    /**
+     * Returns the swap area, creating it, and starting the pageout daemon,
+     * the first time it is needed.
+     * 
+     * @return the swap area, or null if there is no swap disk
+     */
+    SwapSpace getSwapSpace() {
+	if (swap == null && Nachos.swapDriver != null) {
+	    int oldLevel = CPU.setLevel(CPU.IntOff);
+	    frameLock.acquire();
+	    if (swap == null) {
+		swap = new SwapSpace(Nachos.swapDriver,
+			Nachos.options.SWAP_PAGES);
+		Nachos.scheduler.readyToRun
+		    (new NachosThread("pageout daemon", new Runnable() {
+			public void run() {
+			    pageout();
+			}
+		    }));
 	    }
+	    frameLock.release();
+	    CPU.setLevel(oldLevel);
+	}
+	return swap;
+    }
+
+    /**
+     * Takes a page from an address space, because no page is free.  If the
+     * clock hand finds only dirty pages, waits for the pageout daemon to
+     * write one back.
+     * 
+     * @return the page, or -1 if no page can be taken
+     */
+    private int evict() {
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	frameLock.acquire();
+	int frame;
+	while ((frame = takeFree()) < 0 && (frame = sweep()) < 0 && cleaning > 0) {
+	    cleanWaiters.offer(NachosThread.currentThread());
+	    Nachos.scheduler.sleepThread(frameLock);
+	    frameLock.acquire();
 	}
-	return counter;
+	frameLock.release();
+	CPU.setLevel(oldLevel);
+	return frame;
+    }
+
+    /**
+     * Sweeps the clock hand over the frames, at most twice around, for a
+     * clean page that has not been used since the hand last passed it, and
+     * unmaps it.  Dirty pages passed over are handed to the pageout
+     * daemon.  Called with the frame lock held.
+     * 
+     * @return the page, or -1 if none was found
+     */
+    private int sweep() {
+	for (int i = 0; i < 2 * maxPages; i++) {
+	    int frame = clockHand;
+	    clockHand = (clockHand + 1) % maxPages;
+	    Frame owner = frameTable[frame];
+	    if (owner.spaces.size() != 1 || owner.cleaning
+		    || owner.pins > 0 || sharers[frame] > 0)
+		continue;
+	    TranslationEntry entry =
+		    owner.spaces.get(0).getPageTable()[owner.vpn];
+	    if (entry.use) {
+		entry.use = false;
+		continue;
+	    }
+	    if (!entry.dirty) {
+		entry.valid = false;
+		if (!entry.dirty) {		// not written meanwhile
+		    Debug.println('a', "Evicting virtual page " + owner.vpn
+			    + " from physical page " + frame);
+		    entry.physicalPage = -1;
+		    owner.spaces.clear();
+		    evictions++;
+		    return frame;
+		}
+		entry.valid = true;
+	    }
+	    if (!canClean(owner.spaces.get(0), owner.vpn))
+		continue;
+	    owner.cleaning = true;
+	    cleaning++;
+	    dirtyFrames.offer(frame);
+	    if (idleDaemon != null) {
+		Nachos.scheduler.readyToRun(idleDaemon);
+		idleDaemon = null;
+	    }
+	}
+	return -1;
+    }
+
+    /**
+     * Body of the pageout daemon: write back the dirty pages handed to it,
+     * one at a time, to the swap slot of their virtual page.  The page stays
+     * mapped while it is written; it is marked clean first, so that if it
+     * is written to again meanwhile, it will be written back again.
+     */
+    private void pageout() {
+	byte[] page = new byte[Machine.PageSize];
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	frameLock.acquire();
+	while (true) {
+	    Integer frame;
+	    while ((frame = dirtyFrames.poll()) == null) {
+		idleDaemon = NachosThread.currentThread();
+		Nachos.scheduler.sleepThread(frameLock);
+		frameLock.acquire();
+	    }
+	    Frame owner = frameTable[frame];
+	    int slot = -1;
+	    if (owner.spaces.size() == 1) {
+		AddrSpace space = owner.spaces.get(0);
+		TranslationEntry entry = space.getPageTable()[owner.vpn];
+		slot = slotFor(space, owner.vpn);
+		if (slot >= 0) {
+		    swap.share(slot);	// keep it while writing
+		    entry.dirty = false;
+		    System.arraycopy(Machine.mainMemory,
+			    frame * Machine.PageSize, page, 0,
+			    Machine.PageSize);
+		}
+	    }
+	    frameLock.release();
+	    CPU.setLevel(oldLevel);
+
+	    if (slot >= 0) {
+		swap.write(slot, page);
+		swap.free(slot);
+	    }
+
+	    CPU.setLevel(CPU.IntOff);
+	    frameLock.acquire();
+	    owner.cleaning = false;
+	    cleaning--;
+	    NachosThread waiter;
+	    while ((waiter = cleanWaiters.poll()) != null)
+		Nachos.scheduler.readyToRun(waiter);
+	}
+    }
+
+    /**
+     * Tells whether there is a swap slot to write a virtual page to.
+     * Called with the frame lock held.
+     * 
+     * @param space
+     *            The address space
+     * @param vpn
+     *            The virtual page
+     * @return true if the page has a slot of its own or one is free
+     */
+    private boolean canClean(AddrSpace space, int vpn) {
+	if (space.swapSlots == null)
+	    return false;
+	int slot = space.swapSlots[vpn];
+	return slot >= 0 && !swap.isShared(slot) || swap.getFreeCount() > 0;
+    }
+
+    /**
+     * Finds the swap slot to write a virtual page to: the one it already
+     * has, unless that is shared with another address space, or else a new
+     * one.  Called with the frame lock held.
+     * 
+     * @param space
+     *            The address space
+     * @param vpn
+     *            The virtual page
+     * @return the slot, or -1 if the swap area is full
+     */
+    private int slotFor(AddrSpace space, int vpn) {
+	if (space.swapSlots == null)
+	    return -1;
+	int slot = space.swapSlots[vpn];
+	if (slot >= 0 && !swap.isShared(slot))
+	    return slot;
+	int fresh = swap.allocate();
+	if (fresh < 0)
+	    return -1;
+	if (slot >= 0)
+	    swap.free(slot);
+	space.swapSlots[vpn] = fresh;
+	return fresh;
+    }
+
+    /**
+     * The address spaces mapping a frame that holds a page of a program.
+     */
+    private static class Frame {
+
+	/** The address spaces mapping the frame. */
+	final ArrayList<AddrSpace> spaces = new ArrayList<AddrSpace>(1);
+
+	/** The virtual page the frame holds. */
+	int vpn;
+
+	/** Is the pageout daemon writing the frame back? */
+	boolean cleaning;
+
+	/** Number of times the frame is pinned; it is not taken while > 0. */
+	int pins;
     }
 }
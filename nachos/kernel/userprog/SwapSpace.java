@@ -0,0 +1,177 @@
+package nachos.kernel.userprog;
+
+import nachos.Debug;
+import nachos.kernel.devices.DiskDriver;
+import nachos.kernel.threads.SpinLock;
+import nachos.machine.CPU;
+import nachos.machine.Machine;
+
+/**
+ * The swap area: a disk of its own, divided into slots of one page each,
+ * which holds the pages of user programs that have been written out of
+ * main memory.  A page is the size of a disk sector, so each slot is one
+ * sector, and a page is read or written with a single disk request.  The
+ * file system is not used, because it limits files to a few sectors.
+ *
+ * Like the physical frames, a slot can be shared by the address spaces of
+ * a process and its forked children, so each slot keeps a count of the
+ * references to it besides the first, and is only freed when the last of
+ * them is released.  Free slots are kept on a stack.
+ */
+class SwapSpace {
+
+    /** The swap disk. */
+    private final DiskDriver disk;
+
+    /** Number of slots. */
+    private final int size;
+
+    /** Stack of free slots. */
+    private final int[] freeSlots;
+
+    /** Number of free slots, which are the bottom of freeSlots. */
+    private int freeCount;
+
+    /** Number of references to each slot besides the first. */
+    private final int[] sharers;
+
+    /** Number of pages read from the swap file. */
+    private int pageIns;
+
+    /** Number of pages written to the swap file. */
+    private int pageOuts;
+
+    /** Spin lock protecting the slots and the counters. */
+    private final SpinLock slotLock = new SpinLock("swap slot lock");
+
+    /**
+     * Initialize a swap area with every slot free.
+     *
+     * @param disk  The swap disk.
+     * @param size  The number of slots, which is cut down to the number of
+     * sectors of the disk.
+     */
+    SwapSpace(DiskDriver disk, int size) {
+	Debug.ASSERT(disk.getSectorSize() == Machine.PageSize,
+		"SwapSpace: disk sectors are not the size of pages");
+	size = Math.min(size, disk.getNumSectors());
+	this.disk = disk;
+	this.size = size;
+	freeSlots = new int[size];
+	for (int i = 0; i < size; i++)
+	    freeSlots[i] = size - 1 - i;
+	freeCount = size;
+	sharers = new int[size];
+	Debug.println('a', "Swap area of " + size + " pages");
+    }
+
+    /**
+     * Take a free slot.
+     *
+     * @return the slot, or -1 if the swap area is full.
+     */
+    int allocate() {
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	slotLock.acquire();
+	int slot = freeCount == 0 ? -1 : freeSlots[--freeCount];
+	slotLock.release();
+	CPU.setLevel(oldLevel);
+	return slot;
+    }
+
+    /**
+     * Add a reference to a slot in use.
+     *
+     * @param slot  The slot.
+     */
+    void share(int slot) {
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	slotLock.acquire();
+	sharers[slot]++;
+	slotLock.release();
+	CPU.setLevel(oldLevel);
+    }
+
+    /**
+     * Release a reference to a slot, freeing it if it was the last one.
+     *
+     * @param slot  The slot.
+     */
+    void free(int slot) {
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	slotLock.acquire();
+	if (sharers[slot] > 0)
+	    sharers[slot]--;
+	else
+	    freeSlots[freeCount++] = slot;
+	slotLock.release();
+	CPU.setLevel(oldLevel);
+    }
+
+    /**
+     * Is a slot shared by more than one address space?
+     *
+     * @param slot  The slot.
+     * @return true if the slot has more than one reference.
+     */
+    boolean isShared(int slot) {
+	return sharers[slot] > 0;
+    }
+
+    /**
+     * Get the number of free slots.
+     *
+     * @return the number of free slots.
+     */
+    int getFreeCount() {
+	return freeCount;
+    }
+
+    /**
+     * Read a page from a slot into main memory.
+     *
+     * @param slot  The slot.
+     * @param pAddress  The physical address of the page.
+     */
+    void read(int slot, int pAddress) {
+	disk.readSector(slot, Machine.mainMemory, pAddress);
+	count(true);
+    }
+
+    /**
+     * Write a page to a slot.
+     *
+     * @param slot  The slot.
+     * @param page  The contents of the page.
+     */
+    void write(int slot, byte[] page) {
+	disk.writeSector(slot, page, 0);
+	count(false);
+    }
+
+    /**
+     * Count a page read or written.
+     *
+     * @param in  true for a page read, false for a page written.
+     */
+    private void count(boolean in) {
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	slotLock.acquire();
+	if (in)
+	    pageIns++;
+	else
+	    pageOuts++;
+	slotLock.release();
+	CPU.setLevel(oldLevel);
+    }
+
+    /**
+     * Describe the use of the swap area.
+     *
+     * @return a line of statistics.
+     */
+    String getStatistics() {
+	return "Swap: " + (size - freeCount) + " of " + size
+		+ " pages used, page-ins " + pageIns + ", page-outs " + pageOuts;
+    }
+}
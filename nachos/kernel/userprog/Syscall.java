@@ -20,7 +20,6 @@ import nachos.machine.MIPS;
 import nachos.machine.Machine;
 import nachos.machine.NachosThread;
 import nachos.machine.Simulation;
-import nachos.machine.TranslationEntry;
 
 /**
  * Nachos system call interface. These are Nachos kernel operations that can be
@@ -89,12 +88,33 @@ public class Syscall {
     
     /** Integer code identifying the "Munmap" system call. */
     public static final int SC_Munmap = 17;
+
+    /** Integer code identifying the "SetAffinity" system call. */
+    public static final int SC_SetAffinity = 18;
+
+    /** Integer code identifying the "SetWeight" system call. */
+    public static final int SC_SetWeight = 19;
+
+    /** Integer code identifying the "SetRealTime" system call. */
+    public static final int SC_SetRealTime = 20;
+
+    /** Integer code identifying the "WaitNextPeriod" system call. */
+    public static final int SC_WaitNextPeriod = 21;
+
+    /** Integer code identifying the "FutexWait" system call. */
+    public static final int SC_FutexWait = 22;
+
+    /** Integer code identifying the "FutexWake" system call. */
+    public static final int SC_FutexWake = 23;
     /**
      * Stop Nachos, and print out performance stats.
      */
     public static void halt() {
 	Debug.println('+', "Halt test");
 	Debug.print('+', "Shutdown, initiated by user program.\n");
+	if (Debug.isEnabled('a'))
+	    Debug.println('a',
+		    PhysicalMemoryManager.getInstance().getStatistics());
 	Simulation.stop();
     }
 
@@ -131,6 +151,9 @@ public class Syscall {
 	}
 	space.handleMunmap();
 	space.destroy();
+	if (Debug.isEnabled('a'))
+	    Debug.println('a',
+		    PhysicalMemoryManager.getInstance().getStatistics());
 	
 	UserThread parentThread = thread.getParent();
 	if(parentThread != null) {
@@ -171,7 +194,12 @@ public class Syscall {
 		    @Override
 		    public void run() {
 			// execute user program
-			space.exec(executable);
+			if (space.exec(executable) == -1) {
+			    Debug.println('+', "Unable to load executable file: "
+				    + execFileName);
+			    Nachos.scheduler.finishThread();
+			    return;
+			}
 			// set the initial register values
 			space.initRegisters();
 			// load page table register
@@ -384,8 +412,17 @@ public class Syscall {
 		CPU.runUserCode();
 	    }
 	}, space);
-	thread.setParent((UserThread) NachosThread.currentThread());
-	((UserThread) NachosThread.currentThread()).setChildren(thread);
+	UserThread parent = (UserThread) NachosThread.currentThread();
+	thread.setParent(parent);
+	parent.setChildren(thread);
+	// The threads of a process form a gang, keyed by its original address
+	// space, so that they can be co-scheduled.
+	Object gang = Nachos.scheduler.getGang(parent);
+	if (gang == null) {
+	    gang = parent.space;
+	    Nachos.scheduler.setGang(parent, gang);
+	}
+	Nachos.scheduler.setGang(thread, gang);
 	Nachos.scheduler.readyToRun(thread);
 	mSemaphoreForFork.P();
 	Debug.println('+', "Main thread is exiting after fork is exited");
@@ -405,11 +442,99 @@ public class Syscall {
 	Nachos.scheduler.sleep(sleepTime);
     }
 
-    protected static TranslationEntry getEntry(int vPage,
-	    TranslationEntry[] entries) {
-	TranslationEntry result = entries[vPage];
-	if (result == null)
-	    return null;
+    /**
+     * Restrict the current thread to run only on a set of CPUs.
+     *
+     * @param mask Bit i is set if the thread may run on CPU i.  If zero,
+     * the mask is left unchanged.
+     * @return the previous mask, or 0 if the new mask names no existing CPU.
+     */
+    public static int setAffinity(int mask) {
+	NachosThread thread = NachosThread.currentThread();
+	int oldMask = (int) Nachos.scheduler.getAffinity(thread);
+	if (mask == 0)
+	    return oldMask;
+	// Sign-extend, so that -1 allows all CPUs.
+	if (!Nachos.scheduler.setAffinity(thread, mask))
+	    return 0;
+	return oldMask;
+    }
+
+    /**
+     * Set the share weight of the current thread, which determines its share
+     * of the CPU under proportional-share scheduling.
+     *
+     * @param weight The new weight.  If zero or negative, the weight is left
+     * unchanged.
+     * @return the previous weight, or 0 if the new weight is too large.
+     */
+    public static int setWeight(int weight) {
+	NachosThread thread = NachosThread.currentThread();
+	int oldWeight = Nachos.scheduler.getWeight(thread);
+	if (weight <= 0)
+	    return oldWeight;
+	if (!Nachos.scheduler.setWeight(thread, weight))
+	    return 0;
+	return oldWeight;
+    }
+
+    /**
+     * Make the current thread a periodic real-time thread, scheduled earliest
+     * deadline first, or return it to ordinary scheduling.
+     *
+     * @param period The period, in ticks, or 0 to leave the real-time class.
+     * @param budget The CPU time, in ticks, needed in each period.
+     * @param deadline The deadline, in ticks after the start of each period.
+     * @return 1 if the thread was admitted, 0 if it was rejected.
+     */
+    public static int setRealTime(int period, int budget, int deadline) {
+	return Nachos.scheduler.setRealTime(period, budget, deadline) ? 1 : 0;
+    }
+
+    /**
+     * End the current job of a real-time thread, and wait for the start of
+     * its next period.
+     *
+     * @return 1 if the job met its deadline, 0 if it missed it.
+     */
+    public static int waitNextPeriod() {
+	return Nachos.scheduler.waitForNextPeriod() ? 1 : 0;
+    }
+
+    /**
+     * Wait on a word of user memory, if it still holds a given value.
+     *
+     * @param vAddress The virtual address of the word.
+     * @param value The value the caller last saw in the word.
+     * @param ticks The longest time to wait, in ticks, or 0 to wait until
+     * woken.
+     * @return 0 if woken by FutexWake, -1 if the word did not hold the value,
+     * -2 if the time ran out, or -3 if the address is bad.
+     */
+    public static int futexWait(int vAddress, int value, int ticks) {
+	AddrSpace space = ((UserThread) NachosThread.currentThread()).space;
+	int pAddress = Futex.translate(space, vAddress);
+	if (pAddress < 0)
+	    return pAddress;
+	int result = Futex.wait(pAddress, value, ticks);
+	Futex.unpin(pAddress);
+	return result;
+    }
+
+    /**
+     * Wake threads waiting on a word of user memory.
+     *
+     * @param vAddress The virtual address of the word.
+     * @param count The largest number of threads to wake.
+     * @return the number of threads woken, or -3 if the address is bad.
+     */
+    public static int futexWake(int vAddress, int count) {
+	AddrSpace space = ((UserThread) NachosThread.currentThread()).space;
+	int pAddress = Futex.translate(space, vAddress);
+	if (pAddress < 0)
+	    return pAddress;
+	int result = Futex.wake(pAddress, count);
+	Futex.unpin(pAddress);
 	return result;
     }
 
@@ -428,30 +553,30 @@ public class Syscall {
      * @return
      */
     private static String getUserProgram(String pId, int vAddress) {
-	byte[] data = new byte[256];
 	PhysicalMemoryManager pmm = PhysicalMemoryManager.getInstance();
 	AddrSpace space = pmm.getAddressSpaceFromProcessId(pId);
-	int vpn = vAddress / Machine.PageSize;
-	TranslationEntry entry = getEntry(vpn, space.getPageTable());
-	if (null == entry)
-	    return null;
 	byte[] memory = Machine.mainMemory;
-	int ppn = entry.physicalPage;
-	int pAddress = ppn * Machine.PageSize;
-	int offset = vAddress % Machine.PageSize;
-	int source = pAddress + offset;
-	int i = source;
-	for (; i < memory.length; i++) {
-	    if (memory[i] == 0x00)
-		break;
+	StringBuffer name = new StringBuffer();
+	// The string may run on into the next virtual page, which need not be
+	// the next physical page, so translate a page at a time, pinning each
+	// page while it is read.
+	while (true) {
+	    int frame = pmm.pin(space, vAddress / Machine.PageSize);
+	    if (frame < 0)
+		return name.length() == 0 ? null : name.toString();
+	    int pAddress = frame * Machine.PageSize;
+	    int source = pAddress + vAddress % Machine.PageSize;
+	    int i = source;
+	    for (; i < pAddress + Machine.PageSize; i++) {
+		if (memory[i] == 0x00)
+		    break;
+	    }
+	    name.append(new String(memory, source, i - source));
+	    pmm.unpin(frame);
+	    if (i < pAddress + Machine.PageSize)
+		return name.toString();
+	    vAddress += i - source;
 	}
-	byte[] d = new byte[i - source];
-	System.arraycopy(memory, source, d, 0, i - source);
-	/*
-	 * for (int j = 0; j < i-source; j++) { if(data[j] == 0) break; d[j] =
-	 * data[j]; }
-	 */
-	return new String(d);
     }
     
     public static void mkrmdir(boolean mkdir) {
@@ -0,0 +1,226 @@
+package nachos.kernel.userprog.test;
+
+import nachos.Debug;
+import nachos.kernel.Nachos;
+import nachos.kernel.threads.Semaphore;
+import nachos.kernel.threads.SpinLock;
+import nachos.kernel.userprog.Futex;
+import nachos.kernel.userprog.PhysicalMemoryManager;
+import nachos.machine.CPU;
+import nachos.machine.Machine;
+import nachos.machine.NachosThread;
+
+/**
+ * This class tests/demonstrates futexes, by running the kind of mutex a
+ * user program would build on the FutexWait and FutexWake system calls.
+ * The state of the mutex is a word in a page of physical memory: 0 if it
+ * is free, 1 if it is held and nobody waits for it, 2 if it is held and
+ * somebody may be waiting.  Taking a free mutex and releasing one nobody
+ * waits for only change the word; the futex is used only to wait for a
+ * held mutex and to wake a waiter.  A number of kernel threads, which the
+ * scheduler spreads over the CPUs, repeatedly take the mutex for a short
+ * critical section, first rarely and then all the time, and a reporting
+ * thread prints how many acquisitions needed the futex in each phase.
+ * Finally it checks that a wait returns at once if the word has changed,
+ * and that a wait nobody wakes times out.
+ *
+ * The simulated MIPS has no atomic read-modify-write instruction, so this
+ * test stands in for one with a spin lock held with interrupts disabled.
+ */
+
+public class FutexTest {
+
+    /** Number of critical sections run by each thread in each phase. */
+    private static final int SECTIONS = 100;
+
+    /** Number of steps of work done in each critical section. */
+    private static final int HOLD = 10;
+
+    /** Number of steps of work done between critical sections when the
+	mutex is rarely contended. */
+    private static final int THINK = 300;
+
+    /** Physical address of the mutex word. */
+    private static int mutex;
+
+    /** Spin lock standing in for atomic instructions on the mutex word. */
+    private static final SpinLock atomic = new SpinLock("FutexTest atomic");
+
+    /** Number of critical sections run; protected by the mutex. */
+    private static int counter;
+
+    /** Number of acquisitions that had to wait on the futex. */
+    private static int waits;
+
+    /** Number of releases that had to wake a waiter. */
+    private static int wakes;
+
+    /** Signalled by each thread when it has finished a phase. */
+    private static final Semaphore done = new Semaphore("FutexTest done", 0);
+
+    /**
+     * Entry point for the test.
+     *
+     * @param numThreads  The number of competing threads.
+     */
+    public static void start(final int numThreads) {
+	Debug.println('+', "Entering FutexTest");
+	final int page = PhysicalMemoryManager.getInstance().getPage();
+	Debug.ASSERT(page >= 0, "FutexTest: no free physical page");
+	mutex = page * Machine.PageSize;
+	Futex.writeWord(mutex, 0);
+	NachosThread reporter =
+		new NachosThread
+		("FutexReport",
+		 new Runnable() {
+		    public void run() {
+			phase("rarely contended", numThreads, THINK);
+			phase("always contended", numThreads, 0);
+			checkWaits();
+			PhysicalMemoryManager.getInstance().freePage(page);
+			Nachos.scheduler.finishThread();
+		    }
+		 });
+	Nachos.scheduler.readyToRun(reporter);
+    }
+
+    /**
+     * Run one phase of the test, wait for it to finish, and report.
+     *
+     * @param name  Name of the phase.
+     * @param numThreads  The number of competing threads.
+     * @param think  Number of steps of work between critical sections.
+     */
+    private static void phase(String name, int numThreads, final int think) {
+	counter = waits = wakes = 0;
+	for(int i = 0; i < numThreads; i++) {
+	    NachosThread worker =
+		    new NachosThread
+		    ("FutexTest" + i,
+		     new Runnable() {
+			public void run() {
+			    for(int j = 0; j < SECTIONS; j++) {
+				lock();
+				int value = counter;
+				work(HOLD);
+				counter = value + 1;
+				unlock();
+				work(think);
+			    }
+			    done.V();
+			    Nachos.scheduler.finishThread();
+			}
+		     });
+	    Nachos.scheduler.readyToRun(worker);
+	}
+	for(int i = 0; i < numThreads; i++)
+	    done.P();
+	Debug.ASSERT(counter == numThreads * SECTIONS,
+		"FutexTest lost " + (numThreads * SECTIONS - counter)
+		+ " updates");
+	Debug.println('+', numThreads + " threads, " + name + ": " + counter
+		+ " acquisitions, " + waits + " futex waits, " + wakes
+		+ " futex wakes");
+    }
+
+    /**
+     * Take the mutex, waiting on the futex only if it is held.
+     */
+    private static void lock() {
+	int c = compareAndSwap(0, 1);
+	if(c == 0)
+	    return;
+	if(c != 2)
+	    c = swap(2);
+	while(c != 0) {
+	    count(true);
+	    Futex.wait(mutex, 2, 0);
+	    c = swap(2);
+	}
+    }
+
+    /**
+     * Release the mutex, waking a waiter only if there may be one.
+     */
+    private static void unlock() {
+	if(swap(0) == 2) {
+	    count(false);
+	    Futex.wake(mutex, 1);
+	}
+    }
+
+    /**
+     * Check that a wait on a word that has changed returns at once, and
+     * that a wait nobody wakes times out.
+     */
+    private static void checkWaits() {
+	Debug.ASSERT(Futex.wait(mutex, 1, 0) == Futex.VALUE_CHANGED,
+		"FutexTest: wait on a changed word did not return");
+	Debug.ASSERT(Futex.wait(mutex, 0, 1000) == Futex.TIMED_OUT,
+		"FutexTest: wait nobody woke did not time out");
+	Debug.println('+', "FutexTest: changed word and timeout checked");
+    }
+
+    /**
+     * Set the mutex word to a new value if it holds an expected one,
+     * atomically.
+     *
+     * @param expected  The expected value.
+     * @param value  The new value.
+     * @return  The value the word held.
+     */
+    private static int compareAndSwap(int expected, int value) {
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	atomic.acquire();
+	int old = Futex.readWord(mutex);
+	if(old == expected)
+	    Futex.writeWord(mutex, value);
+	atomic.release();
+	CPU.setLevel(oldLevel);
+	return old;
+    }
+
+    /**
+     * Set the mutex word to a new value, atomically.
+     *
+     * @param value  The new value.
+     * @return  The value the word held.
+     */
+    private static int swap(int value) {
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	atomic.acquire();
+	int old = Futex.readWord(mutex);
+	Futex.writeWord(mutex, value);
+	atomic.release();
+	CPU.setLevel(oldLevel);
+	return old;
+    }
+
+    /**
+     * Count a wait or a wake.
+     *
+     * @param wait  true for a wait, false for a wake.
+     */
+    private static void count(boolean wait) {
+	int oldLevel = CPU.setLevel(CPU.IntOff);
+	atomic.acquire();
+	if(wait)
+	    waits++;
+	else
+	    wakes++;
+	atomic.release();
+	CPU.setLevel(oldLevel);
+    }
+
+    /**
+     * Do a few steps of work, giving interrupts a chance to happen.
+     *
+     * @param steps  The number of steps.
+     */
+    private static void work(int steps) {
+	for(int i = 0; i < steps; i++) {
+	    int oldLevel = CPU.setLevel(CPU.IntOff);
+	    CPU.setLevel(oldLevel);
+	}
+    }
+}
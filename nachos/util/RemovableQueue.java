@@ -0,0 +1,154 @@
+package nachos.util;
+
+/**
+ * Implementation of the Queue interface with first-in, first-out behavior,
+ * which also allows an element to be taken out of the middle of the queue
+ * in constant time.  Adding an element with add() returns an Entry, which
+ * can later be passed to remove().  This is used for queues of waiting
+ * threads, where a thread whose wait times out has to leave the queue
+ * without disturbing the order of the others.
+ *
+ * Like FIFOQueue, a RemovableQueue is not synchronized; the caller must
+ * provide its own mutual exclusion.
+ *
+ * @param <T>  The type of the elements.
+ */
+
+public class RemovableQueue<T> implements Queue<T> {
+
+    /**
+     * A handle for an element in a RemovableQueue, returned by add().
+     *
+     * @param <T>  The type of the element.
+     */
+    public static class Entry<T> {
+
+	/** The element. */
+	public final T element;
+
+	/** Neighbours in the queue. */
+	private Entry<T> prev, next;
+
+	/** Is the entry in the queue? */
+	private boolean queued;
+
+	/**
+	 * Initialize an entry for an element.
+	 *
+	 * @param element  The element.
+	 */
+	private Entry(T element) {
+	    this.element = element;
+	}
+
+	/**
+	 * Test whether the entry is still in its queue.
+	 *
+	 * @return true if the entry has been neither polled nor removed.
+	 */
+	public boolean isQueued() {
+	    return queued;
+	}
+    }
+
+    /** First and last entries in the queue. */
+    private Entry<T> head, tail;
+
+    /** Number of entries in the queue. */
+    private int size;
+
+    /**
+     * Adds an element to the tail of this queue.
+     *
+     * @param e  The element to add.
+     * @return  An entry that can be passed to remove().
+     */
+    public Entry<T> add(T e) {
+	Entry<T> entry = new Entry<T>(e);
+	entry.prev = tail;
+	if(tail == null)
+	    head = entry;
+	else
+	    tail.next = entry;
+	tail = entry;
+	entry.queued = true;
+	size++;
+	return entry;
+    }
+
+    /**
+     * Removes an entry from this queue, wherever it is.
+     *
+     * @param entry  An entry returned by add() on this queue.
+     * @return  true if the entry was removed, false if it had already left
+     * the queue.
+     */
+    public boolean remove(Entry<T> entry) {
+	if(!entry.queued)
+	    return false;
+	if(entry.prev == null)
+	    head = entry.next;
+	else
+	    entry.prev.next = entry.next;
+	if(entry.next == null)
+	    tail = entry.prev;
+	else
+	    entry.next.prev = entry.prev;
+	entry.prev = entry.next = null;
+	entry.queued = false;
+	size--;
+	return true;
+    }
+
+    /**
+     * Adds an element to the tail of this queue.
+     *
+     * @param e  The element to add.
+     * @return  true, since there is no limit on the size of the queue.
+     */
+    public boolean offer(T e) {
+	add(e);
+	return true;
+    }
+
+    /**
+     * Retrieves, but does not remove, the head of this queue.
+     *
+     * @return  The element at the head of the queue, or null if the queue is
+     * empty.
+     */
+    public T peek() {
+	return head == null ? null : head.element;
+    }
+
+    /**
+     * Retrieves and removes the head of this queue.
+     *
+     * @return  the head of this queue, or null if this queue is empty.
+     */
+    public T poll() {
+	Entry<T> entry = head;
+	if(entry == null)
+	    return null;
+	remove(entry);
+	return entry.element;
+    }
+
+    /**
+     * Test whether this queue is currently empty.
+     *
+     * @return true if this queue is currently empty.
+     */
+    public boolean isEmpty() {
+	return head == null;
+    }
+
+    /**
+     * Get the number of elements in this queue.
+     *
+     * @return the number of elements in this queue.
+     */
+    public int size() {
+	return size;
+    }
+}
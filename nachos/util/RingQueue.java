@@ -0,0 +1,165 @@
+package nachos.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Implementation of the Queue interface as a bounded, array-backed ring,
+ * which any number of threads, on any number of CPUs, may offer to and
+ * poll from at the same time without a lock.  Nothing is allocated once
+ * the queue has been created.
+ *
+ * Each slot has a sequence number, which tells a producer or consumer
+ * whether the slot is ready for it.  A slot at position p (counting every
+ * element ever offered) is free for a producer when its sequence number is
+ * p, and holds an element for a consumer when it is p + 1; the consumer
+ * then sets it to p + capacity, which frees the slot for the producer one
+ * lap later.  Producers claim positions by compare-and-set on the tail
+ * counter, and consumers on the head counter, so they only contend with
+ * each other, and a producer and a consumer only meet on the same slot
+ * when the queue is full or empty.
+ *
+ * Because the queue is bounded, offer() returns false when it is full, as
+ * the Queue interface allows.
+ */
+public class RingQueue<T> implements Queue<T> {
+
+    /** The slots; their length is a power of two. */
+    private final Object[] slots;
+
+    /** The sequence number of each slot. */
+    private final AtomicLongArray sequence;
+
+    /** slots.length - 1, to map positions to slots. */
+    private final int mask;
+
+    /** Position of the next element to be polled. */
+    private final AtomicLong head = new AtomicLong();
+
+    /** Position of the next element to be offered. */
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * Initialize an empty queue.
+     *
+     * @param capacity  The greatest number of elements it can hold, which
+     * is rounded up to a power of two.
+     */
+    public RingQueue(int capacity) {
+	if(capacity <= 0 || capacity > 1 << 30)
+	    throw new IllegalArgumentException();
+	int size = Integer.highestOneBit(capacity);
+	if(size < capacity)
+	    size <<= 1;
+	slots = new Object[size];
+	sequence = new AtomicLongArray(size);
+	for(int i = 0; i < size; i++)
+	    sequence.set(i, i);
+	mask = size - 1;
+    }
+
+    /**
+     * Adds an element to the tail of this queue, unless it is full.
+     *
+     * @param e  The element to add, which must not be null.
+     * @return  true if the element was added, false if the queue is full.
+     */
+    public boolean offer(T e) {
+	if(e == null)
+	    throw new NullPointerException();
+	while(true) {
+	    long position = tail.get();
+	    int slot = (int)position & mask;
+	    long difference = sequence.get(slot) - position;
+	    if(difference == 0) {
+		if(tail.compareAndSet(position, position + 1)) {
+		    slots[slot] = e;
+		    sequence.set(slot, position + 1);	// publishes the element
+		    return true;
+		}
+	    } else if(difference < 0) {
+		return false;				// a lap behind: full
+	    }
+	    // Otherwise another producer has claimed the slot; try again.
+	}
+    }
+
+    /**
+     * Retrieves and removes the head of this queue, or returns null if
+     * this queue is empty.
+     *
+     * @return  the head of this queue, or null if this queue is empty.
+     */
+    @SuppressWarnings("unchecked")
+    public T poll() {
+	while(true) {
+	    long position = head.get();
+	    int slot = (int)position & mask;
+	    long difference = sequence.get(slot) - (position + 1);
+	    if(difference == 0) {
+		if(head.compareAndSet(position, position + 1)) {
+		    T e = (T)slots[slot];
+		    slots[slot] = null;
+		    sequence.set(slot, position + slots.length);
+		    return e;
+		}
+	    } else if(difference < 0) {
+		return null;				// not yet filled: empty
+	    }
+	    // Otherwise another consumer has taken the slot; try again.
+	}
+    }
+
+    /**
+     * Retrieves, but does not remove, the head of this queue, or returns
+     * null if this queue is empty.  If other threads are polling at the
+     * same time, the element returned may already have been removed.
+     *
+     * @return  The element at the head of the queue, or null if the queue
+     * is empty.
+     */
+    @SuppressWarnings("unchecked")
+    public T peek() {
+	while(true) {
+	    long position = head.get();
+	    int slot = (int)position & mask;
+	    if(sequence.get(slot) != position + 1) {
+		if(head.get() == position)
+		    return null;
+		continue;				// polled meanwhile
+	    }
+	    T e = (T)slots[slot];
+	    if(head.get() == position)
+		return e;
+	}
+    }
+
+    /**
+     * Test whether this queue is currently empty.
+     *
+     * @return true if this queue is currently empty.
+     */
+    public boolean isEmpty() {
+	return head.get() >= tail.get();
+    }
+
+    /**
+     * Get the number of elements in this queue, which may be out of date
+     * by the time it is returned if other threads are using the queue.
+     *
+     * @return the number of elements.
+     */
+    public int size() {
+	long size = tail.get() - head.get();
+	return size < 0 ? 0 : (int)Math.min(size, slots.length);
+    }
+
+    /**
+     * Get the greatest number of elements this queue can hold.
+     *
+     * @return the capacity.
+     */
+    public int capacity() {
+	return slots.length;
+    }
+}
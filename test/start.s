@@ -187,6 +187,54 @@ Yield:
 	j	$31
 	.end Yield
 
+	.globl SetAffinity
+	.ent	SetAffinity
+SetAffinity:
+	addiu $2,$0,SC_SetAffinity
+	syscall
+	j	$31
+	.end SetAffinity
+
+	.globl SetWeight
+	.ent	SetWeight
+SetWeight:
+	addiu $2,$0,SC_SetWeight
+	syscall
+	j	$31
+	.end SetWeight
+
+	.globl SetRealTime
+	.ent	SetRealTime
+SetRealTime:
+	addiu $2,$0,SC_SetRealTime
+	syscall
+	j	$31
+	.end SetRealTime
+
+	.globl WaitNextPeriod
+	.ent	WaitNextPeriod
+WaitNextPeriod:
+	addiu $2,$0,SC_WaitNextPeriod
+	syscall
+	j	$31
+	.end WaitNextPeriod
+
+	.globl FutexWait
+	.ent	FutexWait
+FutexWait:
+	addiu $2,$0,SC_FutexWait
+	syscall
+	j	$31
+	.end FutexWait
+
+	.globl FutexWake
+	.ent	FutexWake
+FutexWake:
+	addiu $2,$0,SC_FutexWake
+	syscall
+	j	$31
+	.end FutexWake
+
 /* dummy function to keep gcc happy */
         .globl  __main
         .ent    __main
@@ -36,6 +36,12 @@
 #define SC_Mkfile	15
 #define SC_Mmap		16
 #define SC_Munmap	17
+#define SC_SetAffinity	18
+#define SC_SetWeight	19
+#define SC_SetRealTime	20
+#define SC_WaitNextPeriod	21
+#define SC_FutexWait	22
+#define SC_FutexWake	23
 
 #ifndef IN_ASM
 
@@ -163,6 +169,51 @@ void *cMmap(char *name, int *sizep);
  */
 int Munmap(void *addr);
 
+/* Restricts the current thread to run only on the CPUs
+ * whose bits are set in mask (bit i for CPU i).  A mask of 0
+ * leaves the restriction unchanged.  Returns the previous mask,
+ * or 0 if mask names no existing CPU.
+ */
+int SetAffinity(int mask);
+
+/* Sets the share weight of the current thread, which determines
+ * its share of the CPU under proportional-share (-stride)
+ * scheduling.  A weight of 0 leaves it unchanged.  Returns the
+ * previous weight, or 0 if the new weight is too large.
+ */
+int SetWeight(int weight);
+
+/* Makes the current thread a periodic real-time thread, which in
+ * each period of "period" ticks needs "budget" ticks of CPU time
+ * by "deadline" ticks after the start of the period, and is then
+ * scheduled earliest deadline first.  A period of 0 returns the
+ * thread to ordinary scheduling.  Returns 1 if the thread was
+ * admitted, or 0 if no CPU has enough spare real-time capacity.
+ */
+int SetRealTime(int period, int budget, int deadline);
+
+/* Ends the current job of a real-time thread, and waits for the
+ * start of its next period.  Returns 1 if the job met its deadline,
+ * or 0 if it missed it.
+ */
+int WaitNextPeriod();
+
+/* Waits on the word at "addr", if it still holds "val", until another
+ * thread calls FutexWake on the same word, or until "ticks" ticks have
+ * passed (0 means no time limit).  This lets a user-level lock or
+ * condition keep its state in ordinary memory and trap only when a
+ * thread really has to wait.  Returns 0 if woken, -1 if the word did
+ * not hold "val", -2 if the time ran out, or -3 if "addr" is not a
+ * mapped, word-aligned address.
+ */
+int FutexWait(int *addr, int val, int ticks);
+
+/* Wakes up to "count" threads waiting in FutexWait on the word at
+ * "addr", in the order in which they started waiting.  Returns the
+ * number of threads woken, or -3 if "addr" is bad.
+ */
+int FutexWake(int *addr, int count);
+
 #endif /* IN_ASM */
 
 #endif /* SYSCALL_H */